@@ -0,0 +1,84 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import at.favre.lib.bytes.Bytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Both {@link PackageKitChecksums} CRCs over payloads from 16 B to 64 KB, on heap arrays, direct buffers (aligned
+ * and unaligned, against a byte at a time reference) and through the {@link Bytes} transformer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+
+    @Param({"crc16", "crc8"})
+    public String crc;
+
+    @Param({"16", "256", "4096", "65536"})
+    public int size;
+
+    private PackageKitChecksums checksum;
+    private byte[] data;
+    private ByteBuffer direct;
+    private ByteBuffer unaligned;
+    private Bytes bytes;
+
+    @Setup
+    public void setup() {
+        checksum = crc.equals("crc16")
+                ? PackageKitChecksums.crc16_std_PUS_ECSS_E_ST_70_41C_2016()
+                : PackageKitChecksums.crc8_RMAP_ECSS_E_ST_50_52C_2010();
+        data = new byte[size];
+        new Random(1).nextBytes(data);
+        direct = ByteBuffer.allocateDirect(size).put(data).flip();
+        unaligned = ByteBuffer.allocateDirect(size + 1).put(1, data).slice(1, size);
+        bytes = Bytes.wrap(data);
+    }
+
+    @Benchmark
+    public int array() {
+        return checksum.update(checksum.init(), data, 0, size);
+    }
+
+    @Benchmark
+    public int directBuffer() {
+        return checksum.update(checksum.init(), direct, 0, size);
+    }
+
+    @Benchmark
+    public int directBufferUnaligned() {
+        return checksum.update(checksum.init(), unaligned, 0, size);
+    }
+
+    @Benchmark
+    public int directBufferBytewise() {
+        int crc = checksum.init();
+        for (int i = 0; i < size; i++) {
+            crc = checksum.update(crc, direct.get(i));
+        }
+        return crc;
+    }
+
+    @Benchmark
+    public Bytes transform() {
+        return bytes.transform(checksum);
+    }
+}
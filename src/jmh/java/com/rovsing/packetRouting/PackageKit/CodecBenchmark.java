@@ -0,0 +1,90 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import at.favre.lib.bytes.Bytes;
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import com.rovsing.msr_ero.sis.spw.codec.PusTmCodec;
+import com.rovsing.msr_ero.sis.spw.codec.RmapWriteCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generated codecs (see {@link CodecGenerator}) against the generic {@link PackageKit} on the same packages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private PackageKit pusKit;
+    private PackageKit rmapKit;
+    private PusTmCodec pusCodec;
+    private RmapWriteCodec rmapCodec;
+    private byte[] pusBytes;
+    private byte[] rmapBytes;
+    private byte[] target;
+
+    @Setup
+    public void setup() {
+        Bytes payload = Bytes.random(64);
+        pusKit = SpwPkgFactory.PUS_TM.newInstance().setPayload(payload);
+        rmapKit = SpwPkgFactory.RMAP_WRITE.newInstance().setPayload(payload);
+        pusBytes = pusKit.toBytes().array();
+        rmapBytes = rmapKit.toBytes().array();
+        pusCodec = new PusTmCodec().fromBytes(pusBytes);
+        rmapCodec = new RmapWriteCodec().fromBytes(rmapBytes);
+        target = new byte[Integer.max(pusBytes.length, rmapBytes.length)];
+    }
+
+    @Benchmark
+    public long pusKitDecode() {
+        return pusKit.decodeFrom(pusBytes, 0, pusBytes.length).getLong(3);
+    }
+
+    @Benchmark
+    public int pusCodecDecode() {
+        return pusCodec.decodeFrom(pusBytes, 0, pusBytes.length).getApid();
+    }
+
+    @Benchmark
+    public int pusKitEncode() {
+        return pusKit.encodeInto(target, 0);
+    }
+
+    @Benchmark
+    public int pusCodecEncode() {
+        return pusCodec.encodeInto(target, 0);
+    }
+
+    @Benchmark
+    public long rmapKitDecode() {
+        return rmapKit.decodeFrom(rmapBytes, 0, rmapBytes.length).getLong(11);
+    }
+
+    @Benchmark
+    public long rmapCodecDecode() {
+        return rmapCodec.decodeFrom(rmapBytes, 0, rmapBytes.length).getAddress();
+    }
+
+    @Benchmark
+    public int rmapKitEncode() {
+        return rmapKit.encodeInto(target, 0);
+    }
+
+    @Benchmark
+    public int rmapCodecEncode() {
+        return rmapCodec.encodeInto(target, 0);
+    }
+}
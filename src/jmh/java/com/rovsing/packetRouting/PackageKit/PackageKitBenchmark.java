@@ -0,0 +1,113 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import at.favre.lib.bytes.Bytes;
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode, decode, field access and instantiation of every {@link SpwPkgFactory} package type.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PackageKitBenchmark {
+
+    @Param({"PUS_TC", "PUS_TM", "CPTP", "NATIVE", "RMAP_WRITE", "RMAP_WRITE_REPLY", "RMAP_READ", "RMAP_READ_REPLY"})
+    public String pkgType;
+
+    @Param({"64"})
+    public int payloadSize;
+
+    private final SpwPkgFactory factory = new SpwPkgFactory();
+    private PackageKit kit;
+    private Bytes encoded;
+    private byte[] encodedArray;
+    private byte[] encodeTarget;
+    private String fieldName;
+    private int fieldHandle;
+
+    @Setup
+    public void setup() {
+        kit = newPackage();
+        byte[] payload = new byte[payloadSize];
+        new Random(1).nextBytes(payload);
+        kit.setPayload(Bytes.wrap(payload));
+        encoded = kit.toBytes();
+        encodedArray = encoded.array();
+        encodeTarget = new byte[encodedArray.length];
+        // The last header field, which is the most expensive one to look up by name
+        FieldLayout layout = kit.getSchema().getLayout();
+        fieldName = layout.name(layout.fieldCount() - 1);
+        fieldHandle = kit.handle(fieldName);
+    }
+
+    @Benchmark
+    public PackageKit fromBytes() {
+        return kit.fromBytes(encoded);
+    }
+
+    @Benchmark
+    public PackageKit decodeFrom() {
+        return kit.decodeFrom(encodedArray, 0, encodedArray.length);
+    }
+
+    @Benchmark
+    public Bytes toBytes() {
+        return kit.toBytes();
+    }
+
+    @Benchmark
+    public int encodeInto() {
+        return kit.encodeInto(encodeTarget, 0);
+    }
+
+    @Benchmark
+    public int getFieldByName() {
+        return kit.getField(fieldName).getValue();
+    }
+
+    @Benchmark
+    public int getFieldByHandle() {
+        return kit.getValue(fieldHandle);
+    }
+
+    @Benchmark
+    public PackageKit newPackage() {
+        switch (pkgType) {
+            case "PUS_TC":
+                return factory.new_PUS_TC();
+            case "PUS_TM":
+                return factory.new_PUS_TM();
+            case "CPTP":
+                return factory.new_CPTP();
+            case "NATIVE":
+                return factory.new_NATIVE();
+            case "RMAP_WRITE":
+                return factory.new_RMAP_WRITE();
+            case "RMAP_WRITE_REPLY":
+                return factory.new_RMAP_WRITE_REPLY();
+            case "RMAP_READ":
+                return factory.new_RMAP_READ();
+            case "RMAP_READ_REPLY":
+                return factory.new_RMAP_READ_REPLY();
+            default:
+                throw new IllegalArgumentException("Unknown package type " + pkgType);
+        }
+    }
+}
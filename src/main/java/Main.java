@@ -1,6 +1,8 @@
 import at.favre.lib.bytes.Bytes;
 import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import com.rovsing.packetRouting.PackageKit.LayeredPacket;
 import com.rovsing.packetRouting.PackageKit.PackageKit;
+import com.rovsing.packetRouting.PackageKit.ProtocolStack;
 
 import java.util.Locale;
 
@@ -10,10 +12,14 @@ public class Main {
     public static void main(String[] args) {
         SpwPkgFactory pkgFactory = new SpwPkgFactory();
 
-        PackageKit cptpIn = pkgFactory.new_CPTP();
-        PackageKit pusTc = pkgFactory.new_PUS_TC();
-        cptpIn.fromBytes(Bytes.parseHex("0002010138014002000A1109010100000000706B"));
-        pusTc.fromBytes(cptpIn.getPayload());
+        ProtocolStack cptpPus = ProtocolStack.of(SpwPkgFactory.CPTP)
+                .carrying("userApplication", 1, SpwPkgFactory.PUS_TC);
+        LayeredPacket layers = cptpPus.newPacket();
+        Bytes raw = Bytes.parseHex("0002010138014002000A1109010100000000706B");
+        layers.decode(raw.array(), 0, raw.length());
+
+        PackageKit cptpIn = layers.decodeLayer(0, pkgFactory.new_CPTP());
+        PackageKit pusTc = layers.decodeLayer(1, pkgFactory.new_PUS_TC());
 
         System.out.println(cptpIn);
         System.out.println(pusTc);
@@ -0,0 +1,445 @@
+package com.rovsing.msr_ero.sis.spw;
+
+import com.rovsing.packetRouting.PackageKit.FieldLayout;
+import com.rovsing.packetRouting.PackageKit.PackageKit;
+import com.rovsing.packetRouting.PackageKit.PacketSchema;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks RMAP commands in flight and matches their replies by target logical address and {@code transId}, without
+ * locks and without decoding the reply.
+ * <p>
+ * Transactions live in a preallocated, open-addressed table of primitive slots. Registering claims a free slot with
+ * a CAS, a reply is matched by peeking {@code senderAddress} and {@code transId} from its raw bytes and completing
+ * the slot with a CAS, so only one of a concurrent reply and timeout wins. Timeouts run on a hashed wheel: every slot
+ * is linked into the wheel bucket of its deadline, and {@link #expire()} only visits the buckets of the ticks that
+ * passed. A slot is free for the next transaction as soon as its transaction completes. If it is still linked into a
+ * bucket, the wheel serves the new transaction when it reaches that bucket and moves the slot to the bucket of the
+ * new deadline, so a slot is linked at most once and the capacity only bounds the transactions in flight.
+ * <p>
+ * A freed slot is left as a tombstone, lookups continue past it. Tombstones that end a probe chain are turned back
+ * into empty slots right away, walking backwards, so the chains stay as short as the transactions in flight allow. A
+ * registration that overlaps with this looks for its slot again.
+ * <p>
+ * Registering, matching and cancelling can run on any thread. {@link #expire()} is meant to be called periodically,
+ * e.g. every tick from a scheduled executor; concurrent calls return immediately while one is running.
+ */
+public class RmapTransactionTracker {
+    /**
+     * Outcome of the transactions, called on the thread completing them.
+     */
+    public interface Listener {
+        void onReply(int target, int transId, long cookie);
+
+        void onTimeout(int target, int transId, long cookie);
+    }
+
+    // Slot states besides a live key, which is positive. Lookups stop at EMPTY and skip all others.
+    private static final long EMPTY = 0;
+    private static final long FREE = -1;
+    private static final long RESERVED = -2;
+    // A live key holds the slot generation above target and transId, so a reused slot never matches a stale key
+    private static final int ID_BITS = 24;
+    private static final long ID_MASK = (1L << ID_BITS) - 1;
+    private static final int NIL = -1;
+    private static final int MAX_PROBE = 64;
+    private static final int WHEEL_SIZE = 512;
+    private static final int SWEEP_SIZE = 1024;
+
+    // Commands and replies share the RMAP prefix layout up to transId
+    private static final FieldLayout LAYOUT = SpwPkgFactory.RMAP_WRITE_REPLY.getLayout();
+    private static final int PROTOCOL_ID = LAYOUT.indexOf("protocolId");
+    private static final int IS_COMMAND = LAYOUT.indexOf("isCommand");
+    private static final int SENDER_ADDRESS = LAYOUT.indexOf("senderAddress");
+    private static final int TRANS_ID = LAYOUT.indexOf("transId");
+    private static final int LOGIC_ADDRESS = LAYOUT.indexOf("logicAddress");
+    private static final long RMAP_PROTOCOL_ID = SpwPkgFactory.RMAP_WRITE_REPLY.getDefault(PROTOCOL_ID);
+    private static final int PEEK_SIZE = (LAYOUT.bitOffset(TRANS_ID) + LAYOUT.bitSize(TRANS_ID)) / Byte.SIZE;
+
+    private final Listener listener;
+    private final long timeoutNanos;
+    private final int mask;
+    private final int maxProbe;
+    private final AtomicLongArray keys;
+    private final long[] cookies;
+    private final long[] deadlines;
+    private final int[] generations;
+    // Wheel buckets are lock-free stacks of slots linked through next. A slot is linked (1) from its push until the
+    // wheel has served it, linkedAt is the deadline of the bucket it was pushed to.
+    private final int[] next;
+    private final AtomicIntegerArray linked;
+    private final long[] linkedAt;
+    private final AtomicIntegerArray buckets = new AtomicIntegerArray(WHEEL_SIZE);
+    private final long tickNanos;
+    private final long startNanos;
+    private final AtomicBoolean expiring = new AtomicBoolean();
+    private volatile long lastTick;
+    // Tombstones are turned back into EMPTY by one thread at a time, reclaims is odd while it does. A registration
+    // that saw it change may have probed past a slot that became EMPTY, and claims again.
+    private final AtomicBoolean reclaiming = new AtomicBoolean();
+    private volatile int reclaims;
+    private int sweep;
+    private final LongAdder inFlight = new LongAdder();
+
+    /**
+     * Tracker for up to {@code capacity} transactions in flight, timing out after {@code timeout} unless registered
+     * with an own timeout. Timeouts are reported up to about 1/64 of {@code timeout} late.
+     */
+    public RmapTransactionTracker(int capacity, long timeout, TimeUnit unit, Listener listener) {
+        if (capacity < 1 || capacity > 1 << 29) {
+            throw new IllegalArgumentException("RmapTransactionTracker capacity must be 1 to 2^29 (was " + capacity + ")");
+        }
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("RmapTransactionTracker timeout must be positive (was " + timeout + ")");
+        }
+        // At most half full keeps the probe sequences short
+        int size = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        this.listener = listener;
+        this.timeoutNanos = unit.toNanos(timeout);
+        this.mask = size - 1;
+        this.maxProbe = Integer.min(size, MAX_PROBE);
+        this.keys = new AtomicLongArray(size);
+        this.cookies = new long[size];
+        this.deadlines = new long[size];
+        this.generations = new int[size];
+        this.next = new int[size];
+        this.linked = new AtomicIntegerArray(size);
+        this.linkedAt = new long[size];
+        for (int b = 0; b < WHEEL_SIZE; b++) {
+            buckets.set(b, NIL);
+        }
+        this.tickNanos = Long.max(TimeUnit.MICROSECONDS.toNanos(100), timeoutNanos / 64);
+        this.startNanos = System.nanoTime();
+    }
+
+    /***************************
+     *        Register
+     **************************/
+
+    /**
+     * Encode {@code command} (RMAP_WRITE or RMAP_READ) into {@code dst} and register it, after a transaction id
+     * stamp (see {@link SpwPkgFactory#RMAP_WRITE_TRANSACTION}) has filled in its {@code transId}.
+     *
+     * @return number of bytes written
+     * @throws IllegalStateException if no slot is free, the command is then encoded but not tracked
+     */
+    public int encode(PackageKit command, byte[] dst, int off, long cookie) {
+        int size = command.encodeInto(dst, off);
+        register(command, cookie);
+        return size;
+    }
+
+    public int encode(PackageKit command, ByteBuffer dst, long cookie) {
+        int size = command.encodeInto(dst);
+        register(command, cookie);
+        return size;
+    }
+
+    public void register(PackageKit command, long cookie) {
+        PacketSchema schema = command.getSchema();
+        if (schema != SpwPkgFactory.RMAP_WRITE && schema != SpwPkgFactory.RMAP_READ) {
+            throw new IllegalArgumentException("PackageKit '" + command.getPkgName() + "' is no RMAP command");
+        }
+        register((int) command.getLong(LOGIC_ADDRESS), (int) command.getLong(TRANS_ID), cookie, timeoutNanos);
+    }
+
+    /**
+     * Track the transaction {@code transId} towards {@code target}, reported with {@code cookie} once it completes.
+     * A transaction id is expected to be registered by one thread at a time, as handed out by a transaction id stamp.
+     *
+     * @throws IllegalArgumentException if the transaction is already in flight
+     * @throws IllegalStateException    if no slot is free
+     */
+    public void register(int target, int transId, long cookie, long timeoutNanos) {
+        long id = id(target, transId);
+        int home = home(id);
+        long deadline = Long.max(tick(System.nanoTime() + timeoutNanos), lastTick + 1);
+        while (true) {
+            int reclaimed = reclaims;
+            if ((reclaimed & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            // The whole chain is checked before claiming, a live duplicate may follow a free slot
+            int onTime = NIL;
+            int late = NIL;
+            for (int i = 0; i < maxProbe; i++) {
+                int slot = (home + i) & mask;
+                long state = keys.get(slot);
+                if (state > 0 && (state & ID_MASK) == id) {
+                    throw new IllegalArgumentException("RMAP transaction " + transId + " towards " + target + " is already in flight");
+                }
+                if (state == EMPTY || state == FREE) {
+                    // A slot still linked is served when its bucket comes up, prefer one that comes up before the deadline
+                    if (linked.get(slot) == 0 || linkedAt[slot] <= deadline) {
+                        onTime = onTime == NIL ? slot : onTime;
+                    } else {
+                        late = late == NIL ? slot : late;
+                    }
+                }
+                if (state == EMPTY) {
+                    break;
+                }
+            }
+            if (onTime == NIL && late == NIL) {
+                throw new IllegalStateException("RmapTransactionTracker is full, " + inFlight() + " transactions in flight");
+            }
+            if (claim(onTime == NIL ? late : onTime, id, cookie, deadline, reclaimed)) {
+                return;
+            }
+            // Lost the slot to a concurrent registration or reclaim, look again
+        }
+    }
+
+    private boolean claim(int slot, long id, long cookie, long deadline, int reclaimed) {
+        long state = keys.get(slot);
+        if (state != EMPTY && state != FREE || !keys.compareAndSet(slot, state, RESERVED)) {
+            return false;
+        }
+        if (reclaims != reclaimed) {
+            // The chain may have been cut in front of the slot, only a tombstone is safe to leave behind
+            keys.set(slot, FREE);
+            reclaim(slot);
+            return false;
+        }
+        int generation = generations[slot] = (generations[slot] + 1) & Integer.MAX_VALUE | 1;
+        cookies[slot] = cookie;
+        deadlines[slot] = deadline;
+        // Publishes cookie and deadline to the threads reading the key
+        keys.set(slot, (long) generation << ID_BITS | id);
+        inFlight.increment();
+        // Paired with unlink(): either this CAS sees the slot unlinked, or the wheel sees the live key
+        if (linked.compareAndSet(slot, 0, 1)) {
+            push(slot, deadline);
+        }
+        return true;
+    }
+
+    /***************************
+     *          Match
+     **************************/
+
+    /**
+     * Complete the transaction answered by the RMAP reply in {@code buf[off, off + length)}, only its header prefix
+     * is read. Replies that are not RMAP, too short or not in flight (e.g. late after a timeout) are not matched.
+     *
+     * @return true if the reply completed a transaction in flight
+     */
+    public boolean match(byte[] buf, int off, int length) {
+        if (length < PEEK_SIZE || LAYOUT.read(buf, off, PROTOCOL_ID) != RMAP_PROTOCOL_ID || LAYOUT.read(buf, off, IS_COMMAND) != 0) {
+            return false;
+        }
+        return complete((int) LAYOUT.read(buf, off, SENDER_ADDRESS), (int) LAYOUT.read(buf, off, TRANS_ID));
+    }
+
+    public boolean match(ByteBuffer buf, int off, int length) {
+        if (length < PEEK_SIZE || LAYOUT.read(buf, off, PROTOCOL_ID) != RMAP_PROTOCOL_ID || LAYOUT.read(buf, off, IS_COMMAND) != 0) {
+            return false;
+        }
+        return complete((int) LAYOUT.read(buf, off, SENDER_ADDRESS), (int) LAYOUT.read(buf, off, TRANS_ID));
+    }
+
+    /**
+     * Complete the transaction as if its reply arrived.
+     */
+    public boolean complete(int target, int transId) {
+        long id = id(target, transId);
+        int home = home(id);
+        for (int i = 0; i < maxProbe; i++) {
+            int slot = (home + i) & mask;
+            long state = keys.get(slot);
+            if (state > 0 && (state & ID_MASK) == id) {
+                // The cookie is read while the slot is live, after the CAS it may be reused
+                long cookie = cookies[slot];
+                if (!keys.compareAndSet(slot, state, FREE)) {
+                    return false;
+                }
+                inFlight.decrement();
+                reclaim(slot);
+                listener.onReply(target, transId, cookie);
+                return true;
+            }
+            if (state == EMPTY) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stop tracking the transaction without reporting it.
+     */
+    public boolean cancel(int target, int transId) {
+        long id = id(target, transId);
+        int home = home(id);
+        for (int i = 0; i < maxProbe; i++) {
+            int slot = (home + i) & mask;
+            long state = keys.get(slot);
+            if (state > 0 && (state & ID_MASK) == id) {
+                if (!keys.compareAndSet(slot, state, FREE)) {
+                    return false;
+                }
+                inFlight.decrement();
+                reclaim(slot);
+                return true;
+            }
+            if (state == EMPTY) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /***************************
+     *          Wheel
+     **************************/
+
+    /**
+     * Time out the transactions whose deadline has passed and unlink the slots of completed transactions. If the
+     * listener throws, the remaining transactions are still served and the first exception is rethrown.
+     *
+     * @return number of transactions timed out
+     */
+    public int expire() {
+        if (!expiring.compareAndSet(false, true)) {
+            return 0;
+        }
+        try {
+            long now = tick(System.nanoTime());
+            long from = lastTick + 1;
+            // Every bucket is visited at most once, whatever time has passed
+            long to = Long.min(now, from + WHEEL_SIZE - 1);
+            int expired = 0;
+            for (long tick = from; tick <= to; tick++) {
+                expired += expireBucket((int) (tick % WHEEL_SIZE), now);
+            }
+            lastTick = now;
+            sweep();
+            return expired;
+        } finally {
+            expiring.set(false);
+        }
+    }
+
+    private int expireBucket(int bucket, long now) {
+        int expired = 0;
+        RuntimeException failure = null;
+        int slot = buckets.getAndSet(bucket, NIL);
+        while (slot != NIL) {
+            int following = next[slot];
+            long state = keys.get(slot);
+            if (state > 0 && deadlines[slot] > now) {
+                // Reused since it was linked, or due in a later turn of the wheel
+                push(slot, deadlines[slot]);
+            } else {
+                long cookie = cookies[slot];
+                boolean timedOut = state > 0 && keys.compareAndSet(slot, state, FREE);
+                unlink(slot);
+                if (timedOut) {
+                    inFlight.decrement();
+                    reclaim(slot);
+                    expired++;
+                    try {
+                        listener.onTimeout((int) (state >>> Short.SIZE & 0xFF), (int) (state & 0xFFFF), cookie);
+                    } catch (RuntimeException e) {
+                        failure = failure == null ? e : failure;
+                    }
+                }
+            }
+            slot = following;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return expired;
+    }
+
+    private void unlink(int slot) {
+        linked.set(slot, 0);
+        // A registration that found the slot still linked relies on the wheel to link it again
+        if (keys.get(slot) > 0 && linked.compareAndSet(slot, 0, 1)) {
+            push(slot, deadlines[slot]);
+        }
+    }
+
+    private void push(int slot, long deadline) {
+        linkedAt[slot] = deadline;
+        int bucket = (int) (deadline % WHEEL_SIZE);
+        int head;
+        do {
+            head = buckets.get(bucket);
+            next[slot] = head;
+        } while (!buckets.compareAndSet(bucket, head, slot));
+    }
+
+    /**
+     * Turn the tombstone in {@code slot} and the tombstones in front of it back into EMPTY, if the slot ends its
+     * chain. Skipped while another thread reclaims, the sweep in {@link #expire()} catches up on those.
+     */
+    private void reclaim(int slot) {
+        if (keys.get(slot) != FREE || keys.get((slot + 1) & mask) != EMPTY || !reclaiming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            reclaims++;
+            // A live key never follows an EMPTY slot in its chain, so the slot in front of an EMPTY one ends no chain
+            for (int i = 0; i < maxProbe && keys.get((slot + 1) & mask) == EMPTY && keys.compareAndSet(slot, FREE, EMPTY); i++) {
+                slot = (slot - 1) & mask;
+            }
+        } finally {
+            reclaims++;
+            reclaiming.set(false);
+        }
+    }
+
+    // Backwards over a part of the table per call, for the tombstones a busy reclaim skipped
+    private void sweep() {
+        for (int i = Integer.min(SWEEP_SIZE, mask + 1); i > 0; i--) {
+            sweep = (sweep - 1) & mask;
+            reclaim(sweep);
+        }
+    }
+
+    /**
+     * Number of slots a lookup of the transaction visits, for tests.
+     */
+    int probeLength(int target, int transId) {
+        int home = home(id(target, transId));
+        for (int i = 0; i < maxProbe; i++) {
+            if (keys.get((home + i) & mask) == EMPTY) {
+                return i + 1;
+            }
+        }
+        return maxProbe;
+    }
+
+    private long tick(long nanos) {
+        return (nanos - startNanos) / tickNanos;
+    }
+
+    /***************************
+     *          Info
+     **************************/
+    public long inFlight() {
+        return inFlight.sum();
+    }
+
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    private static long id(int target, int transId) {
+        return (target & 0xFF) << Short.SIZE | transId & 0xFFFF;
+    }
+
+    private int home(long id) {
+        int h = (int) id * 0x9E3779B9;
+        return (h ^ h >>> 16) & mask;
+    }
+}
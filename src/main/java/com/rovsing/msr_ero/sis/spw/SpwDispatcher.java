@@ -0,0 +1,151 @@
+package com.rovsing.msr_ero.sis.spw;
+
+import com.rovsing.packetRouting.PackageKit.FieldLayout;
+import com.rovsing.packetRouting.PackageKit.PackageKit;
+import com.rovsing.packetRouting.PackageKit.PackagePool;
+import com.rovsing.packetRouting.PackageKit.PacketSchema;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Selects the {@link SpwPkgFactory} schema of a raw SpaceWire package and decodes it once into a pooled instance.
+ * The schema is looked up in a table indexed by the protocol id and the RMAP instruction bits {@code isCommand} and
+ * {@code isWrite}, which are read directly from the raw bytes. Unknown protocol ids map to no schema.
+ * <p>
+ * Instances handed out by {@link #dispatch(byte[], int, int)} go back with {@link #release(PackageKit)}. A
+ * dispatcher can be shared between threads.
+ */
+public class SpwDispatcher {
+    // protocolId (8 bits) followed by isCommand and isWrite
+    private static final int TABLE_SIZE = 1 << 10;
+
+    private final PackagePool[] table = new PackagePool[TABLE_SIZE];
+    private final PackagePool[] pools;
+    // All SpaceWire packages share the RMAP prefix layout up to the instruction
+    private final FieldLayout prefix = SpwPkgFactory.RMAP_WRITE.getLayout();
+    private final int protocolId = SpwPkgFactory.RMAP_WRITE.handle("protocolId");
+    private final int isCommand = SpwPkgFactory.RMAP_WRITE.handle("isCommand");
+    private final int isWrite = SpwPkgFactory.RMAP_WRITE.handle("isWrite");
+    private final int prefixSize = (prefix.bitOffset(isWrite) + prefix.bitSize(isWrite) + Byte.SIZE - 1) / Byte.SIZE;
+
+    public SpwDispatcher(int poolCapacity) {
+        pools = new PackagePool[]{
+                register(SpwPkgFactory.CPTP.newPool(poolCapacity)),
+                register(SpwPkgFactory.NATIVE.newPool(poolCapacity)),
+                register(SpwPkgFactory.RMAP_WRITE.newPool(poolCapacity), 1, 1),
+                register(SpwPkgFactory.RMAP_READ.newPool(poolCapacity), 1, 0),
+                register(SpwPkgFactory.RMAP_WRITE_REPLY.newPool(poolCapacity), 0, 1),
+                register(SpwPkgFactory.RMAP_READ_REPLY.newPool(poolCapacity), 0, 0)};
+    }
+
+    // Packages without RMAP instruction ignore the instruction bits
+    private PackagePool register(PackagePool pool) {
+        for (int command = 0; command < 2; command++) {
+            for (int write = 0; write < 2; write++) {
+                register(pool, command, write);
+            }
+        }
+        return pool;
+    }
+
+    private PackagePool register(PackagePool pool, int command, int write) {
+        PacketSchema schema = pool.getSchema();
+        table[key(schema.getDefault(schema.handle("protocolId")), command, write)] = pool;
+        return pool;
+    }
+
+    private static int key(long protocolId, long command, long write) {
+        return (int) (protocolId << 2 | command << 1 | write);
+    }
+
+    /***************************
+     *         Lookup
+     **************************/
+
+    /**
+     * Schema of the package in {@code buf[off, off + length)}, or null if its protocol id is unknown or it is
+     * shorter than the header of its schema.
+     */
+    public PacketSchema schemaOf(byte[] buf, int off, int length) {
+        PackagePool pool = poolOf(buf, off, length);
+        return pool == null ? null : pool.getSchema();
+    }
+
+    public PacketSchema schemaOf(ByteBuffer buf, int off, int length) {
+        PackagePool pool = poolOf(buf, off, length);
+        return pool == null ? null : pool.getSchema();
+    }
+
+    private PackagePool poolOf(byte[] buf, int off, int length) {
+        if (length < prefixSize) {
+            return null;
+        }
+        return fits(table[key(prefix.read(buf, off, protocolId), prefix.read(buf, off, isCommand), prefix.read(buf, off, isWrite))], length);
+    }
+
+    // Truncated packages are not decoded, decoding would pad their header with zeros
+    private static PackagePool fits(PackagePool pool, int length) {
+        return pool == null || length < pool.getSchema().headerSize() ? null : pool;
+    }
+
+    private PackagePool poolOf(ByteBuffer buf, int off, int length) {
+        if (length < prefixSize) {
+            return null;
+        }
+        return fits(table[key(prefix.read(buf, off, protocolId), prefix.read(buf, off, isCommand), prefix.read(buf, off, isWrite))], length);
+    }
+
+    /***************************
+     *        Dispatch
+     **************************/
+
+    /**
+     * Decode the package in {@code buf[off, off + length)} into a pooled instance of its schema. The payload is a
+     * view of {@code buf}.
+     *
+     * @return the decoded package, or null if the schema is unknown (see {@link #schemaOf(byte[], int, int)})
+     */
+    public PackageKit dispatch(byte[] buf, int off, int length) {
+        PackagePool pool = poolOf(buf, off, length);
+        if (pool == null) {
+            return null;
+        }
+        PackageKit kit = pool.acquire();
+        try {
+            return kit.decodeFrom(buf, off, length);
+        } catch (RuntimeException e) {
+            pool.release(kit);
+            throw e;
+        }
+    }
+
+    public PackageKit dispatch(ByteBuffer buf, int off, int length) {
+        PackagePool pool = poolOf(buf, off, length);
+        if (pool == null) {
+            return null;
+        }
+        PackageKit kit = pool.acquire();
+        try {
+            return kit.decodeFrom(buf, off, length);
+        } catch (RuntimeException e) {
+            pool.release(kit);
+            throw e;
+        }
+    }
+
+    /**
+     * Return a package handed out by this dispatcher to its pool.
+     */
+    public void release(PackageKit kit) {
+        pool(kit.getSchema()).release(kit);
+    }
+
+    public PackagePool pool(PacketSchema schema) {
+        for (PackagePool pool : pools) {
+            if (pool.getSchema() == schema) {
+                return pool;
+            }
+        }
+        throw new IllegalArgumentException("Package '" + schema.getName() + "' is not handled by " + getClass().getSimpleName());
+    }
+}
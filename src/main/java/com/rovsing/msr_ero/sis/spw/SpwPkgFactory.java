@@ -2,17 +2,52 @@ package com.rovsing.msr_ero.sis.spw;
 
 import com.rovsing.packetRouting.PackageKit.PackageKit;
 import com.rovsing.packetRouting.PackageKit.PackageKitChecksums;
+import com.rovsing.packetRouting.PackageKit.PacketSchema;
+import com.rovsing.packetRouting.PackageKit.SequenceCounters;
 
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Schemas of the SpaceWire packages. The templates are composed once when the class is loaded and compiled into
+ * immutable {@link PacketSchema}s, so factories are cheap to create and safe to use from any thread.
+ */
 public class SpwPkgFactory {
 
-    private static final PackageKit PUS_TC = new PackageKit("PUS_TC", PackageKitChecksums.crc16_std_PUS_ECSS_E_ST_70_41C_2016());
-    private static final PackageKit PUS_TM = new PackageKit("PUS_TM", PackageKitChecksums.crc16_std_PUS_ECSS_E_ST_70_41C_2016());
-    private static final PackageKit CPTP = new PackageKit("CPTP");
-    private static final PackageKit NATIVE = new PackageKit("NATIVE");
-    private static final PackageKit RMAP_WRITE = new PackageKit("RMAP_WRITE", PackageKitChecksums.crc8_RMAP_ECSS_E_ST_50_52C_2010(), true);
-    private static final PackageKit RMAP_WRITE_REPLY = new PackageKit("RMAP_WRITE_REPLY", PackageKitChecksums.crc8_RMAP_ECSS_E_ST_50_52C_2010(), true);
-    private static final PackageKit RMAP_READ = new PackageKit("RMAP_READ", PackageKitChecksums.crc8_RMAP_ECSS_E_ST_50_52C_2010(), true);
-    private static final PackageKit RMAP_READ_REPLY = new PackageKit("RMAP_READ_REPLY", PackageKitChecksums.crc8_RMAP_ECSS_E_ST_50_52C_2010(), true);
+    public static final PacketSchema PUS_TC;
+    public static final PacketSchema PUS_TM;
+    public static final PacketSchema CPTP;
+    public static final PacketSchema NATIVE;
+    public static final PacketSchema RMAP_WRITE;
+    public static final PacketSchema RMAP_WRITE_REPLY;
+    public static final PacketSchema RMAP_READ;
+    public static final PacketSchema RMAP_READ_REPLY;
+
+    /**
+     * PUS telecommand sequence counts per APID.
+     */
+    public static final SequenceCounters PUS_TC_SEQUENCE_COUNTS;
+    /**
+     * RMAP transaction identifiers per target logical address, shared by write and read commands.
+     */
+    public static final SequenceCounters RMAP_TRANSACTION_IDS;
+    public static final SequenceCounters.Stamp PUS_TC_SEQUENCE;
+    public static final SequenceCounters.Stamp RMAP_WRITE_TRANSACTION;
+    public static final SequenceCounters.Stamp RMAP_READ_TRANSACTION;
+
+    private static final Map<String, PacketSchema> SCHEMAS;
+
+    /*******************
+     *    Templates
+     ******************/
+    private static final PackageKit PUS_TC_TEMPLATE = new PackageKit("PUS_TC", PackageKitChecksums.crc16_std_PUS_ECSS_E_ST_70_41C_2016());
+    private static final PackageKit PUS_TM_TEMPLATE = new PackageKit("PUS_TM", PackageKitChecksums.crc16_std_PUS_ECSS_E_ST_70_41C_2016());
+    private static final PackageKit CPTP_TEMPLATE = new PackageKit("CPTP");
+    private static final PackageKit NATIVE_TEMPLATE = new PackageKit("NATIVE");
+    private static final PackageKit RMAP_WRITE_TEMPLATE = new PackageKit("RMAP_WRITE", PackageKitChecksums.crc8_RMAP_ECSS_E_ST_50_52C_2010(), true);
+    private static final PackageKit RMAP_WRITE_REPLY_TEMPLATE = new PackageKit("RMAP_WRITE_REPLY", PackageKitChecksums.crc8_RMAP_ECSS_E_ST_50_52C_2010(), true);
+    private static final PackageKit RMAP_READ_TEMPLATE = new PackageKit("RMAP_READ", PackageKitChecksums.crc8_RMAP_ECSS_E_ST_50_52C_2010(), true);
+    private static final PackageKit RMAP_READ_REPLY_TEMPLATE = new PackageKit("RMAP_READ_REPLY", PackageKitChecksums.crc8_RMAP_ECSS_E_ST_50_52C_2010(), true);
 
     /*******************
      *  Building Blocks
@@ -27,7 +62,7 @@ public class SpwPkgFactory {
     private static final PackageKit RMAP_COMMON_INITIATOR = new PackageKit("rmapCommonInitiator");
 
 
-    public SpwPkgFactory() {
+    static {
         /*******************
          *      Common
          ******************/
@@ -44,41 +79,41 @@ public class SpwPkgFactory {
         PUS_PRIME_HEADER.addField("seqFlags", 2);
         PUS_PRIME_HEADER.addField("seqCounter", 14);
 
-        PUS_TC.addFieldsFrom(PUS_PRIME_HEADER);
-        PUS_TC.addField("length", 16); // Set length here to use prime header in TM[1,1 and 7]
+        PUS_TC_TEMPLATE.addFieldsFrom(PUS_PRIME_HEADER);
+        PUS_TC_TEMPLATE.addField("length", 16); // Set length here to use prime header in TM[1,1 and 7]
 
-        PUS_TC.addField("pusVersion", 4);
-        PUS_TC.addField("ackFlags", 4);
-        PUS_TC.addField("service", 8);
-        PUS_TC.addField("subService", 8);
-        PUS_TC.addField("sourceId", 16);
+        PUS_TC_TEMPLATE.addField("pusVersion", 4);
+        PUS_TC_TEMPLATE.addField("ackFlags", 4);
+        PUS_TC_TEMPLATE.addField("service", 8);
+        PUS_TC_TEMPLATE.addField("subService", 8);
+        PUS_TC_TEMPLATE.addField("sourceId", 16);
 
-        PUS_TM.addFieldsFrom(PUS_PRIME_HEADER);
-        PUS_TM.addField("length", 16);
-        PUS_TM.getField("pkgType").setValue(0);
+        PUS_TM_TEMPLATE.addFieldsFrom(PUS_PRIME_HEADER);
+        PUS_TM_TEMPLATE.addField("length", 16);
+        PUS_TM_TEMPLATE.getField("pkgType").setValue(0);
 
 
-        PUS_TM.addField("pusVersion", 4);
-        PUS_TM.addField("timeRefStatus", 4);
-        PUS_TM.addField("service", 8);
-        PUS_TM.addField("subService", 8);
-        PUS_TM.addField("typeSeqCounter", 16);
-        PUS_TM.addField("destId", 16);
-//        PUS_TM.addField("time", 7 * 8);
+        PUS_TM_TEMPLATE.addField("pusVersion", 4);
+        PUS_TM_TEMPLATE.addField("timeRefStatus", 4);
+        PUS_TM_TEMPLATE.addField("service", 8);
+        PUS_TM_TEMPLATE.addField("subService", 8);
+        PUS_TM_TEMPLATE.addField("typeSeqCounter", 16);
+        PUS_TM_TEMPLATE.addField("destId", 16);
+        PUS_TM_TEMPLATE.addField("time", 7 * 8);
 
         /*******************
          *      CPTP
          ******************/
-        CPTP.addFieldsFrom(PROTOCOL_ID);
-        CPTP.getField("protocolId").setValue(2);
-        CPTP.addField("reserved", 8);
-        CPTP.addField("userApplication", 8);
+        CPTP_TEMPLATE.addFieldsFrom(PROTOCOL_ID);
+        CPTP_TEMPLATE.getField("protocolId").setValue(2);
+        CPTP_TEMPLATE.addField("reserved", 8);
+        CPTP_TEMPLATE.addField("userApplication", 8);
 
         /*******************
          *      NATIVE
          ******************/
-        NATIVE.addFieldsFrom(CPTP);
-        NATIVE.getField("protocolId").setValue(240);
+        NATIVE_TEMPLATE.addFieldsFrom(CPTP_TEMPLATE);
+        NATIVE_TEMPLATE.getField("protocolId").setValue(240);
 
         /*******************
          *      RMAP
@@ -104,50 +139,107 @@ public class SpwPkgFactory {
         RMAP_COMMON_INITIATOR.addField("dataLength", 24);
 
         /** Write */
-        RMAP_WRITE.addFieldsFrom(RMAP_COMMON_INITIATOR);
+        RMAP_WRITE_TEMPLATE.addFieldsFrom(RMAP_COMMON_INITIATOR);
         // Set values from config. PackageKit will truncate to bit-size thus no need to mask out bits
         // Values set here will be default values for all future instances of these packages.
 
-        RMAP_WRITE_REPLY.addFieldsFrom(RMAP_COMMON_ALL);
+        RMAP_WRITE_REPLY_TEMPLATE.addFieldsFrom(RMAP_COMMON_ALL);
 
         /** Read */
-        RMAP_READ.addFieldsFrom(RMAP_COMMON_INITIATOR);
+        RMAP_READ_TEMPLATE.addFieldsFrom(RMAP_COMMON_INITIATOR);
+
+        RMAP_READ_REPLY_TEMPLATE.addFieldsFrom(RMAP_COMMON_ALL);
+        RMAP_READ_REPLY_TEMPLATE.addField("reservedByte", 8);
+        RMAP_READ_REPLY_TEMPLATE.addField("dataLength", 24);
+
+        /*******************
+         *     Framing
+         ******************/
+        // PUS length is the packet data length minus one, counted behind the 6 byte primary header
+        PUS_TC_TEMPLATE.setPacketLengthField("length", 7);
+        PUS_TM_TEMPLATE.setPacketLengthField("length", 7);
+        RMAP_WRITE_TEMPLATE.setPayloadLengthField("dataLength");
+        RMAP_WRITE_REPLY_TEMPLATE.setHeaderOnlyFrame();
+        RMAP_READ_TEMPLATE.setHeaderOnlyFrame();
+        RMAP_READ_REPLY_TEMPLATE.setPayloadLengthField("dataLength");
+        // CPTP and NATIVE carry no length, they can only be framed by the transport
+
+        // Lengths are filled in by the encoder
+        PUS_TC_TEMPLATE.derivePacketLength("length", -7);
+        PUS_TM_TEMPLATE.derivePacketLength("length", -7);
+        RMAP_WRITE_TEMPLATE.derivePayloadLength("dataLength", 0);
+        RMAP_READ_REPLY_TEMPLATE.derivePayloadLength("dataLength", 0);
+
+        PUS_TC = PUS_TC_TEMPLATE.toSchema();
+        PUS_TM = PUS_TM_TEMPLATE.toSchema();
+        CPTP = CPTP_TEMPLATE.toSchema();
+        NATIVE = NATIVE_TEMPLATE.toSchema();
+        RMAP_WRITE = RMAP_WRITE_TEMPLATE.toSchema();
+        RMAP_WRITE_REPLY = RMAP_WRITE_REPLY_TEMPLATE.toSchema();
+        RMAP_READ = RMAP_READ_TEMPLATE.toSchema();
+        RMAP_READ_REPLY = RMAP_READ_REPLY_TEMPLATE.toSchema();
+        SCHEMAS = Map.of(
+                PUS_TC.getName(), PUS_TC,
+                PUS_TM.getName(), PUS_TM,
+                CPTP.getName(), CPTP,
+                NATIVE.getName(), NATIVE,
+                RMAP_WRITE.getName(), RMAP_WRITE,
+                RMAP_WRITE_REPLY.getName(), RMAP_WRITE_REPLY,
+                RMAP_READ.getName(), RMAP_READ,
+                RMAP_READ_REPLY.getName(), RMAP_READ_REPLY);
+
+        /*******************
+         *    Sequencing
+         ******************/
+        // Stamped by the encoder of packages opting in with setSequence()
+        PUS_TC_SEQUENCE_COUNTS = SequenceCounters.forFields(PUS_TC, "seqCounter", "apid");
+        RMAP_TRANSACTION_IDS = SequenceCounters.forFields(RMAP_WRITE, "transId", "logicAddress");
+        PUS_TC_SEQUENCE = PUS_TC_SEQUENCE_COUNTS.stamp(PUS_TC, "seqCounter", "apid");
+        RMAP_WRITE_TRANSACTION = RMAP_TRANSACTION_IDS.stamp(RMAP_WRITE, "transId", "logicAddress");
+        RMAP_READ_TRANSACTION = RMAP_TRANSACTION_IDS.stamp(RMAP_READ, "transId", "logicAddress");
+    }
+
+    public SpwPkgFactory() {
+    }
 
-        RMAP_READ_REPLY.addFieldsFrom(RMAP_COMMON_ALL);
-        RMAP_READ_REPLY.addField("reservedByte", 8);
-        RMAP_READ_REPLY.addField("dataLength", 24);
+    public static PacketSchema getSchema(String pkgName) {
+        PacketSchema schema = SCHEMAS.get(pkgName);
+        if (schema == null) {
+            throw new NoSuchElementException("No package named '" + pkgName + "' in " + SpwPkgFactory.class.getSimpleName());
+        }
+        return schema;
     }
 
     public PackageKit new_PUS_TC() {
-        return new PackageKit(PUS_TC);
+        return PUS_TC.newInstance();
     }
 
     public PackageKit new_PUS_TM() {
-        return new PackageKit(PUS_TM);
+        return PUS_TM.newInstance();
     }
 
     public PackageKit new_NATIVE() {
-        return new PackageKit(NATIVE);
+        return NATIVE.newInstance();
     }
 
     public PackageKit new_CPTP() {
-        return new PackageKit(CPTP);
+        return CPTP.newInstance();
     }
 
     public PackageKit new_RMAP_WRITE() {
-        return new PackageKit(RMAP_WRITE);
+        return RMAP_WRITE.newInstance();
     }
 
     public PackageKit new_RMAP_WRITE_REPLY() {
-        return new PackageKit(RMAP_WRITE_REPLY);
+        return RMAP_WRITE_REPLY.newInstance();
     }
 
     public PackageKit new_RMAP_READ() {
-        return new PackageKit(RMAP_READ);
+        return RMAP_READ.newInstance();
     }
 
     public PackageKit new_RMAP_READ_REPLY() {
-        return new PackageKit(RMAP_READ_REPLY);
+        return RMAP_READ_REPLY.newInstance();
     }
 
     public int getPusTMHeaderLength() {
@@ -0,0 +1,50 @@
+package com.rovsing.msr_ero.sis.spw.gateway;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free pool of equally sized direct buffers, scanned the same way as a
+ * {@link com.rovsing.packetRouting.PackageKit.PackagePool}. It never blocks: an empty pool allocates and a full pool
+ * drops released buffers.
+ */
+final class BufferPool {
+    private final int bufferSize;
+    private final AtomicReferenceArray<ByteBuffer> slots;
+
+    BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    ByteBuffer acquire() {
+        int start = startSlot();
+        for (int i = 0; i < slots.length(); i++) {
+            int slot = (start + i) % slots.length();
+            ByteBuffer buf = slots.get(slot);
+            if (buf != null && slots.compareAndSet(slot, buf, null)) {
+                return buf;
+            }
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    void release(ByteBuffer buf) {
+        buf.clear();
+        int start = startSlot();
+        for (int i = 0; i < slots.length(); i++) {
+            int slot = (start + i) % slots.length();
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, buf)) {
+                return;
+            }
+        }
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    private int startSlot() {
+        return (int) (Thread.currentThread().getId() % slots.length());
+    }
+}
@@ -0,0 +1,119 @@
+package com.rovsing.msr_ero.sis.spw.gateway;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector thread serving the links registered with it. Everything touching the selector or the read state of its
+ * links runs on this thread, other threads hand work over with {@link #execute(Runnable)}.
+ */
+final class EventLoop implements Runnable {
+    private final SpwGateway gateway;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    EventLoop(SpwGateway gateway, String name) throws IOException {
+        this.gateway = gateway;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run {@code task} on the loop thread, right away if called from it.
+     */
+    void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    void shutdown() throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        if (!inLoop()) {
+            thread.join();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                runTasks();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    Object attachment = key.attachment();
+                    try {
+                        if (attachment instanceof SpwLink) {
+                            ((SpwLink) attachment).onReady(key);
+                        } else {
+                            gateway.accept(key);
+                        }
+                    } catch (RuntimeException e) {
+                        // Only the link the key belongs to is affected
+                        if (attachment instanceof SpwLink) {
+                            ((SpwLink) attachment).close(e);
+                        } else {
+                            key.cancel();
+                        }
+                    }
+                }
+            }
+            runTasks();
+        } catch (IOException | ClosedSelectorException e) {
+            running = false;
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof SpwLink) {
+                    ((SpwLink) key.attachment()).close();
+                }
+            }
+            runTasks();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // Nothing left to release
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ignored) {
+                // Tasks close their link on failure, the loop keeps serving the others
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.rovsing.msr_ero.sis.spw.gateway;
+
+import com.rovsing.packetRouting.PackageKit.PackageKit;
+
+import java.nio.ByteBuffer;
+
+/**
+ * User callbacks of a {@link SpwGateway}, called on the I/O thread of the link. In {@link SpwGateway.Mode#EVENT_LOOP}
+ * mode that thread serves many links, so handlers must not block; in {@link SpwGateway.Mode#VIRTUAL_THREADS} mode
+ * every link has its own thread and handlers may block.
+ * <p>
+ * Exceptions thrown by a handler close the link and are reported to {@link #onClose(SpwLink, Throwable)}.
+ */
+@FunctionalInterface
+public interface PacketHandler {
+    /**
+     * A package was received. {@code pkg} is pooled and its payload is a view of the receive buffer, so both are
+     * only valid during the call.
+     */
+    void onPacket(SpwLink link, PackageKit pkg);
+
+    /**
+     * A frame of no known SpaceWire schema was received, {@code frame} is only valid during the call.
+     */
+    default void onUnknown(SpwLink link, ByteBuffer frame) {
+    }
+
+    default void onOpen(SpwLink link) {
+    }
+
+    /**
+     * The link was closed, {@code cause} is null when it was closed locally or the peer ended the stream between
+     * frames.
+     */
+    default void onClose(SpwLink link, Throwable cause) {
+    }
+}
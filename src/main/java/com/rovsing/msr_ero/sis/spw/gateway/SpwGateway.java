@@ -0,0 +1,367 @@
+package com.rovsing.msr_ero.sis.spw.gateway;
+
+import com.rovsing.msr_ero.sis.spw.SpwDispatcher;
+import com.rovsing.packetRouting.PackageKit.PackageKit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gateway between TCP links carrying SpaceWire packages and a {@link PacketHandler}. Every package travels as one
+ * frame: a 4 byte big-endian length followed by the package bytes, as produced by {@link PackageKit#encodeInto}.
+ * Received frames are decoded once into pooled {@link com.rovsing.msr_ero.sis.spw.SpwPkgFactory} packages through a
+ * {@link SpwDispatcher} and handed to the handler. Frames and packages are taken from pools, so the steady state
+ * creates no garbage per package.
+ * <p>
+ * The gateway accepts links after {@link #bind(SocketAddress)} and opens links with {@link #connect(SocketAddress)}.
+ * Two execution modes are available:
+ * <ul>
+ * <li>{@link Mode#EVENT_LOOP}: links are spread over a few selector threads, which suits thousands of mostly idle
+ * links. Handlers must not block.</li>
+ * <li>{@link Mode#VIRTUAL_THREADS}: a blocking read loop per link on its own virtual thread, handlers may block. On
+ * runtimes without virtual threads (before Java 21) small-stack platform threads are used instead.</li>
+ * </ul>
+ */
+public final class SpwGateway implements Closeable {
+    public enum Mode {
+        EVENT_LOOP,
+        VIRTUAL_THREADS
+    }
+
+    static final int FRAME_HEADER_SIZE = Integer.BYTES;
+    private static final int BUFFER_POOL_CAPACITY = 1024;
+    private static final int PACKAGE_POOL_CAPACITY = 64;
+    private static final long FALLBACK_STACK_SIZE = 256 * 1024;
+    private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+    private final Mode mode;
+    private final PacketHandler handler;
+    private final int maxFrameSize;
+    private final SpwDispatcher dispatcher = new SpwDispatcher(PACKAGE_POOL_CAPACITY);
+    private final BufferPool buffers;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ThreadFactory linkThreads;
+    private final Set<SpwLink> links = ConcurrentHashMap.newKeySet();
+    private final List<ServerSocketChannel> servers = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+
+    /**
+     * Gateway for packages up to {@code maxFrameSize} bytes, using one event loop per two processors in
+     * {@link Mode#EVENT_LOOP} mode.
+     */
+    public SpwGateway(Mode mode, int maxFrameSize, PacketHandler handler) throws IOException {
+        this(mode, maxFrameSize, Integer.max(1, Runtime.getRuntime().availableProcessors() / 2), handler);
+    }
+
+    public SpwGateway(Mode mode, int maxFrameSize, int eventLoops, PacketHandler handler) throws IOException {
+        if (maxFrameSize < 1) {
+            throw new IllegalArgumentException("SpwGateway maximum frame size must be positive (was " + maxFrameSize + ")");
+        }
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("SpwGateway needs at least one event loop (was " + eventLoops + ")");
+        }
+        this.mode = mode;
+        this.handler = handler;
+        this.maxFrameSize = maxFrameSize;
+        this.buffers = new BufferPool(FRAME_HEADER_SIZE + maxFrameSize, BUFFER_POOL_CAPACITY);
+        if (mode == Mode.EVENT_LOOP) {
+            loops = new EventLoop[eventLoops];
+            for (int i = 0; i < eventLoops; i++) {
+                loops[i] = new EventLoop(this, "spw-gateway-loop-" + i);
+            }
+            for (EventLoop loop : loops) {
+                loop.start();
+            }
+            linkThreads = null;
+        } else {
+            loops = null;
+            linkThreads = VIRTUAL_THREADS != null ? VIRTUAL_THREADS : platformThreadFactory();
+        }
+    }
+
+    /**
+     * True if {@link Mode#VIRTUAL_THREADS} runs on virtual threads, false if it falls back to platform threads.
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    /***************************
+     *          Links
+     **************************/
+
+    /**
+     * Accept links on {@code local}, e.g. {@code new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)}.
+     *
+     * @return the bound address, holding the actual port if port 0 was requested
+     */
+    public InetSocketAddress bind(SocketAddress local) throws IOException {
+        assertOpen();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.bind(local);
+            servers.add(server);
+            if (mode == Mode.EVENT_LOOP) {
+                server.configureBlocking(false);
+                EventLoop loop = loops[0];
+                loop.execute(() -> {
+                    try {
+                        server.register(loop.selector(), SelectionKey.OP_ACCEPT, server);
+                    } catch (IOException e) {
+                        closeQuietly(server);
+                    }
+                });
+            } else {
+                linkThreads.newThread(() -> acceptLoop(server)).start();
+            }
+            return (InetSocketAddress) server.getLocalAddress();
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(server);
+            throw e;
+        }
+    }
+
+    /**
+     * Open a link to a gateway listening on {@code remote}.
+     */
+    public SpwLink connect(SocketAddress remote) throws IOException {
+        assertOpen();
+        SocketChannel channel = SocketChannel.open(remote);
+        try {
+            return open(channel);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    public Collection<SpwLink> links() {
+        return Collections.unmodifiableSet(links);
+    }
+
+    /**
+     * Stop accepting, close all links and stop the event loops.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (ServerSocketChannel server : servers) {
+            closeQuietly(server);
+        }
+        for (SpwLink link : links) {
+            link.close();
+        }
+        if (loops != null) {
+            try {
+                for (EventLoop loop : loops) {
+                    loop.shutdown();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private SpwLink open(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        if (mode == Mode.EVENT_LOOP) {
+            channel.configureBlocking(false);
+            EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+            SpwLink link = new SpwLink(this, channel, loop);
+            links.add(link);
+            loop.execute(link::register);
+            return link;
+        }
+        SpwLink link = new SpwLink(this, channel, null);
+        links.add(link);
+        linkThreads.newThread(link::readLoop).start();
+        return link;
+    }
+
+    // Event loop thread, the key of a server channel is ready to accept
+    void accept(SelectionKey key) {
+        ServerSocketChannel server = (ServerSocketChannel) key.attachment();
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                openAccepted(channel);
+            }
+        } catch (IOException e) {
+            key.cancel();
+            closeQuietly(server);
+        }
+    }
+
+    private void acceptLoop(ServerSocketChannel server) {
+        try {
+            while (!closed) {
+                openAccepted(server.accept());
+            }
+        } catch (IOException e) {
+            // Closed with the gateway
+            closeQuietly(server);
+        }
+    }
+
+    private void openAccepted(SocketChannel channel) {
+        if (closed) {
+            closeQuietly(channel);
+            return;
+        }
+        try {
+            open(channel);
+        } catch (IOException e) {
+            closeQuietly(channel);
+        }
+    }
+
+    // Handler exceptions close the link they were called for, never the thread serving it
+    void opened(SpwLink link) {
+        try {
+            handler.onOpen(link);
+        } catch (RuntimeException e) {
+            link.close(e);
+        }
+    }
+
+    void closed(SpwLink link, Throwable cause) {
+        links.remove(link);
+        try {
+            handler.onClose(link, cause);
+        } catch (RuntimeException ignored) {
+            // The link is closed already, there is nothing left to report the failure to
+        }
+    }
+
+    /***************************
+     *         Frames
+     **************************/
+
+    // Hand the complete frames in buf to the handler and leave buf at the start of the incomplete frame
+    void deliver(SpwLink link, ByteBuffer buf) throws StreamCorruptedException {
+        while (link.isOpen() && buf.remaining() >= FRAME_HEADER_SIZE) {
+            int pos = buf.position();
+            int length = frameLength(link, buf.getInt(pos));
+            if (buf.remaining() < FRAME_HEADER_SIZE + length) {
+                return;
+            }
+            dispatch(link, buf, pos + FRAME_HEADER_SIZE, length);
+            buf.position(pos + FRAME_HEADER_SIZE + length);
+        }
+    }
+
+    int frameLength(SpwLink link, int length) throws StreamCorruptedException {
+        if (length < 0 || length > maxFrameSize) {
+            throw new StreamCorruptedException(link + ": invalid frame size " + length + " (maximum " + maxFrameSize + ")");
+        }
+        return length;
+    }
+
+    void dispatch(SpwLink link, ByteBuffer buf, int off, int length) {
+        PackageKit pkg = dispatcher.dispatch(buf, off, length);
+        if (pkg == null) {
+            handler.onUnknown(link, buf.slice(off, length).asReadOnlyBuffer());
+            return;
+        }
+        try {
+            handler.onPacket(link, pkg);
+        } finally {
+            dispatcher.release(pkg);
+        }
+    }
+
+    void encode(PackageKit pkg, ByteBuffer frame) {
+        int size = pkg.encodedSize();
+        if (size > maxFrameSize) {
+            throw new IllegalArgumentException("PackageKit '" + pkg.getPkgName() + "' of " + size + " bytes exceeds the maximum frame size " + maxFrameSize);
+        }
+        frame.putInt(size);
+        pkg.encodeInto(frame);
+        frame.flip();
+    }
+
+    void frame(ByteBuffer pkg, ByteBuffer frame) {
+        int size = pkg.remaining();
+        if (size > maxFrameSize) {
+            throw new IllegalArgumentException("Package of " + size + " bytes exceeds the maximum frame size " + maxFrameSize);
+        }
+        frame.putInt(size).put(pkg).flip();
+    }
+
+    ByteBuffer acquire() {
+        return buffers.acquire();
+    }
+
+    void release(ByteBuffer buf) {
+        buffers.release(buf);
+    }
+
+    /***************************
+     *          Info
+     **************************/
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /***************************
+     *        Internals
+     **************************/
+    private void assertOpen() throws IOException {
+        if (closed) {
+            throw new IOException("SpwGateway is closed");
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // Nothing left to release
+        }
+    }
+
+    // Thread.ofVirtual() is looked up reflectively, so the gateway also runs on runtimes before Java 21
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "spw-link-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory platformThreadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(null, task, "spw-link-" + count.getAndIncrement(), FALLBACK_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
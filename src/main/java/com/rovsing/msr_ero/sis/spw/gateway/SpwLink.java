@@ -0,0 +1,308 @@
+package com.rovsing.msr_ero.sis.spw.gateway;
+
+import com.rovsing.packetRouting.PackageKit.PackageKit;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One connection of a {@link SpwGateway}. Packages can be sent from any thread.
+ * <p>
+ * In {@link SpwGateway.Mode#EVENT_LOOP} mode a link only holds a pooled receive buffer while a frame is incomplete
+ * and queues outgoing frames for its event loop, so an idle link costs little more than its socket. In
+ * {@link SpwGateway.Mode#VIRTUAL_THREADS} mode the link thread reads the frame header into a 4 byte buffer and only
+ * takes a pooled buffer for the frame itself.
+ */
+public final class SpwLink {
+    private final SpwGateway gateway;
+    private final SocketChannel channel;
+    private final SocketAddress remoteAddress;
+    // Event loop mode
+    private final EventLoop loop;
+    private final Queue<ByteBuffer> writeQueue;
+    private final AtomicBoolean flushScheduled;
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private boolean reading;
+    // Virtual thread mode
+    private final ReentrantLock writeLock;
+    private final ByteBuffer header;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile Object attachment;
+
+    SpwLink(SpwGateway gateway, SocketChannel channel, EventLoop loop) throws IOException {
+        this.gateway = gateway;
+        this.channel = channel;
+        this.remoteAddress = channel.getRemoteAddress();
+        this.loop = loop;
+        if (loop != null) {
+            writeQueue = new ConcurrentLinkedQueue<>();
+            flushScheduled = new AtomicBoolean();
+            writeLock = null;
+            header = null;
+        } else {
+            writeQueue = null;
+            flushScheduled = null;
+            writeLock = new ReentrantLock();
+            header = ByteBuffer.allocate(SpwGateway.FRAME_HEADER_SIZE);
+        }
+    }
+
+    /***************************
+     *          Send
+     **************************/
+
+    /**
+     * Encode {@code pkg} into a pooled buffer and send it. In event loop mode the frame is queued and written by the
+     * event loop, in virtual thread mode it is written before returning.
+     *
+     * @throws IllegalArgumentException if the package is larger than the maximum frame size
+     * @throws ClosedChannelException   if the link is closed
+     */
+    public void send(PackageKit pkg) throws IOException {
+        ByteBuffer frame = gateway.acquire();
+        try {
+            gateway.encode(pkg, frame);
+        } catch (RuntimeException e) {
+            gateway.release(frame);
+            throw e;
+        }
+        write(frame);
+    }
+
+    /**
+     * Send the remaining bytes of {@code pkg} as one frame.
+     */
+    public void send(ByteBuffer pkg) throws IOException {
+        ByteBuffer frame = gateway.acquire();
+        try {
+            gateway.frame(pkg, frame);
+        } catch (RuntimeException e) {
+            gateway.release(frame);
+            throw e;
+        }
+        write(frame);
+    }
+
+    private void write(ByteBuffer frame) throws IOException {
+        if (closed.get()) {
+            gateway.release(frame);
+            throw new ClosedChannelException();
+        }
+        if (loop == null) {
+            writeLock.lock();
+            try {
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            } finally {
+                writeLock.unlock();
+                gateway.release(frame);
+            }
+            return;
+        }
+        writeQueue.add(frame);
+        if (loop.inLoop()) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::scheduledFlush);
+        }
+    }
+
+    private void scheduledFlush() {
+        flushScheduled.set(false);
+        flush();
+    }
+
+    // Event loop thread only
+    private void flush() {
+        if (key == null || !key.isValid()) {
+            if (closed.get()) {
+                drainWriteQueue();
+            }
+            return;
+        }
+        try {
+            ByteBuffer frame;
+            while ((frame = writeQueue.peek()) != null) {
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.poll();
+                gateway.release(frame);
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    /***************************
+     *         Receive
+     **************************/
+
+    // Event loop thread only
+    void register() {
+        try {
+            key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            close(e);
+            return;
+        }
+        gateway.opened(this);
+        flush();
+    }
+
+    // Event loop thread only
+    void onReady(SelectionKey key) {
+        try {
+            if (key.isWritable()) {
+                flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+        } catch (IOException | RuntimeException e) {
+            close(e);
+        }
+    }
+
+    private void read() throws IOException {
+        if (readBuffer == null) {
+            readBuffer = gateway.acquire();
+        }
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            close(readBuffer.position() == 0 ? null : new EOFException("Link " + remoteAddress + " ended inside a frame"));
+            return;
+        }
+        readBuffer.flip();
+        reading = true;
+        try {
+            gateway.deliver(this, readBuffer);
+        } finally {
+            reading = false;
+        }
+        if (closed.get()) {
+            // Closed by a handler while the buffer was in use
+            releaseBuffers();
+        } else if (readBuffer.hasRemaining()) {
+            readBuffer.compact();
+        } else {
+            gateway.release(readBuffer);
+            readBuffer = null;
+        }
+    }
+
+    // Link thread of virtual thread mode
+    void readLoop() {
+        gateway.opened(this);
+        try {
+            while (readFully(header.clear(), true)) {
+                int length = gateway.frameLength(this, header.getInt(0));
+                ByteBuffer frame = gateway.acquire();
+                try {
+                    frame.limit(length);
+                    readFully(frame, false);
+                    gateway.dispatch(this, frame, 0, length);
+                } finally {
+                    gateway.release(frame);
+                }
+            }
+            close(null);
+        } catch (IOException | RuntimeException e) {
+            close(e);
+        }
+    }
+
+    // Fill buf up to its limit. False on a clean end of stream before the first byte, if allowed.
+    private boolean readFully(ByteBuffer buf, boolean endAllowed) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                if (endAllowed && buf.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Link " + remoteAddress + " ended inside a frame");
+            }
+        }
+        return true;
+    }
+
+    /***************************
+     *          Close
+     **************************/
+    public void close() {
+        close(null);
+    }
+
+    void close(Throwable cause) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // The link is gone either way
+        }
+        if (loop != null) {
+            loop.execute(this::releaseBuffers);
+        }
+        gateway.closed(this, cause);
+    }
+
+    // Event loop thread only
+    private void releaseBuffers() {
+        if (readBuffer != null && !reading) {
+            gateway.release(readBuffer);
+            readBuffer = null;
+        }
+        drainWriteQueue();
+    }
+
+    private void drainWriteQueue() {
+        ByteBuffer frame;
+        while ((frame = writeQueue.poll()) != null) {
+            gateway.release(frame);
+        }
+    }
+
+    /***************************
+     *          Info
+     **************************/
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public SpwGateway getGateway() {
+        return gateway;
+    }
+
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    @Override
+    public String toString() {
+        return "SpwLink " + remoteAddress + (isOpen() ? "" : " (closed)");
+    }
+}
@@ -0,0 +1,300 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Append-only writer of a {@link PacketArchive}. Packages are written back to back into segment files, which are
+ * plain captures readable by {@link CaptureFile} as well. For every package the values of the index fields are kept
+ * and written into the sidecar index of the segment when it is sealed: when it reaches the segment size, on
+ * {@link #seal()} and on {@link #close()}. The index is written to a temporary file and moved into place, so
+ * readers only ever see complete segments. A segment is sealed early if its index would outgrow what a reader can
+ * map.
+ * <p>
+ * A writer is not thread-safe.
+ */
+public final class ArchiveWriter implements Closeable {
+    private static final long DEFAULT_SEGMENT_SIZE = 256L << 20;
+    private static final int WRITE_BUFFER_SIZE = 64 << 10;
+    // Largest index a reader can map into one buffer, and the writer allocate
+    private static final long MAX_INDEX_SIZE = Integer.MAX_VALUE - 8;
+
+    private final Path dir;
+    private final PacketSchema schema;
+    private final String[] indexFields;
+    private final int[] indexHandles;
+    private final long segmentSize;
+    // Index entries of the open segment: the key values followed by offset << 32 | length
+    private final int stride;
+    private final int indexHeaderSize;
+    private final int maxCount;
+    private long[] entries;
+    private int count;
+    private FileChannel data;
+    private int segment;
+    private long dataSize;
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private boolean closed;
+
+    /**
+     * Writer adding segments of up to 256 MiB to the archive in {@code dir}, indexed on {@code indexFields}. Put
+     * the fields most often queried for equality first, e.g. {@code "apid", "service", "seqCounter"}. Segments are
+     * smaller if the index of a segment full of the smallest packages would not fit {@link #maxSegmentSize}.
+     */
+    public ArchiveWriter(Path dir, PacketSchema schema, String... indexFields) throws IOException {
+        this(dir, schema, Long.min(DEFAULT_SEGMENT_SIZE, maxSegmentSize(schema, indexFields)), indexFields);
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code segmentSize} exceeds {@link #maxSegmentSize}
+     */
+    public ArchiveWriter(Path dir, PacketSchema schema, long segmentSize, String... indexFields) throws IOException {
+        if (indexFields.length == 0) {
+            throw new IllegalArgumentException("ArchiveWriter needs at least one index field");
+        }
+        long maxSegmentSize = maxSegmentSize(schema, indexFields);
+        if (segmentSize < 1 || segmentSize > maxSegmentSize) {
+            throw new IllegalArgumentException("ArchiveWriter segment size for " + schema.getName() + " indexed on " + indexFields.length + " fields must be within [1, " + maxSegmentSize + "] (was " + segmentSize + ")");
+        }
+        schema.assertHeaderSize(schema.getName());
+        this.dir = dir;
+        this.schema = schema;
+        this.indexFields = indexFields.clone();
+        this.indexHandles = new int[indexFields.length];
+        for (int i = 0; i < indexFields.length; i++) {
+            indexHandles[i] = schema.handle(indexFields[i]);
+        }
+        this.segmentSize = segmentSize;
+        this.stride = indexFields.length + 1;
+        this.indexHeaderSize = indexHeaderSize(schema, indexFields);
+        this.maxCount = maxCount(indexHeaderSize, stride);
+        this.entries = new long[stride * 1024];
+        Files.createDirectories(dir);
+        // Continue after the last segment, an unsealed one of a previous writer is left to be repaired by hand
+        this.segment = PacketArchive.segmentNumbers(dir).stream().mapToInt(Integer::intValue).max().orElse(-1) + 1;
+    }
+
+    /***************************
+     *         Append
+     **************************/
+
+    /**
+     * Encode {@code pkg} (see {@link PackageKit#encodeInto(ByteBuffer)}) and append it.
+     */
+    public void append(PackageKit pkg) throws IOException {
+        if (pkg.getSchema() != schema) {
+            throw new IllegalArgumentException("PackageKit '" + pkg.getPkgName() + "' does not have the schema '" + schema.getName() + "' of the archive");
+        }
+        int size = pkg.encodedSize();
+        int off = reserve(size);
+        pkg.encodeInto(writeBuffer);
+        record(writeBuffer, off, size);
+    }
+
+    /**
+     * Append the raw package in {@code src[off, off + length)}, e.g. a received frame.
+     */
+    public void append(ByteBuffer src, int off, int length) throws IOException {
+        if (length < schema.headerSize()) {
+            throw new IllegalArgumentException("Package of " + length + " bytes is shorter than the " + schema.getName() + " header (" + schema.headerSize() + ")");
+        }
+        int pos = reserve(length);
+        writeBuffer.put(pos, src, off, length).position(pos + length);
+        record(writeBuffer, pos, length);
+    }
+
+    /**
+     * Write buffered packages to the open segment. They become visible to readers when the segment is sealed.
+     */
+    public void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            data.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * Seal the open segment, if any, and write its index. The next package starts a new segment.
+     */
+    public void seal() throws IOException {
+        if (data == null) {
+            return;
+        }
+        flush();
+        data.force(false);
+        data.close();
+        data = null;
+        writeIndex();
+        segment++;
+        count = 0;
+        dataSize = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            seal();
+        }
+    }
+
+    public PacketSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Largest segment size whose index can be mapped by a reader, for a segment full of packages of
+     * {@code schema} no longer than its header.
+     */
+    public static long maxSegmentSize(PacketSchema schema, String... indexFields) {
+        long packages = maxCount(indexHeaderSize(schema, indexFields), indexFields.length + 1);
+        return Long.min(Integer.MAX_VALUE, (packages + 1) * Integer.max(1, schema.headerSize()) - 1);
+    }
+
+    /***************************
+     *        Internals
+     **************************/
+
+    // Make room for a package of size bytes and return its position in the write buffer
+    private int reserve(int size) throws IOException {
+        if (closed) {
+            throw new IOException("ArchiveWriter is closed");
+        }
+        if (data != null && count > 0 && (dataSize + size > segmentSize || count == maxCount)) {
+            seal();
+        }
+        if (data == null) {
+            data = FileChannel.open(PacketArchive.dataPath(dir, segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+        if (writeBuffer.remaining() < size) {
+            flush();
+            if (writeBuffer.capacity() < size) {
+                writeBuffer = ByteBuffer.allocateDirect(size);
+            }
+        }
+        return writeBuffer.position();
+    }
+
+    private void record(ByteBuffer buf, int off, int length) {
+        if ((count + 1) * stride > entries.length) {
+            // count < maxCount, so the entries of a full segment fit an int
+            entries = Arrays.copyOf(entries, (int) Long.min(entries.length * 2L, (long) maxCount * stride));
+        }
+        FieldLayout layout = schema.getLayout();
+        int e = count * stride;
+        for (int i = 0; i < indexHandles.length; i++) {
+            entries[e + i] = layout.read(buf, off, indexHandles[i]);
+        }
+        entries[e + indexHandles.length] = dataSize << 32 | length;
+        dataSize += length;
+        count++;
+    }
+
+    private void writeIndex() throws IOException {
+        int keys = indexHandles.length;
+        int[] order = sortedOrder();
+        long[] min = new long[keys];
+        long[] max = new long[keys];
+        Arrays.fill(min, -1L);
+        for (int i = 0; i < count; i++) {
+            for (int k = 0; k < keys; k++) {
+                long value = entries[i * stride + k];
+                min[k] = Long.compareUnsigned(value, min[k]) < 0 ? value : min[k];
+                max[k] = Long.compareUnsigned(value, max[k]) > 0 ? value : max[k];
+            }
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(Math.toIntExact(indexHeaderSize + (long) count * stride * Long.BYTES));
+        index.putInt(PacketArchive.INDEX_MAGIC).putInt(PacketArchive.INDEX_VERSION).putInt(keys).putInt(count);
+        putName(index, schema.getName());
+        for (String field : indexFields) {
+            putName(index, field);
+        }
+        for (int k = 0; k < keys; k++) {
+            index.putLong(min[k]).putLong(max[k]);
+        }
+        for (int i : order) {
+            for (int k = 0; k < stride; k++) {
+                index.putLong(entries[i * stride + k]);
+            }
+        }
+        index.flip();
+
+        Path target = PacketArchive.indexPath(dir, segment);
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (index.hasRemaining()) {
+                channel.write(index);
+            }
+            channel.force(false);
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void putName(ByteBuffer index, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        index.putShort((short) bytes.length).put(bytes);
+    }
+
+    // Index bytes in front of the entries: counts, names and the min/max of every key
+    private static int indexHeaderSize(PacketSchema schema, String[] indexFields) {
+        int size = 4 * Integer.BYTES + Short.BYTES + schema.getName().getBytes(StandardCharsets.UTF_8).length;
+        for (String field : indexFields) {
+            size += Short.BYTES + field.getBytes(StandardCharsets.UTF_8).length + 2 * Long.BYTES;
+        }
+        return size;
+    }
+
+    // Most entries an index can hold
+    private static int maxCount(int indexHeaderSize, int stride) {
+        return (int) ((MAX_INDEX_SIZE - indexHeaderSize) / ((long) stride * Long.BYTES));
+    }
+
+    // Entries ordered by their keys (unsigned), packages with equal keys in archive order
+    private int[] sortedOrder() {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        int[] tmp = new int[count];
+        for (int width = 1; width < count; width *= 2) {
+            for (int lo = 0; lo < count - width; lo += 2 * width) {
+                int mid = lo + width;
+                int hi = Integer.min(lo + 2 * width, count);
+                int a = lo;
+                int b = mid;
+                int t = lo;
+                while (a < mid && b < hi) {
+                    tmp[t++] = compareKeys(order[b], order[a]) < 0 ? order[b++] : order[a++];
+                }
+                while (a < mid) {
+                    tmp[t++] = order[a++];
+                }
+                while (b < hi) {
+                    tmp[t++] = order[b++];
+                }
+                System.arraycopy(tmp, lo, order, lo, hi - lo);
+            }
+        }
+        return order;
+    }
+
+    private int compareKeys(int a, int b) {
+        for (int k = 0; k < indexHandles.length; k++) {
+            int c = Long.compareUnsigned(entries[a * stride + k], entries[b * stride + k]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+}
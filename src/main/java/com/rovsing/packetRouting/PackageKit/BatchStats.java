@@ -0,0 +1,138 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Mergeable totals of a bulk decode: package and checksum failure counts and unsigned min/max/sum per field. Each
+ * worker fills its own instance, results are combined with {@link #merge(BatchStats)} so no state is shared while
+ * decoding.
+ */
+public final class BatchStats {
+    private final String[] fieldNames;
+    private final long[] min;
+    private final long[] max;
+    private final long[] sum;
+    private long packages;
+    private long checksumFailures;
+    private long malformed;
+    private long trailingBytes;
+
+    public BatchStats(String... fieldNames) {
+        this.fieldNames = fieldNames.clone();
+        this.min = new long[fieldNames.length];
+        this.max = new long[fieldNames.length];
+        this.sum = new long[fieldNames.length];
+        Arrays.fill(min, -1L);
+    }
+
+    /**
+     * Add the rows of {@code batch}. Its columns must be the fields of these stats, in the same order.
+     */
+    public BatchStats add(PacketBatch batch) {
+        for (int row = 0; row < batch.size(); row++) {
+            for (int c = 0; c < fieldNames.length; c++) {
+                long value = batch.getLong(row, c);
+                min[c] = Long.compareUnsigned(value, min[c]) < 0 ? value : min[c];
+                max[c] = Long.compareUnsigned(value, max[c]) > 0 ? value : max[c];
+                sum[c] += value;
+            }
+        }
+        packages += batch.size();
+        checksumFailures += batch.size() - batch.checksumOk().cardinality();
+        return this;
+    }
+
+    public BatchStats merge(BatchStats other) {
+        for (int c = 0; c < fieldNames.length; c++) {
+            min[c] = Long.compareUnsigned(other.min[c], min[c]) < 0 ? other.min[c] : min[c];
+            max[c] = Long.compareUnsigned(other.max[c], max[c]) > 0 ? other.max[c] : max[c];
+            sum[c] += other.sum[c];
+        }
+        packages += other.packages;
+        checksumFailures += other.checksumFailures;
+        malformed += other.malformed;
+        trailingBytes += other.trailingBytes;
+        return this;
+    }
+
+    void addMalformed() {
+        malformed++;
+    }
+
+    void addTrailingBytes(long bytes) {
+        trailingBytes += bytes;
+    }
+
+    /***************************
+     *         Info
+     **************************/
+    public long packages() {
+        return packages;
+    }
+
+    public long checksumFailures() {
+        return checksumFailures;
+    }
+
+    /**
+     * Buffers that could not be decoded (invalid frame size or smaller than the header), counted once per buffer.
+     */
+    public long malformed() {
+        return malformed;
+    }
+
+    /**
+     * Bytes left behind the last complete package of the buffers.
+     */
+    public long trailingBytes() {
+        return trailingBytes;
+    }
+
+    /**
+     * Smallest value of the field, unsigned. -1 (all bits set) while no package was added.
+     */
+    public long min(String fieldName) {
+        return min[column(fieldName)];
+    }
+
+    public long max(String fieldName) {
+        return max[column(fieldName)];
+    }
+
+    /**
+     * Sum of the field values, wrapping on overflow.
+     */
+    public long sum(String fieldName) {
+        return sum[column(fieldName)];
+    }
+
+    public double mean(String fieldName) {
+        return packages == 0 ? 0 : (double) sum(fieldName) / packages;
+    }
+
+    private int column(String fieldName) {
+        for (int c = 0; c < fieldNames.length; c++) {
+            if (fieldNames[c].equals(fieldName)) {
+                return c;
+            }
+        }
+        throw new NoSuchElementException("Field: '" + fieldName + "' is not part of these stats");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Packages: ").append(packages)
+                .append(", checksum failures: ").append(checksumFailures)
+                .append(", malformed: ").append(malformed)
+                .append(", trailing bytes: ").append(trailingBytes);
+        for (int c = 0; c < fieldNames.length; c++) {
+            sb.append('\n').append(fieldNames[c])
+                    .append(" min ").append(Long.toUnsignedString(min[c]))
+                    .append(" max ").append(Long.toUnsignedString(max[c]))
+                    .append(" sum ").append(Long.toUnsignedString(sum[c]));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,212 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Read-only, memory-mapped capture file of concatenated packages of one {@link PacketSchema}, as recorded from a
+ * stream. Opening the file walks it once with the schema framing (see {@link PacketSchema#frameSize(ByteBuffer, int)})
+ * and builds an offset index, after which every package is addressed by its index without reading the file again.
+ * <p>
+ * Files larger than 2 GiB are mapped in windows that start at package boundaries, so no package spans two windows.
+ * Views and decoded packages point into the mapping and are valid until the file is closed. A truncated package at
+ * the end of the file (e.g. an interrupted recording) is not indexed, see {@link #trailingBytes()}.
+ */
+public final class CaptureFile implements Closeable {
+    private static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+    // Packages decoded by one task of forEachParallel
+    private static final int CHUNK_SIZE = 4096;
+
+    private final PacketSchema schema;
+    private final FileChannel channel;
+    private final long fileSize;
+    private MappedByteBuffer[] windows = new MappedByteBuffer[0];
+    private long[] windowStart = new long[0];
+    // First package index of each window
+    private int[] windowFirst = new int[0];
+    // Package i is at [offsets[i], offsets[i + 1]) in the file
+    private long[] offsets = new long[1024];
+    private int count;
+
+    public CaptureFile(Path path, PacketSchema schema) throws IOException {
+        this(path, schema, DEFAULT_WINDOW_SIZE);
+    }
+
+    CaptureFile(Path path, PacketSchema schema, int windowSize) throws IOException {
+        if (!schema.isFramed()) {
+            throw new IllegalArgumentException("Package '" + schema.getName() + "' has no length field and can not be indexed in a capture");
+        }
+        this.schema = schema;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.fileSize = channel.size();
+            index(windowSize);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /***************************
+     *         Index
+     **************************/
+    private void index(int windowSize) throws IOException {
+        int prefixSize = schema.framePrefixSize();
+        long pos = 0;
+        MappedByteBuffer window = null;
+        long start = 0;
+        while (pos < fileSize) {
+            long windowEnd = window == null ? 0 : start + window.limit();
+            long size = -1;
+            if (pos + prefixSize <= windowEnd) {
+                size = schema.frameSize(window, (int) (pos - start));
+                if (size < schema.headerSize() || size > windowSize) {
+                    throw new StreamCorruptedException(schema.getName() + ": invalid frame size " + size + " at offset " + pos);
+                }
+            }
+            if (size < 0 || pos + size > windowEnd) {
+                if (windowEnd == fileSize) {
+                    // Truncated package at the end of the file
+                    break;
+                }
+                start = pos;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, start, Long.min(windowSize, fileSize - start));
+                addWindow(window, start);
+                continue;
+            }
+            addPackage(pos);
+            pos += size;
+        }
+        offsets[count] = pos;
+    }
+
+    private void addWindow(MappedByteBuffer window, long start) {
+        int n = windows.length;
+        windows = Arrays.copyOf(windows, n + 1);
+        windowStart = Arrays.copyOf(windowStart, n + 1);
+        windowFirst = Arrays.copyOf(windowFirst, n + 1);
+        windows[n] = window;
+        windowStart[n] = start;
+        windowFirst[n] = count;
+    }
+
+    private void addPackage(long offset) {
+        if (count + 1 >= offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[count++] = offset;
+    }
+
+    /***************************
+     *         Access
+     **************************/
+    public int packageCount() {
+        return count;
+    }
+
+    public long offset(int index) {
+        Objects.checkIndex(index, count);
+        return offsets[index];
+    }
+
+    public int length(int index) {
+        Objects.checkIndex(index, count);
+        return (int) (offsets[index + 1] - offsets[index]);
+    }
+
+    /**
+     * Point {@code view} (see {@link PacketSchema#newView()}) at package {@code index}. Nothing is copied.
+     */
+    public PackageView view(int index, PackageView view) {
+        int w = window(index);
+        return view.wrap(windows[w], (int) (offsets[index] - windowStart[w]));
+    }
+
+    /**
+     * Decode package {@code index} into {@code kit}. The payload is a view of the mapping.
+     */
+    public PackageKit decode(int index, PackageKit kit) {
+        int w = window(index);
+        return kit.decodeFrom(windows[w], (int) (offsets[index] - windowStart[w]), length(index));
+    }
+
+    /**
+     * Read-only buffer of package {@code index}.
+     */
+    public ByteBuffer packageBuffer(int index) {
+        int w = window(index);
+        return windows[w].slice((int) (offsets[index] - windowStart[w]), length(index)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Decode all packages in chunks on the common fork/join pool. Each chunk decodes into one instance taken from
+     * {@code pool} and calls {@code action} with it and the package index. The instance goes back to the pool when
+     * the chunk is done. Packages of one chunk are visited in order, chunks run concurrently.
+     */
+    public void forEachParallel(PackagePool pool, ObjIntConsumer<PackageKit> action) {
+        if (pool.getSchema() != schema) {
+            throw new IllegalArgumentException("PackagePool of '" + pool.getSchema().getName() + "' can not decode the '" + schema.getName() + "' capture");
+        }
+        IntStream.range(0, chunks()).parallel().forEach(chunk -> {
+            PackageKit kit = pool.acquire();
+            try {
+                decodeChunk(chunk, kit, action);
+            } finally {
+                pool.release(kit);
+            }
+        });
+    }
+
+    /**
+     * Like {@link #forEachParallel(PackagePool, ObjIntConsumer)}, decoding each chunk into an instance created by
+     * {@code kits} (e.g. {@code schema::newInstance}). Instances are not returned anywhere, so the supplier must
+     * allocate rather than take them from a pool.
+     */
+    public void forEachParallel(Supplier<PackageKit> kits, ObjIntConsumer<PackageKit> action) {
+        IntStream.range(0, chunks()).parallel().forEach(chunk -> decodeChunk(chunk, kits.get(), action));
+    }
+
+    private int chunks() {
+        return (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    private void decodeChunk(int chunk, PackageKit kit, ObjIntConsumer<PackageKit> action) {
+        int end = Integer.min(count, (chunk + 1) * CHUNK_SIZE);
+        for (int i = chunk * CHUNK_SIZE; i < end; i++) {
+            action.accept(decode(i, kit), i);
+        }
+    }
+
+    /**
+     * Bytes at the end of the file that do not form a complete package.
+     */
+    public long trailingBytes() {
+        return fileSize - offsets[count];
+    }
+
+    public PacketSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int window(int index) {
+        Objects.checkIndex(index, count);
+        int w = Arrays.binarySearch(windowFirst, index);
+        return w < 0 ? -w - 2 : w;
+    }
+}
@@ -0,0 +1,573 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Source generator of specialised codecs for schemas fixed at build time. Every generated class has a typed getter
+ * and setter per field, encodes and decodes its header with straight-line shift/mask code over constant offsets and
+ * carries the CRC table of its checksum, so the JIT sees no layout interpretation at all. The method names follow
+ * {@link PackageKit} ({@code encodeInto}, {@code decodeFrom}, {@code toBytes}, {@code isChecksumOk}, ...) and
+ * {@code toPackageKit()} / {@code from(PackageKit)} convert between both. Packages decode to the same values and
+ * checksum results as with {@link PackageKit}, except that input shorter than the header is rejected instead of
+ * being padded.
+ * <p>
+ * Run by the {@code generateCodecs} Gradle task as
+ * {@code CodecGenerator <output dir> <target package> <schema holder class>...}, generating one class per public
+ * static {@link PacketSchema} field of each holder class, e.g. {@code PUS_TC} becomes {@code PusTcCodec}.
+ */
+public final class CodecGenerator {
+    private static final String INDENT = "    ";
+
+    private final StringBuilder out = new StringBuilder();
+    private final PacketSchema schema;
+    private final String holder;
+    private final String fieldName;
+    private final String className;
+    private final FieldLayout layout;
+    private final PackageKitChecksums checksum;
+    private final int headerBytes;
+    private final int pec;
+
+    private CodecGenerator(PacketSchema schema, String holder, String fieldName) {
+        this.schema = schema;
+        this.holder = holder;
+        this.fieldName = fieldName;
+        this.className = className(schema.getName());
+        this.layout = schema.getLayout();
+        this.checksum = schema.getChecksum();
+        this.headerBytes = layout.byteSize();
+        this.pec = schema.getPecSizePayload();
+    }
+
+    public static void main(String[] args) throws IOException, ReflectiveOperationException {
+        if (args.length < 3) {
+            throw new IllegalArgumentException("Usage: " + CodecGenerator.class.getSimpleName() + " <output dir> <target package> <schema holder class>...");
+        }
+        Path dir = Path.of(args[0]).resolve(args[1].replace('.', '/'));
+        Files.createDirectories(dir);
+        for (int i = 2; i < args.length; i++) {
+            Class<?> holder = Class.forName(args[i]);
+            for (Field field : holder.getFields()) {
+                if (Modifier.isStatic(field.getModifiers()) && field.getType() == PacketSchema.class) {
+                    PacketSchema schema = (PacketSchema) field.get(null);
+                    Path file = dir.resolve(className(schema.getName()) + ".java");
+                    Files.writeString(file, generate(schema, args[1], holder, field.getName()), StandardCharsets.UTF_8);
+                }
+            }
+        }
+    }
+
+    /**
+     * Source of the codec class of {@code schema}, which is read from {@code holder.fieldName} at runtime.
+     */
+    public static String generate(PacketSchema schema, String packageName, Class<?> holder, String fieldName) {
+        schema.assertHeaderSize(schema.getName());
+        CodecGenerator generator = new CodecGenerator(schema, holder.getName(), fieldName);
+        generator.writeClass(packageName, holder.getSimpleName());
+        return generator.out.toString();
+    }
+
+    /**
+     * {@code PUS_TC} becomes {@code PusTcCodec}.
+     */
+    public static String className(String schemaName) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : schemaName.split("[^A-Za-z0-9]+")) {
+            if (!part.isEmpty()) {
+                sb.append(Character.toUpperCase(part.charAt(0))).append(part.substring(1).toLowerCase(Locale.ROOT));
+            }
+        }
+        return sb.append("Codec").toString();
+    }
+
+    /***************************
+     *         Class
+     **************************/
+    private void writeClass(String packageName, String holderName) {
+        line(0, "package " + packageName + ";");
+        line(0, "");
+        line(0, "import at.favre.lib.bytes.Bytes;");
+        line(0, "import com.rovsing.packetRouting.PackageKit.PackageKit;");
+        if (checksum != null) {
+            line(0, "import com.rovsing.packetRouting.PackageKit.PackageKitChecksums;");
+        }
+        line(0, "import com.rovsing.packetRouting.PackageKit.PacketSchema;");
+        line(0, "import " + holder + ";");
+        line(0, "");
+        line(0, "import java.util.Objects;");
+        line(0, "");
+        line(0, "/**");
+        line(0, " * Codec of " + holderName + "." + fieldName + ", generated by CodecGenerator. Do not edit.");
+        line(0, " */");
+        line(0, "public final class " + className + " {");
+        line(1, "public static final PacketSchema SCHEMA = " + holderName + "." + fieldName + ";");
+        line(1, "public static final int HEADER_SIZE = " + schema.headerSize() + ";");
+        if (checksum != null) {
+            line(1, "private static final PackageKitChecksums CHECKSUM = SCHEMA.getChecksum();");
+            line(1, "private static final int CRC_INIT = " + hex(checksum.init()) + ";");
+            writeCrcTable();
+        }
+        line(1, "private static final byte[] EMPTY = new byte[0];");
+        line(0, "");
+        for (int i = 0; i < layout.fieldCount(); i++) {
+            line(1, "private " + type(i) + " " + layout.name(i) + ";");
+        }
+        line(1, "private byte[] payload = EMPTY;");
+        line(1, "private int payloadOffset;");
+        line(1, "private int payloadLength;");
+        if (checksum != null) {
+            line(1, "private boolean headerChecksumOk = true;");
+            line(1, "private boolean payloadChecksumOk = true;");
+        }
+        line(0, "");
+        line(1, "public " + className + "() {");
+        line(2, "reset();");
+        line(1, "}");
+        line(0, "");
+        banner("Fields");
+        for (int i = 0; i < layout.fieldCount(); i++) {
+            writeAccessors(i);
+        }
+        banner("Payload");
+        writePayload();
+        banner("Codec");
+        writeEncode();
+        writeDecode();
+        banner("Certify");
+        writeCertify();
+        banner("Conversion");
+        writeConversion();
+        line(0, "}");
+    }
+
+    private void writeAccessors(int i) {
+        String name = layout.name(i);
+        String property = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        line(1, "public " + type(i) + " get" + property + "() {");
+        line(2, "return " + name + ";");
+        line(1, "}");
+        line(0, "");
+        line(1, "public " + className + " set" + property + "(" + type(i) + " value) {");
+        line(2, "this." + name + " = " + masked(i, "value") + ";");
+        line(2, "return this;");
+        line(1, "}");
+        line(0, "");
+    }
+
+    private void writePayload() {
+        line(1, "public Bytes getPayload() {");
+        line(2, "byte[] copy = new byte[payloadLength];");
+        line(2, "System.arraycopy(payload, payloadOffset, copy, 0, payloadLength);");
+        line(2, "return Bytes.wrap(copy);");
+        line(1, "}");
+        line(0, "");
+        line(1, "public " + className + " setPayload(Bytes data) {");
+        line(2, "byte[] array = data.isReadOnly() ? data.copy().array() : data.array();");
+        line(2, "return setPayload(array, 0, data.length());");
+        line(1, "}");
+        line(0, "");
+        line(1, "/**");
+        line(1, " * Use {@code src[off, off + length)} as payload without copying it. The array content must stay untouched");
+        line(1, " * until the package has been encoded.");
+        line(1, " */");
+        line(1, "public " + className + " setPayload(byte[] src, int off, int length) {");
+        line(2, "Objects.checkFromIndexSize(off, length, src.length);");
+        line(2, "payload = src;");
+        line(2, "payloadOffset = off;");
+        line(2, "payloadLength = length;");
+        line(2, "return this;");
+        line(1, "}");
+        line(0, "");
+        line(1, "public int headerSize() {");
+        line(2, "return HEADER_SIZE;");
+        line(1, "}");
+        line(0, "");
+        line(1, "public int payloadSize() {");
+        line(2, "return payloadLength" + (pec == 0 ? "" : " + " + pec) + ";");
+        line(1, "}");
+        line(0, "");
+        line(1, "/**");
+        line(1, " * Exact number of bytes produced by {@link #toBytes()} and {@link #encodeInto(byte[], int)}.");
+        line(1, " */");
+        line(1, "public int encodedSize() {");
+        if (checksum == null) {
+            line(2, "return HEADER_SIZE + payloadLength;");
+        } else if (schema.isSeparateChecksum()) {
+            line(2, "return HEADER_SIZE + payloadLength + (payloadLength == 0 ? 0 : " + pec + ");");
+        } else {
+            line(2, "return HEADER_SIZE + payloadLength + " + pec + ";");
+        }
+        line(1, "}");
+        line(0, "");
+        line(1, "/**");
+        line(1, " * Restore the default field values and drop payload and decode state.");
+        line(1, " */");
+        line(1, "public " + className + " reset() {");
+        for (int i = 0; i < layout.fieldCount(); i++) {
+            line(2, layout.name(i) + " = " + literal(i, schema.getDefault(i)) + ";");
+        }
+        line(2, "payload = EMPTY;");
+        line(2, "payloadOffset = 0;");
+        line(2, "payloadLength = 0;");
+        if (checksum != null) {
+            line(2, "headerChecksumOk = true;");
+            line(2, "payloadChecksumOk = true;");
+        }
+        line(2, "return this;");
+        line(1, "}");
+        line(0, "");
+    }
+
+    private void writeEncode() {
+        line(1, "public Bytes toBytes() {");
+        line(2, "byte[] pkg = new byte[encodedSize()];");
+        line(2, "encodeInto(pkg, 0);");
+        line(2, "return Bytes.wrap(pkg);");
+        line(1, "}");
+        line(0, "");
+        line(1, "/**");
+        line(1, " * Encode the package into {@code dst} starting at {@code off}.");
+        line(1, " *");
+        line(1, " * @return number of bytes written (see {@link #encodedSize()})");
+        line(1, " */");
+        line(1, "public int encodeInto(byte[] dst, int off) {");
+        line(2, "int size = encodedSize();");
+        line(2, "Objects.checkFromIndexSize(off, size, dst.length);");
+        for (int slot = 0; slot < schema.derivedCount(); slot++) {
+            writeDerived(slot);
+        }
+        for (int b = 0; b < headerBytes; b++) {
+            String value = encodeByte(b);
+            line(2, "dst[off" + plus(b) + "] = (byte) " + (value.contains(" ") ? "(" + value + ")" : value) + ";");
+        }
+        line(2, "int pos = off + " + headerBytes + ";");
+        if (checksum != null) {
+            line(2, "int crc = crc(CRC_INIT, dst, off, " + headerBytes + ");");
+            if (schema.isSeparateChecksum()) {
+                putDigest(2);
+                line(2, "pos += " + pec + ";");
+                line(2, "crc = CRC_INIT;");
+            }
+        }
+        line(2, "System.arraycopy(payload, payloadOffset, dst, pos, payloadLength);");
+        if (checksum != null) {
+            int depth = 2;
+            if (schema.isSeparateChecksum()) {
+                line(2, "if (payloadLength != 0) {");
+                depth = 3;
+            }
+            // Payloads can be long, they go through the sliced implementation of the checksum
+            line(depth, "crc = CHECKSUM.update(crc, dst, pos, payloadLength);");
+            line(depth, "pos += payloadLength;");
+            putDigest(depth);
+            line(depth, "pos += " + pec + ";");
+            if (schema.isSeparateChecksum()) {
+                line(2, "}");
+            }
+        } else {
+            line(2, "pos += payloadLength;");
+        }
+        line(2, "return pos - off;");
+        line(1, "}");
+        line(0, "");
+    }
+
+    private void writeDerived(int slot) {
+        int index = schema.derivedIndex(slot);
+        PacketSchema.Derivation derivation = schema.derivation(slot);
+        long offset = schema.derivedOffset(slot);
+        String size = derivation == PacketSchema.Derivation.PAYLOAD_LENGTH ? "payloadLength" : "size";
+        String name = layout.name(index);
+        String suffix = offset == 0 ? "" : " + (" + offset + ")";
+        line(2, "long " + name + "Value = " + size + (offset == 0 ? "" : (offset < 0 ? " - " : " + ") + literalLong(Math.abs(offset))) + ";");
+        line(2, "if (" + name + "Value < 0 || " + name + "Value > " + literalLong(layout.mask(index)) + ") {");
+        line(3, "throw new IllegalArgumentException(\"Field '" + name + "' of " + schema.getName() + " can not hold " + derivation + " \" + " + size + (suffix.isEmpty() ? "" : " + \"" + suffix + "\"") + ");");
+        line(2, "}");
+        line(2, "this." + name + " = (" + type(index) + ") " + name + "Value;");
+    }
+
+    private void writeDecode() {
+        line(1, "public " + className + " fromBytes(byte[] bytes) {");
+        line(2, "return decodeFrom(bytes, 0, bytes.length);");
+        line(1, "}");
+        line(0, "");
+        line(1, "public " + className + " fromBytes(Bytes pkgBytes) {");
+        line(2, "byte[] array = pkgBytes.isReadOnly() ? pkgBytes.copy().array() : pkgBytes.array();");
+        line(2, "return decodeFrom(array, 0, pkgBytes.length());");
+        line(1, "}");
+        line(0, "");
+        line(1, "/**");
+        line(1, " * Decode the package held in {@code src[off, off + length)}. The payload is kept as a view of {@code src},");
+        line(1, " * so the array must not be reused while this package is in use.");
+        line(1, " * <p>");
+        line(1, " * Unlike {@link PackageKit#decodeFrom(byte[], int, int)}, which pads input shorter than the header with zeros,");
+        line(1, " * short input is rejected.");
+        line(1, " *");
+        line(1, " * @throws IllegalArgumentException if {@code length} is shorter than the header");
+        line(1, " */");
+        line(1, "public " + className + " decodeFrom(byte[] src, int off, int length) {");
+        line(2, "Objects.checkFromIndexSize(off, length, src.length);");
+        line(2, "if (length < HEADER_SIZE) {");
+        line(3, "throw new IllegalArgumentException(\"" + schema.getName() + " needs at least \" + HEADER_SIZE + \" bytes, got \" + length);");
+        line(2, "}");
+        for (int i = 0; i < layout.fieldCount(); i++) {
+            line(2, "this." + layout.name(i) + " = " + decodeField(i) + ";");
+        }
+        line(2, "payload = src;");
+        line(2, "payloadOffset = off + HEADER_SIZE;");
+        line(2, "payloadLength = Math.max(0, length - HEADER_SIZE" + (pec == 0 ? "" : " - " + pec) + ");");
+        if (checksum != null) {
+            if (schema.isSeparateChecksum()) {
+                line(2, "headerChecksumOk = crc(CRC_INIT, src, off, HEADER_SIZE) == 0;");
+                line(2, "payloadChecksumOk = CHECKSUM.check(src, off + HEADER_SIZE, length - HEADER_SIZE);");
+            } else {
+                line(2, "int crc = crc(CRC_INIT, src, off, HEADER_SIZE);");
+                line(2, "headerChecksumOk = CHECKSUM.update(crc, src, off + HEADER_SIZE, length - HEADER_SIZE) == 0;");
+                line(2, "payloadChecksumOk = headerChecksumOk;");
+            }
+        }
+        line(2, "return this;");
+        line(1, "}");
+        line(0, "");
+    }
+
+    private void writeCertify() {
+        if (checksum == null) {
+            line(1, "public boolean isChecksumOk() {");
+            line(2, "return true;");
+            line(1, "}");
+            line(0, "");
+            return;
+        }
+        if (schema.isSeparateChecksum()) {
+            line(1, "public boolean isHeaderChecksumOk() {");
+            line(2, "return headerChecksumOk;");
+            line(1, "}");
+            line(0, "");
+            line(1, "public boolean isPayloadChecksumOk() {");
+            line(2, "return payloadChecksumOk;");
+            line(1, "}");
+            line(0, "");
+        }
+        line(1, "/**");
+        line(1, " * Verification of the last decoded package, true until a package has been decoded.");
+        line(1, " */");
+        line(1, "public boolean isChecksumOk() {");
+        line(2, "return headerChecksumOk && payloadChecksumOk;");
+        line(1, "}");
+        line(0, "");
+        line(1, "// " + checksum.description() + " over a header of constant size, one table lookup per byte");
+        line(1, "private static int crc(int crc, byte[] src, int off, int length) {");
+        line(2, "for (int end = off + length; off < end; off++) {");
+        line(3, "crc = " + crcStep("crc", "src[off]") + ";");
+        line(2, "}");
+        line(2, "return crc;");
+        line(1, "}");
+        line(0, "");
+    }
+
+    private void writeConversion() {
+        line(1, "/**");
+        line(1, " * Equivalent {@link PackageKit} of this package, e.g. for printing.");
+        line(1, " */");
+        line(1, "public PackageKit toPackageKit() {");
+        line(2, "PackageKit kit = SCHEMA.newInstance();");
+        for (int i = 0; i < layout.fieldCount(); i++) {
+            line(2, "kit.setLong(" + i + ", " + unsigned(i, "this." + layout.name(i)) + ");");
+        }
+        line(2, "return kit.setPayload(getPayload());");
+        line(1, "}");
+        line(0, "");
+        line(1, "/**");
+        line(1, " * Copy the field values and payload of {@code kit}, which must be a " + schema.getName() + " package.");
+        line(1, " */");
+        line(1, "public " + className + " from(PackageKit kit) {");
+        line(2, "if (kit.getSchema() != SCHEMA) {");
+        line(3, "throw new IllegalArgumentException(\"Package '\" + kit.getSchema().getName() + \"' is not a " + schema.getName() + " package\");");
+        line(2, "}");
+        for (int i = 0; i < layout.fieldCount(); i++) {
+            line(2, "this." + layout.name(i) + " = " + (type(i).equals("long") ? "kit.getLong(" + i + ")" : "(int) kit.getLong(" + i + ")") + ";");
+        }
+        line(2, "return setPayload(kit.getPayload());");
+        line(1, "}");
+    }
+
+    /***************************
+     *        Bit layout
+     **************************/
+    // Header byte b as the OR of the slices of every field overlapping it
+    private String encodeByte(int b) {
+        StringBuilder expr = new StringBuilder();
+        int byteStart = b * Byte.SIZE;
+        int byteEnd = byteStart + Byte.SIZE;
+        for (int i = 0; i < layout.fieldCount(); i++) {
+            int start = layout.bitOffset(i);
+            int end = start + layout.bitSize(i);
+            int from = Integer.max(start, byteStart);
+            int to = Integer.min(end, byteEnd);
+            if (from >= to) {
+                continue;
+            }
+            int right = end - to;
+            int left = byteEnd - to;
+            int bits = to - from;
+            String slice = "this." + layout.name(i) + (right == 0 ? "" : " >>> " + right);
+            // Bits above the slice belong to the same field and would spill into the neighbouring field
+            if (from > start && left + bits < Byte.SIZE) {
+                slice = slice + " & " + hex((1 << bits) - 1);
+                if (left != 0) {
+                    slice = "(" + slice + ")";
+                }
+            }
+            if (left != 0) {
+                slice = slice + " << " + left;
+            }
+            if (expr.length() > 0) {
+                expr.append(" | ");
+            }
+            expr.append(slice);
+        }
+        return expr.toString();
+    }
+
+    // Field i as the OR of its slices of the header bytes
+    private String decodeField(int i) {
+        StringBuilder expr = new StringBuilder();
+        int start = layout.bitOffset(i);
+        int end = start + layout.bitSize(i);
+        boolean wide = type(i).equals("long");
+        for (int b = start / Byte.SIZE; b * Byte.SIZE < end; b++) {
+            int byteStart = b * Byte.SIZE;
+            int byteEnd = byteStart + Byte.SIZE;
+            int from = Integer.max(start, byteStart);
+            int to = Integer.min(end, byteEnd);
+            int right = byteEnd - to;
+            int left = end - to;
+            int bits = to - from;
+            String slice = (wide ? "(long) " : "") + "(src[off" + plus(b) + "] & 0xFF)";
+            if (right != 0) {
+                slice = slice + " >>> " + right;
+            }
+            if (right + bits < Byte.SIZE) {
+                slice = slice + " & " + hex((1 << bits) - 1);
+                if (left != 0) {
+                    slice = "(" + slice + ")";
+                }
+            }
+            if (left != 0) {
+                slice = slice + " << " + left;
+            }
+            if (expr.length() > 0) {
+                expr.append(" | ");
+            }
+            expr.append(slice);
+        }
+        return expr.toString();
+    }
+
+    /***************************
+     *         Checksum
+     **************************/
+    private void writeCrcTable() {
+        int[] table = crcTable();
+        line(1, "private static final int[] CRC_TABLE = {");
+        for (int row = 0; row < table.length; row += 8) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = row; i < row + 8; i++) {
+                sb.append(hex(table[i])).append(i == table.length - 1 ? "" : ", ");
+            }
+            line(2, sb.toString().stripTrailing());
+        }
+        line(1, "};");
+    }
+
+    // The table of a table-driven CRC is its register after feeding a single byte into a zero register
+    private int[] crcTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = checksum.update(0, new byte[]{(byte) i}, 0, 1);
+        }
+        byte[] sample = new byte[64];
+        new Random(0).nextBytes(sample);
+        int crc = checksum.init();
+        for (byte b : sample) {
+            crc = checksum.digestByteSize() == 1
+                    ? table[(crc ^ b) & 0xFF]
+                    : ((crc << 8) & 0xFFFF) ^ table[((crc >>> 8) ^ b) & 0xFF];
+        }
+        if (crc != checksum.update(checksum.init(), sample, 0, sample.length)) {
+            throw new IllegalArgumentException("Checksum '" + checksum.description() + "' of " + schema.getName() + " is not a table-driven CRC8/CRC16");
+        }
+        return table;
+    }
+
+    private String crcStep(String crc, String b) {
+        if (checksum.digestByteSize() == 1) {
+            return "CRC_TABLE[(" + crc + " ^ " + b + ") & 0xFF]";
+        }
+        return "((" + crc + " << 8) & 0xFFFF) ^ CRC_TABLE[((" + crc + " >>> 8) ^ " + b + ") & 0xFF]";
+    }
+
+    private void putDigest(int depth) {
+        for (int i = 0; i < pec; i++) {
+            int shift = (pec - 1 - i) * Byte.SIZE;
+            line(depth, "dst[pos" + plus(i) + "] = (byte) " + (shift == 0 ? "crc" : "(crc >>> " + shift + ")") + ";");
+        }
+    }
+
+    /***************************
+     *        Internals
+     **************************/
+    // Fields up to 32 bits are int like PackageKit#getValue, wider ones long
+    private String type(int i) {
+        return layout.bitSize(i) <= Integer.SIZE ? "int" : "long";
+    }
+
+    private String masked(int i, String value) {
+        if (layout.bitSize(i) == Integer.SIZE || layout.bitSize(i) == Long.SIZE) {
+            return value;
+        }
+        return value + " & " + (type(i).equals("long") ? literalLong(layout.mask(i)) : hex((int) layout.mask(i)));
+    }
+
+    private String unsigned(int i, String value) {
+        return layout.bitSize(i) == Integer.SIZE ? "Integer.toUnsignedLong(" + value + ")" : value;
+    }
+
+    private String literal(int i, long value) {
+        return type(i).equals("long") ? literalLong(value) : hex((int) value);
+    }
+
+    private static String literalLong(long value) {
+        return value < 0 || value > 0xFFFF ? "0x" + Long.toHexString(value).toUpperCase(Locale.ROOT) + "L" : Long.toString(value);
+    }
+
+    private static String hex(int value) {
+        return value >= 0 && value < 10 ? Integer.toString(value) : "0x" + Integer.toHexString(value).toUpperCase(Locale.ROOT);
+    }
+
+    private static String plus(int value) {
+        return value == 0 ? "" : " + " + value;
+    }
+
+    private void banner(String title) {
+        int pad = (24 - title.length()) / 2;
+        line(1, "/***************************");
+        line(1, " *" + " ".repeat(Integer.max(1, pad)) + title);
+        line(1, " **************************/");
+    }
+
+    private void line(int depth, String text) {
+        if (!text.isEmpty()) {
+            out.append(INDENT.repeat(depth)).append(text);
+        }
+        out.append('\n');
+    }
+}
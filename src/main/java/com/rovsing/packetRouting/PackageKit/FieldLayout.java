@@ -0,0 +1,147 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Flat, immutable bit layout of a field chain. Each field is described by the byte holding its least significant
+ * bit and the number of unused bits below it, so encode and decode are plain shift/mask loops over a byte[] with
+ * no allocation per field. Heap arrays and (direct) {@link ByteBuffer}s are supported alike, using absolute offsets.
+ */
+public final class FieldLayout {
+    private final String[] names;
+    private final int[] bitSize;
+    private final int[] bitOffset;
+    private final int[] lastByte;
+    private final int[] lowPad;
+    private final long[] mask;
+    private final int byteSize;
+    private final HashMap<String, Integer> indexByName;
+
+    FieldLayout(String[] names, int[] bitSizes) {
+        this.names = names.clone();
+        this.bitSize = bitSizes.clone();
+        this.bitOffset = new int[bitSizes.length];
+        this.lastByte = new int[bitSizes.length];
+        this.lowPad = new int[bitSizes.length];
+        this.mask = new long[bitSizes.length];
+        this.indexByName = new HashMap<>();
+        int usedBits = 0;
+        for (int i = 0; i < bitSizes.length; i++) {
+            int endBit = usedBits + bitSizes[i];
+            bitOffset[i] = usedBits;
+            lastByte[i] = (endBit - 1) / Byte.SIZE;
+            lowPad[i] = (Byte.SIZE - endBit % Byte.SIZE) % Byte.SIZE;
+            mask[i] = 0xFFFFFFFFFFFFFFFFL >>> Long.SIZE - bitSizes[i];
+            usedBits = endBit;
+            indexByName.put(names[i], i);
+        }
+        // Compositions under construction may not be byte aligned yet. PacketSchema rejects those before use.
+        this.byteSize = usedBits / Byte.SIZE;
+    }
+
+    /***************************
+     *         Codec
+     **************************/
+    public long read(byte[] buf, int off, int index) {
+        int pos = off + lastByte[index];
+        int size = bitSize[index];
+        long value = (buf[pos] & 0xFF) >>> lowPad[index];
+        int got = Byte.SIZE - lowPad[index];
+        while (got < size) {
+            value |= (long) (buf[--pos] & 0xFF) << got;
+            got += Byte.SIZE;
+        }
+        return value & mask[index];
+    }
+
+    public void write(byte[] buf, int off, int index, long value) {
+        int pos = off + lastByte[index];
+        int pad = lowPad[index];
+        int remaining = bitSize[index];
+        long v = value & mask[index];
+
+        int bits = Integer.min(Byte.SIZE - pad, remaining);
+        int m = ((1 << bits) - 1) << pad;
+        buf[pos] = (byte) ((buf[pos] & ~m) | (((int) v << pad) & m));
+        v >>>= bits;
+        remaining -= bits;
+        while (remaining >= Byte.SIZE) {
+            buf[--pos] = (byte) v;
+            v >>>= Byte.SIZE;
+            remaining -= Byte.SIZE;
+        }
+        if (remaining > 0) {
+            pos--;
+            m = (1 << remaining) - 1;
+            buf[pos] = (byte) ((buf[pos] & ~m) | ((int) v & m));
+        }
+    }
+
+    public long read(ByteBuffer buf, int off, int index) {
+        int pos = off + lastByte[index];
+        int size = bitSize[index];
+        long value = (buf.get(pos) & 0xFF) >>> lowPad[index];
+        int got = Byte.SIZE - lowPad[index];
+        while (got < size) {
+            value |= (long) (buf.get(--pos) & 0xFF) << got;
+            got += Byte.SIZE;
+        }
+        return value & mask[index];
+    }
+
+    public void write(ByteBuffer buf, int off, int index, long value) {
+        int pos = off + lastByte[index];
+        int pad = lowPad[index];
+        int remaining = bitSize[index];
+        long v = value & mask[index];
+
+        int bits = Integer.min(Byte.SIZE - pad, remaining);
+        int m = ((1 << bits) - 1) << pad;
+        buf.put(pos, (byte) ((buf.get(pos) & ~m) | (((int) v << pad) & m)));
+        v >>>= bits;
+        remaining -= bits;
+        while (remaining >= Byte.SIZE) {
+            buf.put(--pos, (byte) v);
+            v >>>= Byte.SIZE;
+            remaining -= Byte.SIZE;
+        }
+        if (remaining > 0) {
+            pos--;
+            m = (1 << remaining) - 1;
+            buf.put(pos, (byte) ((buf.get(pos) & ~m) | ((int) v & m)));
+        }
+    }
+
+    /***************************
+     *         Info
+     **************************/
+    public int fieldCount() {
+        return names.length;
+    }
+
+    public int byteSize() {
+        return byteSize;
+    }
+
+    public String name(int index) {
+        return names[index];
+    }
+
+    public int bitSize(int index) {
+        return bitSize[index];
+    }
+
+    public int bitOffset(int index) {
+        return bitOffset[index];
+    }
+
+    public long mask(int index) {
+        return mask[index];
+    }
+
+    public int indexOf(String name) {
+        Integer index = indexByName.get(name);
+        return index == null ? -1 : index;
+    }
+}
@@ -0,0 +1,720 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Immutable filter on the header fields of one schema, evaluated directly on the raw package bytes without
+ * dismantling them. Predicates are created with {@link #on(PacketSchema)} and combined with {@link #and},
+ * {@link #or} and {@link #negate()}:
+ * <pre>
+ * FieldPredicate.Fields pus = FieldPredicate.on(SpwPkgFactory.PUS_TC);
+ * FieldPredicate filter = pus.eq("apid", 0x123).and(pus.eq("service", 3)).and(pus.in("subService", 1, 2));
+ * </pre>
+ * Every combination is compiled: equality and bitmask tests of a conjunction are fused into one mask/compare per
+ * 8 byte window of the header, so {@code apid == 0x123 && service == 3} costs a single long load and compare.
+ * Range and set tests read their field with the precomputed offsets of the {@link FieldLayout}. Several predicates
+ * can share one pass over a package with a {@link PredicateGroup}.
+ */
+public final class FieldPredicate {
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Fields fields;
+    // Tree as composed, kept for further composition and printing
+    private final Node spec;
+    private final Node compiled;
+
+    private FieldPredicate(Fields fields, Node spec) {
+        this.fields = fields;
+        this.spec = spec;
+        this.compiled = fields.compile(spec);
+    }
+
+    /**
+     * Factory of the predicates on the fields of {@code schema}.
+     */
+    public static Fields on(PacketSchema schema) {
+        return new Fields(schema);
+    }
+
+    /***************************
+     *       Composition
+     **************************/
+    public FieldPredicate and(FieldPredicate other) {
+        return new FieldPredicate(fields, new And(new Node[]{spec, fields.own(other).spec}));
+    }
+
+    public FieldPredicate or(FieldPredicate other) {
+        return new FieldPredicate(fields, new Or(new Node[]{spec, fields.own(other).spec}));
+    }
+
+    public FieldPredicate negate() {
+        return new FieldPredicate(fields, new Not(spec));
+    }
+
+    /***************************
+     *          Test
+     **************************/
+
+    /**
+     * Test the package in {@code buf[off, off + length)}. Packages shorter than the header never match.
+     */
+    public boolean test(byte[] buf, int off, int length) {
+        return length >= fields.headerBytes && compiled.test(buf, off);
+    }
+
+    public boolean test(ByteBuffer buf, int off, int length) {
+        return length >= fields.headerBytes && compiled.test(buf, off);
+    }
+
+    public PacketSchema getSchema() {
+        return fields.schema;
+    }
+
+    Node compiled() {
+        return compiled;
+    }
+
+    Fields fields() {
+        return fields;
+    }
+
+    @Override
+    public String toString() {
+        return spec.toString();
+    }
+
+    /***************************
+     *          Fields
+     **************************/
+
+    /**
+     * Predicates on the fields of one schema. Values are unsigned like the field values of a {@link PackageKit}.
+     */
+    public static final class Fields {
+        private final PacketSchema schema;
+        private final FieldLayout layout;
+        private final int headerBytes;
+        // Header windows of up to 8 bytes covering the header, the last one may overlap its predecessor
+        private final int[] windowStart;
+        private final int[] windowSize;
+
+        private Fields(PacketSchema schema) {
+            this.schema = schema;
+            this.layout = schema.getLayout();
+            this.headerBytes = layout.byteSize();
+            int count = Integer.max(1, (headerBytes + Long.BYTES - 1) / Long.BYTES);
+            this.windowStart = new int[count];
+            this.windowSize = new int[count];
+            for (int w = 0; w < count; w++) {
+                windowSize[w] = Integer.min(Long.BYTES, headerBytes);
+                windowStart[w] = Integer.min(w * Long.BYTES, headerBytes - windowSize[w]);
+            }
+        }
+
+        public FieldPredicate eq(String field, long value) {
+            int index = schema.handle(field);
+            return new FieldPredicate(this, new Test(this, index, Test.MASK, layout.mask(index), fit(index, value), null));
+        }
+
+        /**
+         * Field value within {@code [min, max]}, both inclusive.
+         */
+        public FieldPredicate range(String field, long min, long max) {
+            int index = schema.handle(field);
+            return new FieldPredicate(this, new Test(this, index, Test.RANGE, min, max, null));
+        }
+
+        public FieldPredicate in(String field, long... values) {
+            int index = schema.handle(field);
+            long[] set = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                set[i] = fit(index, values[i]);
+            }
+            Arrays.sort(set);
+            return new FieldPredicate(this, new Test(this, index, Test.IN, 0, 0, set));
+        }
+
+        /**
+         * The bits of {@code mask} in the field equal those of {@code expected}, e.g. {@code mask("flags", 0x4, 0x4)}
+         * for a set flag.
+         */
+        public FieldPredicate mask(String field, long mask, long expected) {
+            int index = schema.handle(field);
+            long fieldMask = layout.mask(index);
+            if ((expected & ~mask) != 0) {
+                throw new IllegalArgumentException("Expected bits 0x" + Long.toHexString(expected) + " are not covered by mask 0x" + Long.toHexString(mask));
+            }
+            return new FieldPredicate(this, new Test(this, index, Test.MASK, mask & fieldMask, fit(index, expected), null));
+        }
+
+        public FieldPredicate all() {
+            return new FieldPredicate(this, Const.TRUE);
+        }
+
+        public FieldPredicate none() {
+            return new FieldPredicate(this, Const.FALSE);
+        }
+
+        public PacketSchema getSchema() {
+            return schema;
+        }
+
+        private long fit(int index, long value) {
+            if (Long.compareUnsigned(value, layout.mask(index)) > 0) {
+                throw new IllegalArgumentException("Field '" + layout.name(index) + "' of " + schema.getName() + " can not hold " + value);
+            }
+            return value;
+        }
+
+        private FieldPredicate own(FieldPredicate other) {
+            if (other.fields.schema != schema) {
+                throw new IllegalArgumentException("Predicate on '" + other.fields.schema.getName() + "' can not be combined with one on '" + schema.getName() + "'");
+            }
+            return other;
+        }
+
+        int windowCount() {
+            return windowStart.length;
+        }
+
+        int fieldCount() {
+            return layout.fieldCount();
+        }
+
+        long window(byte[] buf, int off, int w) {
+            int pos = off + windowStart[w];
+            if (windowSize[w] == Long.BYTES) {
+                return (long) LONG_BE.get(buf, pos);
+            }
+            long value = 0;
+            for (int i = 0; i < windowSize[w]; i++) {
+                value = value << Byte.SIZE | buf[pos + i] & 0xFF;
+            }
+            return value;
+        }
+
+        long window(ByteBuffer buf, int off, int w) {
+            int pos = off + windowStart[w];
+            if (windowSize[w] == Long.BYTES) {
+                long value = buf.getLong(pos);
+                return buf.order() == ByteOrder.BIG_ENDIAN ? value : Long.reverseBytes(value);
+            }
+            long value = 0;
+            for (int i = 0; i < windowSize[w]; i++) {
+                value = value << Byte.SIZE | buf.get(pos + i) & 0xFF;
+            }
+            return value;
+        }
+
+        // Window holding the whole field, or -1 if it crosses the window boundaries
+        private int windowOf(int index) {
+            int from = layout.bitOffset(index);
+            int to = from + layout.bitSize(index);
+            for (int w = 0; w < windowStart.length; w++) {
+                if (from >= windowStart[w] * Byte.SIZE && to <= (windowStart[w] + windowSize[w]) * Byte.SIZE) {
+                    return w;
+                }
+            }
+            return -1;
+        }
+
+        private int shiftInWindow(int index, int w) {
+            return (windowStart[w] + windowSize[w]) * Byte.SIZE - layout.bitOffset(index) - layout.bitSize(index);
+        }
+
+        /***************************
+         *        Compiler
+         **************************/
+        private Node compile(Node node) {
+            if (node instanceof And) {
+                return compileAnd(flatten(node, And.class));
+            }
+            if (node instanceof Or) {
+                return compileOr(flatten(node, Or.class));
+            }
+            if (node instanceof Not) {
+                Node child = compile(((Not) node).child);
+                if (child instanceof Const) {
+                    return child == Const.TRUE ? Const.FALSE : Const.TRUE;
+                }
+                return new Not(child);
+            }
+            if (node instanceof Test) {
+                return compileAnd(List.of(node));
+            }
+            return node;
+        }
+
+        // Mask tests fitting a window are fused into one mask/compare per window, tested first
+        private Node compileAnd(List<Node> children) {
+            long[] masks = new long[windowStart.length];
+            long[] values = new long[windowStart.length];
+            List<Node> rest = new ArrayList<>();
+            for (Node child : children) {
+                Test test = child instanceof Test ? (Test) child : null;
+                int w = test != null && test.kind == Test.MASK ? windowOf(test.index) : -1;
+                if (w >= 0) {
+                    int shift = shiftInWindow(test.index, w);
+                    long mask = test.a << shift;
+                    long value = test.b << shift;
+                    if (((values[w] ^ value) & masks[w] & mask) != 0) {
+                        // Contradicting bits, e.g. apid == 1 && apid == 2
+                        return Const.FALSE;
+                    }
+                    masks[w] |= mask;
+                    values[w] |= value;
+                    continue;
+                }
+                Node compiled = test != null ? test.simplify() : compile(child);
+                if (compiled == Const.FALSE) {
+                    return Const.FALSE;
+                }
+                if (compiled != Const.TRUE) {
+                    rest.add(compiled);
+                }
+            }
+            List<Node> nodes = new ArrayList<>();
+            Node words = Words.of(this, masks, values);
+            if (words != null) {
+                nodes.add(words);
+            }
+            nodes.addAll(rest);
+            if (nodes.isEmpty()) {
+                return Const.TRUE;
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new And(nodes.toArray(new Node[0]));
+        }
+
+        // Equality tests of one field are joined into a set test
+        private Node compileOr(List<Node> children) {
+            Map<Integer, long[]> sets = new LinkedHashMap<>();
+            List<Node> rest = new ArrayList<>();
+            for (Node child : children) {
+                if (child instanceof Test && ((Test) child).isEquality()) {
+                    Test test = (Test) child;
+                    long[] set = test.kind == Test.IN ? test.set : new long[]{test.b};
+                    sets.merge(test.index, set, Fields::union);
+                    continue;
+                }
+                Node compiled = compile(child);
+                if (compiled == Const.TRUE) {
+                    return Const.TRUE;
+                }
+                if (compiled != Const.FALSE) {
+                    rest.add(compiled);
+                }
+            }
+            List<Node> nodes = new ArrayList<>();
+            for (Map.Entry<Integer, long[]> set : sets.entrySet()) {
+                Test test = new Test(this, set.getKey(), Test.IN, 0, 0, set.getValue());
+                nodes.add(set.getValue().length == 1 ? compileAnd(List.of(test.simplify())) : test.simplify());
+            }
+            nodes.addAll(rest);
+            if (nodes.isEmpty()) {
+                return Const.FALSE;
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new Or(nodes.toArray(new Node[0]));
+        }
+
+        private static long[] union(long[] a, long[] b) {
+            long[] all = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, all, a.length, b.length);
+            return Arrays.stream(all).sorted().distinct().toArray();
+        }
+
+        private static List<Node> flatten(Node node, Class<? extends Node> type) {
+            List<Node> flat = new ArrayList<>();
+            for (Node child : ((Junction) node).children) {
+                if (type.isInstance(child)) {
+                    flat.addAll(flatten(child, type));
+                } else {
+                    flat.add(child);
+                }
+            }
+            return flat;
+        }
+    }
+
+    /***************************
+     *          Nodes
+     **************************/
+    abstract static class Node {
+        abstract boolean test(byte[] buf, int off);
+
+        abstract boolean test(ByteBuffer buf, int off);
+
+        // Evaluation on windows and fields extracted beforehand, see PredicateGroup
+        abstract boolean test(long[] windows, long[] fieldValues);
+
+        abstract void collect(BitSet windows, BitSet fieldIndexes);
+    }
+
+    private static final class Const extends Node {
+        private static final Const TRUE = new Const(true);
+        private static final Const FALSE = new Const(false);
+
+        private final boolean value;
+
+        private Const(boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        boolean test(byte[] buf, int off) {
+            return value;
+        }
+
+        @Override
+        boolean test(ByteBuffer buf, int off) {
+            return value;
+        }
+
+        @Override
+        boolean test(long[] windows, long[] fieldValues) {
+            return value;
+        }
+
+        @Override
+        void collect(BitSet windows, BitSet fieldIndexes) {
+        }
+
+        @Override
+        public String toString() {
+            return Boolean.toString(value);
+        }
+    }
+
+    // Conjunction of (window & mask) == value over the header windows
+    private static final class Words extends Node {
+        private final Fields fields;
+        private final int[] window;
+        private final long[] mask;
+        private final long[] value;
+
+        private Words(Fields fields, int[] window, long[] mask, long[] value) {
+            this.fields = fields;
+            this.window = window;
+            this.mask = mask;
+            this.value = value;
+        }
+
+        // Null if no window is tested
+        private static Node of(Fields fields, long[] masks, long[] values) {
+            int count = 0;
+            for (long mask : masks) {
+                count += mask != 0 ? 1 : 0;
+            }
+            if (count == 0) {
+                return null;
+            }
+            int[] window = new int[count];
+            long[] mask = new long[count];
+            long[] value = new long[count];
+            for (int w = 0, i = 0; w < masks.length; w++) {
+                if (masks[w] != 0) {
+                    window[i] = w;
+                    mask[i] = masks[w];
+                    value[i++] = values[w];
+                }
+            }
+            return new Words(fields, window, mask, value);
+        }
+
+        @Override
+        boolean test(byte[] buf, int off) {
+            for (int i = 0; i < window.length; i++) {
+                if ((fields.window(buf, off, window[i]) & mask[i]) != value[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        boolean test(ByteBuffer buf, int off) {
+            for (int i = 0; i < window.length; i++) {
+                if ((fields.window(buf, off, window[i]) & mask[i]) != value[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        boolean test(long[] windows, long[] fieldValues) {
+            for (int i = 0; i < window.length; i++) {
+                if ((windows[window[i]] & mask[i]) != value[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void collect(BitSet windows, BitSet fieldIndexes) {
+            for (int w : window) {
+                windows.set(w);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner sj = new StringJoiner(" && ");
+            for (int i = 0; i < window.length; i++) {
+                sj.add("(window" + window[i] + " & 0x" + Long.toHexString(mask[i]) + ") == 0x" + Long.toHexString(value[i]));
+            }
+            return sj.toString();
+        }
+    }
+
+    // Test of a single field value
+    private static final class Test extends Node {
+        private static final int MASK = 0;
+        private static final int RANGE = 1;
+        private static final int IN = 2;
+
+        private final Fields fields;
+        private final int index;
+        private final int kind;
+        // MASK: (v & a) == b, RANGE: a <= v <= b, IN: v in set (or in bitmap if all members are below 64)
+        private final long a;
+        private final long b;
+        private final long[] set;
+        private final long bitmap;
+
+        private Test(Fields fields, int index, int kind, long a, long b, long[] set) {
+            this.fields = fields;
+            this.index = index;
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+            this.set = set;
+            long bits = 0;
+            if (set != null && set.length > 0 && set[0] >= 0 && set[set.length - 1] < Long.SIZE) {
+                for (long member : set) {
+                    bits |= 1L << member;
+                }
+            }
+            this.bitmap = bits;
+        }
+
+        private boolean isEquality() {
+            return kind == IN || kind == MASK && a == fields.layout.mask(index);
+        }
+
+        private Node simplify() {
+            long fieldMask = fields.layout.mask(index);
+            if (kind == IN && set.length == 0 || kind == RANGE && Long.compareUnsigned(a, b) > 0) {
+                return Const.FALSE;
+            }
+            if (kind == IN && set.length == 1) {
+                return new Test(fields, index, MASK, fieldMask, set[0], null);
+            }
+            if (kind == MASK && a == 0 || kind == RANGE && a == 0 && Long.compareUnsigned(b, fieldMask) >= 0) {
+                return Const.TRUE;
+            }
+            return this;
+        }
+
+        @Override
+        boolean test(byte[] buf, int off) {
+            return matches(fields.layout.read(buf, off, index));
+        }
+
+        @Override
+        boolean test(ByteBuffer buf, int off) {
+            return matches(fields.layout.read(buf, off, index));
+        }
+
+        @Override
+        boolean test(long[] windows, long[] fieldValues) {
+            return matches(fieldValues[index]);
+        }
+
+        private boolean matches(long v) {
+            switch (kind) {
+                case MASK:
+                    return (v & a) == b;
+                case RANGE:
+                    return Long.compareUnsigned(v, a) >= 0 && Long.compareUnsigned(v, b) <= 0;
+                default:
+                    if (bitmap != 0) {
+                        return v >= 0 && v < Long.SIZE && (bitmap >>> v & 1) != 0;
+                    }
+                    return Arrays.binarySearch(set, v) >= 0;
+            }
+        }
+
+        @Override
+        void collect(BitSet windows, BitSet fieldIndexes) {
+            fieldIndexes.set(index);
+        }
+
+        @Override
+        public String toString() {
+            String name = fields.layout.name(index);
+            switch (kind) {
+                case MASK:
+                    return a == fields.layout.mask(index)
+                            ? name + " == " + b
+                            : "(" + name + " & 0x" + Long.toHexString(a) + ") == 0x" + Long.toHexString(b);
+                case RANGE:
+                    return name + " in [" + a + ", " + b + "]";
+                default:
+                    StringJoiner sj = new StringJoiner(", ", name + " in {", "}");
+                    for (long member : set) {
+                        sj.add(Long.toString(member));
+                    }
+                    return sj.toString();
+            }
+        }
+    }
+
+    private abstract static class Junction extends Node {
+        final Node[] children;
+
+        Junction(Node[] children) {
+            this.children = children;
+        }
+
+        @Override
+        void collect(BitSet windows, BitSet fieldIndexes) {
+            for (Node child : children) {
+                child.collect(windows, fieldIndexes);
+            }
+        }
+
+        String join(String operator) {
+            StringJoiner sj = new StringJoiner(" " + operator + " ", "(", ")");
+            for (Node child : children) {
+                sj.add(child.toString());
+            }
+            return sj.toString();
+        }
+    }
+
+    private static final class And extends Junction {
+        And(Node[] children) {
+            super(children);
+        }
+
+        @Override
+        boolean test(byte[] buf, int off) {
+            for (Node child : children) {
+                if (!child.test(buf, off)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        boolean test(ByteBuffer buf, int off) {
+            for (Node child : children) {
+                if (!child.test(buf, off)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        boolean test(long[] windows, long[] fieldValues) {
+            for (Node child : children) {
+                if (!child.test(windows, fieldValues)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return join("&&");
+        }
+    }
+
+    private static final class Or extends Junction {
+        Or(Node[] children) {
+            super(children);
+        }
+
+        @Override
+        boolean test(byte[] buf, int off) {
+            for (Node child : children) {
+                if (child.test(buf, off)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        boolean test(ByteBuffer buf, int off) {
+            for (Node child : children) {
+                if (child.test(buf, off)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        boolean test(long[] windows, long[] fieldValues) {
+            for (Node child : children) {
+                if (child.test(windows, fieldValues)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return join("||");
+        }
+    }
+
+    private static final class Not extends Node {
+        private final Node child;
+
+        private Not(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        boolean test(byte[] buf, int off) {
+            return !child.test(buf, off);
+        }
+
+        @Override
+        boolean test(ByteBuffer buf, int off) {
+            return !child.test(buf, off);
+        }
+
+        @Override
+        boolean test(long[] windows, long[] fieldValues) {
+            return !child.test(windows, fieldValues);
+        }
+
+        @Override
+        void collect(BitSet windows, BitSet fieldIndexes) {
+            child.collect(windows, fieldIndexes);
+        }
+
+        @Override
+        public String toString() {
+            return "!" + child;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Incremental decoder splitting a byte stream of concatenated packages of one {@link PacketSchema} into frames.
+ * Package boundaries are found with the length declared on the schema (see {@link PacketSchema#frameSize(byte[], int)}),
+ * packages split across reads are completed by the following reads.
+ * <p>
+ * Bytes are read into one reusable buffer and frames are handed out in place: {@link #view()} and
+ * {@link #decodeInto(PackageKit)} do not copy the frame, so their results are only valid until the next call to
+ * {@link #next()}. A frame must fit into the buffer capacity.
+ */
+public final class FrameDecoder {
+    private final PacketSchema schema;
+    private final ReadableByteChannel channel;
+    private final InputStream in;
+    private final byte[] buf;
+    private final ByteBuffer wrapped;
+    private final PackageView view;
+    private final int prefixSize;
+    // Filled region of buf is [start, limit), the current frame is [start, start + frameLength)
+    private int start;
+    private int limit;
+    private int frameLength;
+    private boolean endOfStream;
+
+    public FrameDecoder(PacketSchema schema, ReadableByteChannel channel, int capacity) {
+        this(schema, channel, null, capacity);
+    }
+
+    public FrameDecoder(PacketSchema schema, InputStream in, int capacity) {
+        this(schema, null, in, capacity);
+    }
+
+    private FrameDecoder(PacketSchema schema, ReadableByteChannel channel, InputStream in, int capacity) {
+        if (!schema.isFramed()) {
+            throw new IllegalArgumentException("Package '" + schema.getName() + "' has no length field and can not be decoded from a stream");
+        }
+        if (capacity < schema.headerSize()) {
+            throw new IllegalArgumentException("FrameDecoder capacity " + capacity + " is smaller than the header of '" + schema.getName() + "'");
+        }
+        this.schema = schema;
+        this.channel = channel;
+        this.in = in;
+        this.buf = new byte[capacity];
+        this.wrapped = ByteBuffer.wrap(buf);
+        this.view = schema.newView();
+        this.prefixSize = schema.framePrefixSize();
+    }
+
+    /**
+     * Advance to the next complete frame, reading from the source as needed.
+     *
+     * @return false if no complete frame is available: the stream ended (see {@link #isEndOfStream()}) or a
+     * non-blocking channel has no more bytes for now
+     * @throws EOFException if the stream ends inside a frame
+     * @throws StreamCorruptedException if a frame is shorter than the header or larger than the buffer capacity
+     */
+    public boolean next() throws IOException {
+        start += frameLength;
+        frameLength = 0;
+        while (true) {
+            int available = limit - start;
+            if (available >= prefixSize) {
+                long size = schema.frameSize(buf, start);
+                if (size < schema.headerSize() || size > buf.length) {
+                    throw new StreamCorruptedException(schema.getName() + ": invalid frame size " + size + " (header " + schema.headerSize() + ", capacity " + buf.length + ")");
+                }
+                if (available >= size) {
+                    frameLength = (int) size;
+                    return true;
+                }
+            }
+            if (!fill()) {
+                if (endOfStream && limit != start) {
+                    throw new EOFException(schema.getName() + ": stream ended inside a frame (" + (limit - start) + " bytes left)");
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Read view of the current frame.
+     */
+    public PackageView view() {
+        return view.wrap(buf, start);
+    }
+
+    /**
+     * Decode the current frame into {@code kit}. The payload is a view into the decoder buffer.
+     */
+    public PackageKit decodeInto(PackageKit kit) {
+        return kit.decodeFrom(buf, start, frameLength);
+    }
+
+    /**
+     * Read-only buffer of the current frame.
+     */
+    public ByteBuffer frame() {
+        return wrapped.asReadOnlyBuffer().position(start).limit(start + frameLength).slice();
+    }
+
+    public int frameLength() {
+        return frameLength;
+    }
+
+    public boolean isEndOfStream() {
+        return endOfStream;
+    }
+
+    public PacketSchema getSchema() {
+        return schema;
+    }
+
+    // Read at least one byte behind limit, moving the pending bytes to the front first if the buffer end is reached
+    private boolean fill() throws IOException {
+        if (endOfStream) {
+            return false;
+        }
+        if (limit == buf.length) {
+            System.arraycopy(buf, start, buf, 0, limit - start);
+            limit -= start;
+            start = 0;
+        }
+        int read;
+        if (channel != null) {
+            wrapped.limit(buf.length).position(limit);
+            read = channel.read(wrapped);
+        } else {
+            read = in.read(buf, limit, buf.length - limit);
+        }
+        if (read < 0) {
+            endOfStream = true;
+            return false;
+        }
+        limit += read;
+        return read > 0;
+    }
+}
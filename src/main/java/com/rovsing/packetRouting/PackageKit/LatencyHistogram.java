@@ -0,0 +1,85 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent latency histogram with power-of-two nanosecond buckets: bucket {@code b} counts latencies in
+ * {@code [2^(b-1), 2^b)} ns. Recording is one striped {@link LongAdder} increment, so it does not contend between
+ * threads. Percentiles are reported as the upper bound of their bucket.
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = Long.SIZE + 1;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long value = Long.max(0, nanos);
+        buckets[Long.SIZE - Long.numberOfLeadingZeros(value)].increment();
+        totalNanos.add(value);
+    }
+
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public double meanNanos() {
+        long count = count();
+        return count == 0 ? 0 : (double) totalNanos.sum() / count;
+    }
+
+    /**
+     * Upper bound in ns of the bucket holding the {@code percentile} (0..100), 0 if nothing was recorded.
+     */
+    public long percentileNanos(double percentile) {
+        long[] counts = snapshot();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int b = 0; b < counts.length; b++) {
+            seen += counts[b];
+            if (seen >= Long.max(1, rank)) {
+                return upperBound(b);
+            }
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    /**
+     * Counts per bucket, index {@code b} covering latencies below {@code 2^b} ns.
+     */
+    public long[] snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        totalNanos.reset();
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket >= Long.SIZE - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+}
@@ -0,0 +1,168 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Reusable decode state of a {@link ProtocolStack}. {@link #decode(ByteBuffer, int, int)} walks the layers of one
+ * package in a single pass over the source buffer: each layer is located at the payload offset of the layer around
+ * it, exposed as a {@link PackageView} and its checksums are verified over its own region. No payload is copied.
+ * <p>
+ * Layer 0 is the outermost package. Views and offsets are valid until the next decode, the source buffer must stay
+ * untouched while they are used. Not thread-safe, use one instance per thread.
+ */
+public final class LayeredPacket {
+    private final ProtocolStack stack;
+    // One view per stack node. A node appears at most once in the layers of a package, since stacks are built
+    // bottom-up and can not contain themselves.
+    private final Map<ProtocolStack, PackageView> views = new IdentityHashMap<>();
+    private final ProtocolStack[] layerStack;
+    private final PackageView[] layerView;
+    private final int[] layerOffset;
+    private final int[] layerLength;
+    private final boolean[] layerChecksumOk;
+    private ByteBuffer source;
+    private ByteBuffer wrapped;
+    private int depth;
+
+    LayeredPacket(ProtocolStack stack) {
+        this.stack = stack;
+        int maxDepth = stack.depth();
+        this.layerStack = new ProtocolStack[maxDepth];
+        this.layerView = new PackageView[maxDepth];
+        this.layerOffset = new int[maxDepth];
+        this.layerLength = new int[maxDepth];
+        this.layerChecksumOk = new boolean[maxDepth];
+        addViews(stack);
+    }
+
+    private void addViews(ProtocolStack stack) {
+        views.computeIfAbsent(stack, s -> s.getSchema().newView());
+        for (int i = 0; stack.innerAt(i) != null; i++) {
+            addViews(stack.innerAt(i));
+        }
+    }
+
+    /***************************
+     *         Decode
+     **************************/
+    public LayeredPacket decode(byte[] src, int off, int length) {
+        if (wrapped == null || wrapped.array() != src) {
+            wrapped = ByteBuffer.wrap(src);
+        }
+        return decode(wrapped, off, length);
+    }
+
+    /**
+     * Decode the layers of the package held in {@code src[off, off + length)}. Decoding stops at a layer whose
+     * selector value carries no inner package, or whose payload is shorter than the header of the inner package.
+     */
+    public LayeredPacket decode(ByteBuffer src, int off, int length) {
+        Objects.checkFromIndexSize(off, length, src.limit());
+        source = src;
+        depth = 0;
+        ProtocolStack current = stack;
+        while (current != null && length >= current.getSchema().headerSize()) {
+            PacketSchema schema = current.getSchema();
+            PackageView view = views.get(current).wrap(src, off);
+            layerStack[depth] = current;
+            layerView[depth] = view;
+            layerOffset[depth] = off;
+            layerLength[depth] = length;
+            layerChecksumOk[depth] = schema.isChecksumOk(src, off, length);
+            depth++;
+
+            current = current.selector() < 0 ? null : current.inner(view.getLong(current.selector()));
+            off += schema.headerSize();
+            length = payloadLength(schema, length);
+        }
+        return this;
+    }
+
+    // Same as PackageKit: what follows the header and precedes the payload checksum
+    private static int payloadLength(PacketSchema schema, int length) {
+        return Integer.max(0, length - schema.headerSize() - schema.getPecSizePayload());
+    }
+
+    /***************************
+     *         Layers
+     **************************/
+
+    /**
+     * Number of layers found by the last decode.
+     */
+    public int depth() {
+        return depth;
+    }
+
+    public PackageView layer(int index) {
+        Objects.checkIndex(index, depth);
+        return layerView[index];
+    }
+
+    public PacketSchema schema(int index) {
+        Objects.checkIndex(index, depth);
+        return layerStack[index].getSchema();
+    }
+
+    /**
+     * Innermost layer found by the last decode.
+     */
+    public PackageView innermost() {
+        return layer(depth - 1);
+    }
+
+    /**
+     * Absolute offset of a layer in the source buffer.
+     */
+    public int offset(int index) {
+        Objects.checkIndex(index, depth);
+        return layerOffset[index];
+    }
+
+    public int length(int index) {
+        Objects.checkIndex(index, depth);
+        return layerLength[index];
+    }
+
+    public int payloadOffset(int index) {
+        return offset(index) + schema(index).headerSize();
+    }
+
+    public int payloadLength(int index) {
+        return payloadLength(schema(index), length(index));
+    }
+
+    /**
+     * Checksum verification of one layer over its own region, see {@link PacketSchema#isChecksumOk(ByteBuffer, int, int)}.
+     */
+    public boolean isChecksumOk(int index) {
+        Objects.checkIndex(index, depth);
+        return layerChecksumOk[index];
+    }
+
+    /**
+     * True if the checksums of all layers found verified.
+     */
+    public boolean isChecksumOk() {
+        for (int i = 0; i < depth; i++) {
+            if (!layerChecksumOk[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode one layer into {@code kit}, e.g. a pooled instance of its schema. The payload is a view of the source.
+     */
+    public PackageKit decodeLayer(int index, PackageKit kit) {
+        return kit.decodeFrom(source, offset(index), length(index));
+    }
+
+    public ProtocolStack getStack() {
+        return stack;
+    }
+}
@@ -0,0 +1,326 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the description of a package, as returned by {@link PackageKit#toString()}, straight to an
+ * {@link Appendable} or a {@link ByteBuffer} (US-ASCII). Labels and padding are precomputed once per schema and
+ * hex dumps and numbers are written digit by digit, so no strings are built per field.
+ * <p>
+ * Formatting has no side effects on the package: derived fields and checksums of a compiled package are computed
+ * into scratch space of the formatter, from which the field table and the hex dumps are written alike. The sequence
+ * stamp is not advanced and the payload is not materialised. A formatter reuses its scratch space and is not
+ * thread-safe.
+ */
+public final class PackageFormatter {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    // Checksum digests are shown in lower case
+    private static final char[] DIGEST_HEX = "0123456789abcdef".toCharArray();
+    private static final String SPACES = " ".repeat(64);
+    private static final String HEADER_PAYLOAD = "header | payload";
+    private static final String COMPILED = "Compiled Package : ";
+    private static final String DISMANTLED = "Dismantled Package : ";
+    private static final ThreadLocal<PackageFormatter> LOCAL = ThreadLocal.withInitial(PackageFormatter::new);
+
+    private final AsciiSink ascii = new AsciiSink();
+    private long[] values = new long[0];
+    private byte[] header = new byte[0];
+    private byte[] digest = new byte[Long.BYTES];
+
+    static PackageFormatter local() {
+        return LOCAL.get();
+    }
+
+    /***************************
+     *         Format
+     **************************/
+    public StringBuilder format(PackageKit pkg, StringBuilder sb) {
+        try {
+            return formatTo(pkg, sb);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write the description of {@code pkg} to {@code out}.
+     *
+     * @return {@code out}
+     */
+    public <A extends Appendable> A formatTo(PackageKit pkg, A out) throws IOException {
+        PacketSchema schema = pkg.getSchema();
+        Layout layout = schema.formatLayout();
+        boolean dismantled = pkg.isDismantled();
+        int headerBytes = compileHeader(pkg, schema, dismantled);
+
+        out.append("=== PackageKit: '").append(pkg.getPkgName()).append("' ===\nPackage size: ");
+        appendDecimal(out, pkg.size());
+        out.append(" bytes\nPayload size: ");
+        appendDecimal(out, pkg.payloadSize());
+        out.append(" bytes\n").append(layout.composition);
+        for (int i = 0; i < layout.fieldPrefix.length; i++) {
+            if (i > 0) {
+                out.append('\n');
+            }
+            out.append(layout.fieldPrefix[i]);
+            appendHex(out, values[i]);
+        }
+        out.append("\n--- Pkg composition (hex) ---\nHeader  : ");
+        appendHex(out, header, 0, headerBytes);
+        out.append("\nPayload : ");
+        appendPayloadHex(out, pkg);
+        out.append('\n');
+        appendChecksums(out, pkg, schema, layout, dismantled, headerBytes);
+        if (dismantled) {
+            out.append(DISMANTLED);
+            for (int i = 0; i < pkg.size(); i++) {
+                appendHex(out, pkg.dismantledByte(i));
+            }
+            out.append('\n').append(layout.dismantledMarker);
+        } else {
+            out.append(COMPILED);
+            appendCompiledHex(out, pkg, schema);
+            out.append('\n').append(layout.compiledMarker);
+        }
+        out.append('\n');
+        return out;
+    }
+
+    /**
+     * Write the description of {@code pkg} as US-ASCII at the position of {@code out} and advance the position.
+     *
+     * @throws BufferOverflowException if the description does not fit into the remaining bytes
+     */
+    public ByteBuffer formatTo(PackageKit pkg, ByteBuffer out) {
+        ascii.out = out;
+        try {
+            formatTo(pkg, ascii);
+        } catch (IOException e) {
+            // AsciiSink does not throw
+            throw new UncheckedIOException(e);
+        } finally {
+            ascii.out = null;
+        }
+        return out;
+    }
+
+    /**
+     * Hex dump (upper case, no separators) of {@code buf[off, off + length)}.
+     */
+    public static <A extends Appendable> A appendHex(A out, byte[] buf, int off, int length) throws IOException {
+        for (int i = off; i < off + length; i++) {
+            appendHex(out, buf[i]);
+        }
+        return out;
+    }
+
+    /***************************
+     *        Internals
+     **************************/
+
+    // Header as compileHeader() produces it: the field values, derived for a compiled package, and the header checksum
+    private int compileHeader(PackageKit pkg, PacketSchema schema, boolean dismantled) {
+        FieldLayout layout = schema.getLayout();
+        int count = layout.fieldCount();
+        if (values.length < count) {
+            values = new long[count];
+        }
+        pkg.copyValues(values, !dismantled);
+        int size = layout.byteSize();
+        PackageKitChecksums checksum = schema.getChecksum();
+        int capacity = size + (checksum == null ? 0 : checksum.digestByteSize());
+        if (header.length < capacity) {
+            header = new byte[capacity];
+        }
+        for (int i = 0; i < count; i++) {
+            layout.write(header, 0, i, values[i]);
+        }
+        if (schema.isSeparateChecksum() && checksum != null && size > 0) {
+            checksum.putDigest(checksum.update(checksum.init(), header, 0, size), header, size);
+            return size + checksum.digestByteSize();
+        }
+        return size;
+    }
+
+    private void appendChecksums(Appendable out, PackageKit pkg, PacketSchema schema, Layout layout, boolean dismantled, int headerBytes) throws IOException {
+        PackageKitChecksums checksum = schema.getChecksum();
+        if (checksum == null) {
+            return;
+        }
+        int size = schema.getLayout().byteSize();
+        if (schema.isSeparateChecksum()) {
+            out.append(layout.headerChecksumLabel);
+            if (dismantled) {
+                out.append(pkg.isHeaderChecksumOk() ? "OK!" : "FAIL!");
+            } else {
+                // Last digest bytes of the compiled header, zero padded like Bytes.resize()
+                for (int i = headerBytes - checksum.digestByteSize(); i < headerBytes; i++) {
+                    appendDigestHex(out, i < 0 ? 0 : header[i]);
+                }
+            }
+            out.append('\n').append(layout.payloadChecksumLabel);
+            if (pkg.payloadLength() != 0) {
+                if (dismantled) {
+                    out.append(pkg.isPayloadChecksumOk() ? "OK!" : "FAIL!");
+                } else {
+                    appendDigest(out, checksum, pkg.updatePayload(checksum.init()));
+                }
+            }
+        } else {
+            out.append(layout.checksumLabel);
+            if (dismantled) {
+                out.append(pkg.isChecksumOk() ? "OK!" : "FAIL!");
+            } else {
+                appendDigest(out, checksum, pkg.updatePayload(checksum.update(checksum.init(), header, 0, size)));
+            }
+        }
+        out.append('\n');
+    }
+
+    // Bytes encode() would produce, without stamping the sequence
+    private void appendCompiledHex(Appendable out, PackageKit pkg, PacketSchema schema) throws IOException {
+        PackageKitChecksums checksum = schema.getChecksum();
+        int size = schema.getLayout().byteSize();
+        appendHex(out, header, 0, size);
+        if (checksum == null) {
+            appendPayloadHex(out, pkg);
+            return;
+        }
+        int crc = checksum.update(checksum.init(), header, 0, size);
+        if (schema.isSeparateChecksum()) {
+            appendHex(out, digest, 0, digest(checksum, crc));
+            crc = checksum.init();
+        }
+        appendPayloadHex(out, pkg);
+        if (!schema.isSeparateChecksum() || pkg.payloadLength() != 0) {
+            appendHex(out, digest, 0, digest(checksum, pkg.updatePayload(crc)));
+        }
+    }
+
+    private static void appendPayloadHex(Appendable out, PackageKit pkg) throws IOException {
+        for (int i = 0; i < pkg.payloadLength(); i++) {
+            appendHex(out, pkg.payloadByte(i));
+        }
+    }
+
+    private void appendDigest(Appendable out, PackageKitChecksums checksum, int crc) throws IOException {
+        int size = digest(checksum, crc);
+        for (int i = 0; i < size; i++) {
+            appendDigestHex(out, digest[i]);
+        }
+    }
+
+    private int digest(PackageKitChecksums checksum, int crc) {
+        checksum.putDigest(crc, digest, 0);
+        return checksum.digestByteSize();
+    }
+
+    private static void appendDigestHex(Appendable out, byte b) throws IOException {
+        out.append(DIGEST_HEX[b >> 4 & 0xF]).append(DIGEST_HEX[b & 0xF]);
+    }
+
+    private static void appendHex(Appendable out, byte b) throws IOException {
+        out.append(HEX[b >> 4 & 0xF]).append(HEX[b & 0xF]);
+    }
+
+    private static void appendHex(Appendable out, int b) throws IOException {
+        appendHex(out, (byte) b);
+    }
+
+    // Like %X: no leading zeros, two's complement for negative values
+    private static void appendHex(Appendable out, long value) throws IOException {
+        int nibbles = Integer.max(1, (Long.SIZE - Long.numberOfLeadingZeros(value) + 3) / 4);
+        for (int shift = (nibbles - 1) * 4; shift >= 0; shift -= 4) {
+            out.append(HEX[(int) (value >>> shift) & 0xF]);
+        }
+    }
+
+    private static void appendDecimal(Appendable out, int value) throws IOException {
+        if (value < 0) {
+            out.append('-');
+            value = -value;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.append((char) ('0' + value / divisor % 10));
+        }
+    }
+
+    private static String pad(String s, int width, boolean left) {
+        if (s.length() >= width) {
+            return s;
+        }
+        String padding = width - s.length() <= SPACES.length() ? SPACES.substring(0, width - s.length()) : " ".repeat(width - s.length());
+        return left ? s + padding : padding + s;
+    }
+
+    /***************************
+     *         Layout
+     **************************/
+
+    /**
+     * Labels of one schema, created once by {@link PacketSchema} on first use.
+     */
+    static final class Layout {
+        private final String composition;
+        private final String[] fieldPrefix;
+        private final String checksumLabel;
+        private final String headerChecksumLabel;
+        private final String payloadChecksumLabel;
+        private final String compiledMarker;
+        private final String dismantledMarker;
+
+        Layout(PacketSchema schema) {
+            FieldLayout layout = schema.getLayout();
+            this.composition = "Field size  : " + schema.headerSize() + " bytes\n" +
+                    "Field count : " + schema.fieldCount() + '\n' +
+                    "Components  : " + schema.subPackageNames() + '\n' +
+                    "--- Header composition ---\n";
+            this.fieldPrefix = new String[layout.fieldCount()];
+            for (int i = 0; i < fieldPrefix.length; i++) {
+                String bits = pad(Integer.toString(layout.bitSize(i)), 2, false);
+                fieldPrefix[i] = pad('\'' + layout.name(i) + '\'', schema.ppPad() + 3, true) + ": bits: " + bits + ", value: 0x";
+            }
+            String description = schema.getChecksum() == null ? "" : schema.getChecksum().description();
+            this.checksumLabel = description + ": ";
+            this.headerChecksumLabel = "Header  " + description + ": ";
+            this.payloadChecksumLabel = "Payload " + description + ": ";
+            this.compiledMarker = pad(HEADER_PAYLOAD, COMPILED.length() + schema.headerSize() * 2 + 8, false);
+            this.dismantledMarker = pad(HEADER_PAYLOAD, DISMANTLED.length() + schema.headerSize() * 2 + 8, false);
+        }
+    }
+
+    // US-ASCII view of a ByteBuffer, reused by formatTo(PackageKit, ByteBuffer)
+    private static final class AsciiSink implements Appendable {
+        private ByteBuffer out;
+
+        @Override
+        public Appendable append(CharSequence csq) {
+            return append(csq, 0, csq.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            if (out.remaining() < end - start) {
+                throw new BufferOverflowException();
+            }
+            for (int i = start; i < end; i++) {
+                out.put((byte) csq.charAt(i));
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            out.put((byte) c);
+            return this;
+        }
+    }
+}
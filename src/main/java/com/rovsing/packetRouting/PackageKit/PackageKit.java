@@ -5,46 +5,55 @@ import at.favre.lib.bytes.BytesTransformer;
 import at.favre.lib.bytes.BytesTransformer.ResizeTransformer;
 import lombok.Getter;
 
-import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
-import java.util.Optional;
+import java.util.Objects;
 
 
 public class PackageKit {
-    private final HashMap<String, Field> headerComposition;
-    private final HashMap<String, PackageKit> headerSubFieldMap;
+    private static final Bytes EMPTY = Bytes.empty();
+
+    private PacketSchema schema;
+    // Package holding the field values. Sub-package kits share the values of the package they were taken from.
+    private final PackageKit root;
+    private final int base;
+    private long[] values;
+    private Field[] fieldViews;
+    private PackageKit[] subPkgs;
     private final boolean useSeparateChecksum;
-    private Field head;
-    private Field tail;
-    private int headerBitSum = 0;
 
     @Getter
     private String pkgName;
+    // Materialised payload. Null while only the zero-copy view [payloadOffset, payloadOffset + payloadViewLength)
+    // of payloadSource is held.
     private Bytes payload;
-    private Bytes dismantledPkg;
+    private ByteBuffer payloadSource;
+    private int payloadOffset;
+    private int payloadViewLength;
+    // Source buffer holding the last decoded package at [pkgOffset, pkgOffset + pkgLength). Null when the package
+    // is compiled.
+    private ByteBuffer dismantledPkg;
+    private int pkgOffset;
+    private int pkgLength;
+    // Wrapper of the last byte[] decoded from or encoded into, reused while the array stays the same
+    private ByteBuffer wrapped;
+    // Resolved on first use while metrics are enabled
+    private PackageMetrics metrics;
+    // Sequence stamped into the package on every encode, null if none
+    private SequenceCounters.Stamp sequence;
+    // Verification of dismantledPkg, computed while decoding it
+    private boolean checksumOk;
+    private boolean headerChecksumOk;
+    private boolean payloadChecksumOk;
     private final int pecSizeHeader;
     private final int pecSizePayload;
-    private int fieldCount = 0;
 
-    private int ppPad = 0;
     private final com.rovsing.packetRouting.PackageKit.PackageKitChecksums checksum;
 
     public PackageKit(String pkgName, com.rovsing.packetRouting.PackageKit.PackageKitChecksums checksum, boolean useSeparateHeaderChecksum) {
-        this.pkgName = pkgName;
-        headerComposition = new HashMap<>();
-        headerSubFieldMap = new LinkedHashMap<>();
-        payload = Bytes.empty();
-        dismantledPkg = Bytes.empty();
-        this.checksum = checksum;
-        this.useSeparateChecksum = useSeparateHeaderChecksum;
-        if (checksum == null) {
-            pecSizeHeader = 0;
-            pecSizePayload = 0;
-        } else {
-            pecSizePayload = checksum.digestByteSize();
-            pecSizeHeader = useSeparateHeaderChecksum ? pecSizePayload : 0;
-        }
+        this(PacketSchema.empty(pkgName, checksum, useSeparateHeaderChecksum));
     }
 
     public PackageKit(String pkgName, com.rovsing.packetRouting.PackageKit.PackageKitChecksums checksum) {
@@ -55,9 +64,23 @@ public class PackageKit {
         this(pkgName, null, false);
     }
 
+    /**
+     * New package from a compiled schema. Only the default values are copied, fields and sub-packages are created
+     * when first accessed.
+     */
+    public PackageKit(PacketSchema schema) {
+        this(schema, null, 0);
+        this.values = schema.copyDefaults();
+    }
+
+    /**
+     * Copy of the field values of {@code from} under its schema, so the clone is accepted wherever {@code from} is
+     * (pools, sequences, dispatchers). {@link #reset()} restores the defaults of the schema, not the copied values.
+     */
     public PackageKit(PackageKit from, String cloneName) {
-        this(cloneName, from.checksum, from.useSeparateChecksum);
-        merge(from);
+        this(from.schema, null, 0);
+        this.values = from.currentValues();
+        this.pkgName = cloneName;
     }
 
     public PackageKit(PackageKit from) {
@@ -65,46 +88,39 @@ public class PackageKit {
     }
 
     // Shadow copy
-    private PackageKit(String pkgName, Field head, Field tail) {
-        this(pkgName, null, false);
-        this.head = head;
-        this.tail = tail;
-        Field walker = head;
-        while (walker != tail) {
-            ppPad = Integer.max(walker.name.length(), ppPad);
-            headerComposition.put(walker.name, walker);
-            headerBitSum += walker.bitSize;
-            walker = walker.nextField;
-        }
-        headerComposition.put(walker.name, walker);
-        headerBitSum += walker.bitSize;
-    }
-
-    private void merge(PackageKit from) {
-        cloneFields(from);
-        from.headerSubFieldMap.forEach((key, value) -> {
-            headerSubFieldMap.put(key, new PackageKit(value.pkgName, headerComposition.get(value.head.name), headerComposition.get(value.tail.name)));
-        });
+    private PackageKit(PacketSchema schema, PackageKit root, int base) {
+        this.schema = schema;
+        this.root = root == null ? this : root;
+        this.base = base;
+        this.pkgName = schema.getName();
+        this.checksum = schema.getChecksum();
+        this.useSeparateChecksum = schema.isSeparateChecksum();
+        this.pecSizeHeader = schema.getPecSizeHeader();
+        this.pecSizePayload = schema.getPecSizePayload();
+        payload = EMPTY;
     }
 
     /***************************
      *       Fields
      **************************/
     public PackageKit addField(String fieldName, int bitLength, int fieldValue) {
-        if(headerComposition.containsKey(fieldName)){
+        return addField(fieldName, bitLength, (long) fieldValue);
+    }
+
+    public PackageKit addField(String fieldName, int bitLength, long fieldValue) {
+        if (schema.indexOf(fieldName) >= 0) {
             throw new IllegalArgumentException("A field named '" + fieldName + "' already exist in package '" + pkgName+ "'. Duplicate fields are not allowed!");
         }
-        ppPad = Integer.max(fieldName.length(), ppPad);
-        headerBitSum += bitLength;
-        fieldCount++;
-        if (head == null) {
-            head = new Field(fieldName, bitLength, fieldValue);
-            tail = head;
-        } else {
-            tail.nextField = new Field(fieldName, bitLength, fieldValue);
-            tail = tail.nextField;
+        if (root != this) {
+            throw new IllegalStateException("Sub-package '" + pkgName + "' can not be extended. Add fields to the package it was taken from.");
+        }
+        int count = schema.fieldCount();
+        schema = schema.withField(fieldName, bitLength, fieldValue);
+        values = Arrays.copyOf(values, count + 1);
+        values[count] = schema.getDefault(count);
+        if (fieldViews != null) {
+            fieldViews = Arrays.copyOf(fieldViews, count + 1);
         }
-        headerComposition.put(fieldName, tail);
         return this;
     }
 
@@ -114,41 +130,230 @@ public class PackageKit {
     }
 
     public PackageKit addFieldsFrom(PackageKit from) {
-        ppPad = Integer.max(from.ppPad, ppPad);
-        merge(from);
-        headerSubFieldMap.put(from.pkgName, new PackageKit(from.pkgName, headerComposition.get(from.head.name), headerComposition.get(from.tail.name)));
+        int first = schema.fieldCount();
+        FieldLayout fromLayout = from.schema.getLayout();
+        for (int i = 0; i < fromLayout.fieldCount(); i++) {
+            addField(fromLayout.name(i), fromLayout.bitSize(i), from.root.values[from.base + i]);
+        }
+        for (int i = 0; i < from.schema.subPackageCount(); i++) {
+            PacketSchema sub = from.schema.subPackage(i);
+            schema = schema.withSubPackage(sub.getName(), first + from.schema.subPackageBase(i), sub.fieldCount());
+        }
+        schema = schema.withSubPackage(from.pkgName, first, fromLayout.fieldCount());
+        subPkgs = null;
+        return this;
+    }
+
+    /**
+     * Declare {@code fieldName} as holding the payload size in bytes, so packages can be found in a byte stream
+     * (see {@link FrameDecoder}).
+     */
+    public PackageKit setPayloadLengthField(String fieldName) {
+        return setFraming(PacketSchema.FrameKind.PAYLOAD_LENGTH, handle(fieldName), 0);
+    }
+
+    /**
+     * Declare {@code fieldName} as holding the package size in bytes minus {@code adjust}.
+     */
+    public PackageKit setPacketLengthField(String fieldName, int adjust) {
+        return setFraming(PacketSchema.FrameKind.PACKET_LENGTH, handle(fieldName), adjust);
+    }
 
+    /**
+     * Declare the package as header only, it never carries a payload.
+     */
+    public PackageKit setHeaderOnlyFrame() {
+        return setFraming(PacketSchema.FrameKind.HEADER_ONLY, -1, 0);
+    }
+
+    /**
+     * Let the encoder fill {@code fieldName} with the payload size plus {@code offset}, e.g. RMAP dataLength.
+     */
+    public PackageKit derivePayloadLength(String fieldName, long offset) {
+        return setDerived(PacketSchema.Derivation.PAYLOAD_LENGTH, fieldName, offset);
+    }
+
+    /**
+     * Let the encoder fill {@code fieldName} with the encoded package size plus {@code offset}, e.g. PUS length with
+     * offset -7.
+     */
+    public PackageKit derivePacketLength(String fieldName, long offset) {
+        return setDerived(PacketSchema.Derivation.PACKET_LENGTH, fieldName, offset);
+    }
+
+    /**
+     * Stamp the next value of a shared sequence into the package every time it is encoded, e.g. the PUS
+     * {@code seqCounter} of its {@code apid}. Null stops stamping.
+     */
+    public PackageKit setSequence(SequenceCounters.Stamp stamp) {
+        if (stamp != null && stamp.getSchema() != schema) {
+            throw new IllegalArgumentException("Sequence of schema '" + stamp.getSchema().getName() + "' can not stamp PackageKit '" + pkgName + "'");
+        }
+        sequence = stamp;
+        return this;
+    }
+
+    private PackageKit setDerived(PacketSchema.Derivation derivation, String fieldName, long offset) {
+        if (root != this) {
+            throw new IllegalStateException("Sub-package '" + pkgName + "' can not derive fields. Declare them on the package it was taken from.");
+        }
+        schema = schema.withDerived(handle(fieldName), derivation, offset);
+        return this;
+    }
+
+    private PackageKit setFraming(PacketSchema.FrameKind kind, int lengthIndex, int adjust) {
+        if (root != this) {
+            throw new IllegalStateException("Sub-package '" + pkgName + "' can not be framed. Declare the length on the package it was taken from.");
+        }
+        schema = schema.withFraming(kind, lengthIndex, adjust);
         return this;
     }
 
+    /**
+     * Compile the current composition and field values into an immutable {@link PacketSchema}. The field values
+     * become the defaults of every package created from the schema.
+     */
+    public PacketSchema toSchema() {
+        if (root == this && schema.hasDefaults(values, 0) && schema.getName().equals(pkgName)) {
+            return schema;
+        }
+        return schema.withDefaults(pkgName, currentValues());
+    }
+
+    /**
+     * Schema of the current composition. Field values are not part of it, see {@link #toSchema()}.
+     */
+    public PacketSchema getSchema() {
+        return schema;
+    }
+
     public Field getField(String name) {
-        return Optional.ofNullable(headerComposition.get(name)).orElseThrow(() -> new NoSuchElementException("Field: '" + name + "' not found in " + pkgName));
+        int index = schema.indexOf(name);
+        if (index < 0) {
+            throw new NoSuchElementException("Field: '" + name + "' not found in " + pkgName);
+        }
+        return root.field(base + index);
+    }
+
+    /**
+     * Resolve a field name once to a handle. The handle is valid for this package and every package cloned from
+     * it (e.g. all instances made by a factory from the same template) and for views of them.
+     */
+    public int handle(String name) {
+        int index = schema.indexOf(name);
+        if (index < 0) {
+            throw new NoSuchElementException("Field: '" + name + "' not found in " + pkgName);
+        }
+        return index;
+    }
+
+    public Field getField(int handle) {
+        return root.field(base + handle);
+    }
+
+    public int getValue(int handle) {
+        return (int) root.values[base + handle];
+    }
+
+    public PackageKit setValue(int handle, int value) {
+        root.values[base + handle] = value & schema.getLayout().mask(handle);
+        return this;
+    }
+
+    public long getLong(int handle) {
+        return root.values[base + handle];
+    }
+
+    public PackageKit setLong(int handle, long value) {
+        root.values[base + handle] = value & schema.getLayout().mask(handle);
+        return this;
     }
 
     public PackageKit getSubPkg(String name) {
-        return headerSubFieldMap.get(name);
+        int index = schema.subPackageIndex(name);
+        if (index < 0) {
+            return null;
+        }
+        if (subPkgs == null) {
+            subPkgs = new PackageKit[schema.subPackageCount()];
+        }
+        if (subPkgs[index] == null) {
+            subPkgs[index] = new PackageKit(schema.subPackage(index), root, base + schema.subPackageBase(index));
+        }
+        return subPkgs[index];
     }
 
     public PackageKit setSubPkg(String name, Bytes value) {
-        return headerSubFieldMap.get(name).fromBytes(value);
+        return getSubPkg(name).fromBytes(value);
     }
 
+    /**
+     * Header as it would be encoded, derived fields included. The field values are not changed.
+     */
     public Bytes getHeader() {
         return compileHeader();
     }
 
+    /**
+     * Lazy read-only view of the package at {@code buf[off]} using this package's field composition. Fields are
+     * only extracted when read. Re-point the returned view with {@link PackageView#wrap(byte[], int)}.
+     */
+    public PackageView view(byte[] buf, int off) {
+        return new PackageView(schema).wrap(buf, off);
+    }
+
+    public PackageView view(ByteBuffer buf, int off) {
+        return new PackageView(schema).wrap(buf, off);
+    }
+
     /***************************
      *       Payload
      **************************/
     public PackageKit setPayload(Bytes data) {
         payload = data;
+        payloadSource = null;
+        return this;
+    }
+
+    /**
+     * Use the remaining bytes of {@code data} as payload without copying them. The buffer content must stay
+     * untouched until the package has been encoded.
+     */
+    public PackageKit setPayload(ByteBuffer data) {
+        payload = null;
+        payloadSource = data;
+        payloadOffset = data.position();
+        payloadViewLength = data.remaining();
         return this;
     }
 
     public Bytes getPayload() {
+        if (payload == null) {
+            byte[] copy = new byte[payloadViewLength];
+            payloadSource.get(payloadOffset, copy);
+            payload = Bytes.wrap(copy);
+        }
         return payload;
     }
 
+    /**
+     * Read-only view of the payload. After a decode this is a slice of the source buffer, no bytes are copied.
+     */
+    public ByteBuffer getPayloadBuffer() {
+        if (payload != null) {
+            return payload.buffer().asReadOnlyBuffer();
+        }
+        return payloadSource.slice(payloadOffset, payloadViewLength).asReadOnlyBuffer();
+    }
+
+    int payloadLength() {
+        return payload == null ? payloadViewLength : payload.length();
+    }
+
+    byte payloadByte(int index) {
+        return payload == null ? payloadSource.get(payloadOffset + index) : payload.array()[index];
+    }
+
     /***************************
      *       Certify
      **************************/
@@ -167,43 +372,50 @@ public class PackageKit {
     }
 
     public Bytes getPayloadChecksum() {
-        if (checksum == null || payload.isEmpty()) {
+        if (checksum == null || payloadLength() == 0) {
             return Bytes.empty();
         }
-        return payload.transform(checksum);
+        return digest(updatePayload(checksum.init()));
     }
 
     public Bytes getChecksum() {
         if (checksum == null) {
             return Bytes.empty();
         }
-        return compileHeader().append(payload).transform(checksum);
+        Bytes header = compileHeader();
+        return digest(updatePayload(checksum.update(checksum.init(), header.array(), 0, header.length())));
     }
 
+    /**
+     * Verification of the last decoded package. The result is computed during decode and cached until the next
+     * decode, encode or {@link #clear()}.
+     */
     public boolean isHeaderChecksumOk() {
-        if (checksum == null || dismantledPkg.isEmpty()) {
+        if (checksum == null || dismantledPkg == null) {
             return true;
         }
-
-        return checksum.check(dismantledPkg.copy(0, headerSize()));
+        if (useSeparateChecksum) {
+            return headerChecksumOk;
+        }
+        return checksum.check(dismantledPkg, pkgOffset, headerSize());
     }
 
     public boolean isPayloadChecksumOk() {
-        if (checksum == null || dismantledPkg.isEmpty()) {
+        if (checksum == null || dismantledPkg == null) {
             return true;
         }
-        return checksum.check(dismantledPkg.copy(headerSize(), dismantledPkg.length() - headerSize()));
+        if (useSeparateChecksum) {
+            return payloadChecksumOk;
+        }
+        return checksum.check(dismantledPkg, pkgOffset + headerSize(), pkgLength - headerSize());
     }
 
 
     public boolean isChecksumOk() {
-        if (checksum == null || dismantledPkg.isEmpty()) {
+        if (checksum == null || dismantledPkg == null) {
             return true;
         }
-        if (useSeparateChecksum) {
-            return isHeaderChecksumOk() && isPayloadChecksumOk();
-        }
-        return checksum.check(dismantledPkg);
+        return checksumOk;
     }
 
     /***************************
@@ -211,9 +423,26 @@ public class PackageKit {
      **************************/
 
     public void clear() {
-        head.clearAll();
-        payload = Bytes.empty();
-        dismantledPkg = Bytes.empty();
+        Arrays.fill(root.values, base, base + schema.fieldCount(), 0);
+        payload = EMPTY;
+        payloadSource = null;
+        dismantledPkg = null;
+    }
+
+    /**
+     * Restore the default field values of the schema and the package name, and drop payload, decode state, the
+     * wrapper of the last array decoded from or encoded into and sequence stamp.
+     * Nothing is allocated, so instances can be recycled (see {@link PackagePool}).
+     */
+    public PackageKit reset() {
+        schema.restoreDefaults(root.values, base);
+        pkgName = schema.getName();
+        payload = EMPTY;
+        payloadSource = null;
+        dismantledPkg = null;
+        wrapped = null;
+        sequence = null;
+        return this;
     }
 
     public PackageKit fromBytes(byte[] bytes) {
@@ -221,124 +450,322 @@ public class PackageKit {
     }
 
     public PackageKit fromBytes(Bytes pkgBytes) {
-        assertHeaderSize();
-
-        if (pkgBytes.length() < headerSize()) {
-            System.err.println(pkgName + ": fromBytes input size is too small (" + pkgBytes.length() + ")! Input has been padded (" + (headerSize() - pkgBytes.length()) + ") to match header size (" + headerSize() + ")! (from LSB)");
-            return fromBytesHeaderOnly(pkgBytes);
-        }
-
-        head.dismantle(pkgBytes, 0, tail);
-        payload = pkgBytes.copy(headerSize(), pkgBytes.length() - headerSize() - pecSizePayload);
-        dismantledPkg = pkgBytes;
+        return decode(pkgBytes.buffer(), 0, pkgBytes.length());
+    }
+
+    /**
+     * Decode the package held in {@code src[off, off + length)}. The payload is kept as a view of {@code src},
+     * so the array must not be reused while this package is in use. Decoding repeatedly from the same array
+     * allocates nothing.
+     */
+    public PackageKit decodeFrom(byte[] src, int off, int length) {
+        Objects.checkFromIndexSize(off, length, src.length);
+        return decode(wrap(src), off, length);
+    }
+
+    /**
+     * Decode the remaining bytes of {@code src} as one package and advance its position to the limit. Heap and
+     * direct buffers are supported. The payload is kept as a view of {@code src}, so the buffer content must not
+     * be reused while this package is in use.
+     */
+    public PackageKit decodeFrom(ByteBuffer src) {
+        decode(src, src.position(), src.remaining());
+        src.position(src.limit());
         return this;
     }
 
+    /**
+     * Decode the package held in {@code src[off, off + length)} using absolute indices, the position and limit of
+     * {@code src} are not touched. The payload is kept as a view of {@code src}.
+     */
+    public PackageKit decodeFrom(ByteBuffer src, int off, int length) {
+        Objects.checkFromIndexSize(off, length, src.limit());
+        return decode(src, off, length);
+    }
+
     public PackageKit fromBytesHeaderOnly(Bytes pkgBytes) {
         assertHeaderSize();
-        dismantledPkg = pkgBytes.resize(headerSize(), ResizeTransformer.Mode.RESIZE_KEEP_FROM_ZERO_INDEX);
-        head.dismantle(dismantledPkg, tail);
-        payload = Bytes.empty();
+        dismantledPkg = pkgBytes.resize(headerSize(), ResizeTransformer.Mode.RESIZE_KEEP_FROM_ZERO_INDEX).buffer();
+        pkgOffset = 0;
+        pkgLength = headerSize();
+        dismantle(dismantledPkg, 0);
+        verify();
+        payload = EMPTY;
+        payloadSource = null;
         return this;
     }
 
     public Bytes toBytes() {
+        byte[] pkg = new byte[encodedSize()];
+        encodeInto(pkg, 0);
+        return Bytes.wrap(pkg);
+    }
+
+    /**
+     * Encode the package into {@code dst} starting at {@code off}.
+     *
+     * @return number of bytes written (see {@link #encodedSize()})
+     */
+    public int encodeInto(byte[] dst, int off) {
         assertHeaderSize();
-        dismantledPkg = Bytes.empty();
-        if (useSeparateChecksum) {
-            return compileHeader().append(payload).append(getPayloadChecksum());
+        int size = encodedSize();
+        Objects.checkFromIndexSize(off, size, dst.length);
+        return encode(wrap(dst), off);
+    }
+
+    /**
+     * Encode the package at the position of {@code dst} and advance the position past it. Heap and direct
+     * buffers are supported.
+     *
+     * @return number of bytes written (see {@link #encodedSize()})
+     */
+    public int encodeInto(ByteBuffer dst) {
+        assertHeaderSize();
+        int size = encodedSize();
+        if (dst.remaining() < size) {
+            throw new BufferOverflowException();
         }
-        return compileHeader().append(payload).append(getChecksum());
+        encode(dst, dst.position());
+        dst.position(dst.position() + size);
+        return size;
     }
 
     /***************************
      *         Info
      **************************/
     public int size() {
-        return dismantledPkg.isEmpty() ? headerSize() + payloadSize() : dismantledPkg.length();
+        return dismantledPkg == null ? headerSize() + payloadSize() : pkgLength;
+    }
+
+    /**
+     * Exact number of bytes produced by {@link #toBytes()} and {@link #encodeInto(ByteBuffer)}.
+     */
+    public int encodedSize() {
+        int size = headerSize() + payloadLength();
+        if (checksum != null && (!useSeparateChecksum || payloadLength() != 0)) {
+            size += pecSizePayload;
+        }
+        return size;
     }
 
     public int headerSize() {
-        return (headerBitSum / Byte.SIZE) + pecSizeHeader;
+        return schema.headerSize();
     }
 
     public int payloadSize() {
-        return payload.length() + pecSizePayload;
+        return payloadLength() + pecSizePayload;
+    }
+
+
+    /**
+     * Description of the package, see {@link PackageFormatter}. Formatting has no side effects on the package.
+     */
+    @Override
+    public String toString() {
+        return PackageFormatter.local().format(this, new StringBuilder(512)).toString();
+    }
+
+    /***************************
+     *        Internals
+     **************************/
+    private void assertHeaderSize() {
+        schema.assertHeaderSize(pkgName);
+    }
+
+    private Bytes compileHeader() {
+        // If this is a subfield only compile this headerComposition(size). Derived fields are filled in a copy, only
+        // an encode writes them back.
+        FieldLayout layout = schema.getLayout();
+        long[] values = new long[layout.fieldCount()];
+        copyValues(values, dismantledPkg == null);
+        byte[] header = new byte[layout.byteSize()];
+        for (int i = 0; i < layout.fieldCount(); i++) {
+            layout.write(header, 0, i, values[i]);
+        }
+        Bytes compiled = Bytes.wrap(header);
+        return compiled.append(getHeaderChecksum(compiled));
+    }
+
+    // Decode src[off, off + length) using absolute indices only, the buffer position and limit are not touched
+    private PackageKit decode(ByteBuffer src, int off, int length) {
+        assertHeaderSize();
+        boolean measure = PackageMetrics.isEnabled();
+        long start = measure ? System.nanoTime() : 0;
+
+        if (length < headerSize()) {
+            // Padded to the header size (from LSB), only counted while metrics are enabled
+            if (measure) {
+                metrics().recordShortInput();
+            }
+            byte[] padded = new byte[length];
+            src.get(off, padded);
+            fromBytesHeaderOnly(Bytes.wrap(padded));
+            if (measure) {
+                recordDecode(length, start);
+            }
+            return this;
+        }
+
+        dismantle(src, off);
+        // Packages without payload (e.g. RMAP replies) carry no payload checksum
+        payload = null;
+        payloadSource = src;
+        payloadOffset = off + headerSize();
+        payloadViewLength = Integer.max(0, length - headerSize() - pecSizePayload);
+        dismantledPkg = src;
+        pkgOffset = off;
+        pkgLength = length;
+        verify();
+        if (measure) {
+            recordDecode(length, start);
+        }
+        return this;
     }
 
+    private void recordDecode(int length, long start) {
+        PackageMetrics metrics = metrics();
+        metrics.recordDecode(length, System.nanoTime() - start);
+        metrics.recordChecksums(isChecksumOk(), useSeparateChecksum && checksum != null, headerChecksumOk, payloadChecksumOk);
+    }
+
+    private PackageMetrics metrics() {
+        if (metrics == null) {
+            metrics = PackageMetrics.of(schema.getName());
+        }
+        return metrics;
+    }
 
-    private String formatChecksumString() {
+    private void verify() {
         if (checksum == null) {
-            return "";
+            return;
         }
-        String chk;
         if (useSeparateChecksum) {
-            String headerRes = (dismantledPkg.isEmpty() ? getHeaderChecksum().encodeHex() : (isHeaderChecksumOk() ? "OK!" : "FAIL!"));
-            String payloadRes = (dismantledPkg.isEmpty() ? getPayloadChecksum().encodeHex() : (payload.isEmpty() ? "" : (isPayloadChecksumOk() ? "OK!" : "FAIL!")));
-            chk = String.format("Header  %s: %s\nPayload %s: %s", checksum.description(), headerRes, checksum.description(), payloadRes);
+            headerChecksumOk = checksum.check(dismantledPkg, pkgOffset, headerSize());
+            payloadChecksumOk = checksum.check(dismantledPkg, pkgOffset + headerSize(), pkgLength - headerSize());
+            checksumOk = headerChecksumOk && payloadChecksumOk;
         } else {
-            String pkgRes = (dismantledPkg.isEmpty() ? getChecksum().encodeHex() : (isChecksumOk() ? "OK!" : "FAIL!"));
-            chk = String.format("%s: %s", checksum.description(), pkgRes);
+            checksumOk = checksum.check(dismantledPkg, pkgOffset, pkgLength);
         }
-        return chk + '\n';
     }
 
-    private String formatPkgString() {
-        String pkg;
-        String type;
-        if (dismantledPkg.isEmpty()) {
-            type = "Compiled Package : ";
-            pkg = toBytes().encodeHex().toUpperCase();
+    private void dismantle(ByteBuffer pkg, int off) {
+        FieldLayout layout = schema.getLayout();
+        long[] values = root.values;
+        if (pkg.hasArray()) {
+            byte[] array = pkg.array();
+            int arrayOff = pkg.arrayOffset() + off;
+            for (int i = 0; i < layout.fieldCount(); i++) {
+                values[base + i] = layout.read(array, arrayOff, i);
+            }
         } else {
-            type = "Dismantled Package : ";
-            pkg = dismantledPkg.encodeHex().toUpperCase();
+            for (int i = 0; i < layout.fieldCount(); i++) {
+                values[base + i] = layout.read(pkg, off, i);
+            }
         }
-        return String.format("%s%s\n%" + (type.length() + (headerSize() * 2) + 8) + "s", type, pkg, "header | payload");
     }
 
-    @Override
-    public String toString() {
+    private int encode(ByteBuffer dst, int off) {
+        boolean measure = PackageMetrics.isEnabled();
+        long start = measure ? System.nanoTime() : 0;
+        dismantledPkg = null;
+        if (sequence != null) {
+            sequence.apply(root.values, base);
+        }
+        deriveFields();
+        FieldLayout layout = schema.getLayout();
+        long[] values = root.values;
+        for (int i = 0; i < layout.fieldCount(); i++) {
+            layout.write(dst, off, i, values[base + i]);
+        }
+        int pos = off + layout.byteSize();
+        // The CRC register is carried along while the header and payload are written, nothing is read back
+        int crc = 0;
+        if (checksum != null) {
+            crc = checksum.update(checksum.init(), dst, off, layout.byteSize());
+            if (useSeparateChecksum) {
+                checksum.putDigest(crc, dst, pos);
+                pos += pecSizeHeader;
+                crc = checksum.init();
+            }
+        }
 
+        int payloadLength = payloadLength();
+        if (payload != null) {
+            dst.put(pos, payload.array(), 0, payloadLength);
+        } else {
+            dst.put(pos, payloadSource, payloadOffset, payloadLength);
+        }
+        pos += payloadLength;
 
-        return "=== PackageKit: '" + pkgName + '\'' + " ===\n" +
-                "Package size: " + size() + " bytes" + '\n' +
-                "Payload size: " + payloadSize() + " bytes" + '\n' +
-                "Field size  : " + headerSize() + " bytes" + '\n' +
-                "Field count : " + headerComposition.size() + '\n' +
-                "Components  : " + headerSubFieldMap.keySet() + '\n' +
-                "--- Header composition ---" + '\n' +
-                head.toStringNested(ppPad + 3, tail) + '\n' +
-                "--- Pkg composition (hex) ---" + '\n' +
-                "Header  : " + compileHeader().encodeHex().toUpperCase() + '\n' +
-                "Payload : " + payload.append().encodeHex().toUpperCase() + '\n' +
-                formatChecksumString() +
-                formatPkgString() +
-                '\n';
+        if (checksum != null && (!useSeparateChecksum || payloadLength != 0)) {
+            checksum.putDigest(updatePayload(crc), dst, pos);
+            pos += pecSizePayload;
+        }
+        if (measure) {
+            metrics().recordEncode(pos - off, System.nanoTime() - start);
+        }
+        return pos - off;
+    }
 
+    private void deriveFields() {
+        schema.applyDerived(root.values, base, payloadLength(), encodedSize());
     }
 
-    /***************************
-     *        Internals
-     **************************/
-    private void assertHeaderSize() {
-        if (headerBitSum % Byte.SIZE != 0) {
-            throw new IllegalArgumentException("PackageKit invalid number of bits in header of " + pkgName + " (has " + headerBitSum + " bits). Must be multiple of Byte.SIZE");
+    int updatePayload(int crc) {
+        if (payload != null) {
+            return checksum.update(crc, payload.array(), 0, payload.length());
         }
+        return checksum.update(crc, payloadSource, payloadOffset, payloadViewLength);
     }
 
-    private Bytes compileHeader() {
-        // If this is a subfield only compile this headerComposition(size).
-        Bytes header = head.compile(Bytes.allocate((headerBitSum / Byte.SIZE)), tail);
-        return header.append(getHeaderChecksum(header));
+    private Bytes digest(int crc) {
+        byte[] digest = new byte[checksum.digestByteSize()];
+        checksum.putDigest(crc, digest, 0);
+        return Bytes.wrap(digest);
     }
 
-    private void cloneFields(PackageKit from) {
-        Field head = from.head;
-        while (head != from.tail) {
-            addField(head.name, head.bitSize, head.fieldValue);
-            head = head.nextField;
+    boolean isDismantled() {
+        return dismantledPkg != null;
+    }
+
+    byte dismantledByte(int index) {
+        return dismantledPkg.get(pkgOffset + index);
+    }
+
+    // Field values into dst[0...], with the derived fields an encode would write if derive is set
+    void copyValues(long[] dst, boolean derive) {
+        System.arraycopy(root.values, base, dst, 0, schema.fieldCount());
+        if (derive) {
+            schema.applyDerived(dst, 0, payloadLength(), encodedSize());
+        }
+    }
+
+    private ByteBuffer wrap(byte[] array) {
+        if (wrapped == null || wrapped.array() != array) {
+            wrapped = ByteBuffer.wrap(array);
         }
-        addField(head.name, head.bitSize, head.fieldValue);
+        return wrapped;
+    }
+
+    boolean hasSchema(PacketSchema schema) {
+        return root == this && this.schema == schema;
+    }
+
+    private long[] currentValues() {
+        return Arrays.copyOfRange(root.values, base, base + schema.fieldCount());
+    }
+
+    private Field field(int index) {
+        if (fieldViews == null) {
+            fieldViews = new Field[values.length];
+        }
+        Field field = fieldViews[index];
+        if (field == null) {
+            FieldLayout layout = schema.getLayout();
+            field = new Field(this, index, layout.name(index), layout.bitSize(index));
+            fieldViews[index] = field;
+        }
+        return field;
     }
 
     public void setPkgName(String name) {
@@ -347,41 +774,80 @@ public class PackageKit {
 
 
     public static class Field {
-        private Field nextField;
+        // Package holding the value, null for detached fields created by joinRight/joinLeft
+        private final PackageKit owner;
+        private final int index;
         private final String name;
         private final int bitSize;
-        private int fieldValue;
-        private final int bit_mask;
+        private long fieldValue;
+        private final long bit_mask;
 
-        private Field(String name, int bitSize, int fieldValue) {
-            if (bitSize > Integer.SIZE || bitSize < 1) {
-                throw new IllegalArgumentException("PackageKit invalid field bitLength in " + name + ". Must be at least 1 an no more than Integer.SIZE");
+        private Field(PackageKit owner, int index, String name, int bitSize) {
+            this.owner = owner;
+            this.index = index;
+            this.bit_mask = 0xFFFFFFFFFFFFFFFFL >>> Long.SIZE - bitSize;
+            this.name = name;
+            this.bitSize = bitSize;
+        }
+
+        private Field(String name, int bitSize, long fieldValue) {
+            if (bitSize > Long.SIZE || bitSize < 1) {
+                throw new IllegalArgumentException("PackageKit invalid field bitLength in " + name + ". Must be at least 1 an no more than Long.SIZE");
             }
-            this.bit_mask = 0xFFFFFFFF >>> Integer.SIZE - bitSize;
+            this.owner = null;
+            this.index = 0;
+            this.bit_mask = 0xFFFFFFFFFFFFFFFFL >>> Long.SIZE - bitSize;
             this.name = name;
             this.bitSize = bitSize;
             this.fieldValue = fieldValue & bit_mask;
         }
 
+        private long load() {
+            return owner == null ? fieldValue : owner.values[index];
+        }
+
+        private void store(long value) {
+            if (owner == null) {
+                fieldValue = value & bit_mask;
+            } else {
+                owner.values[index] = value & bit_mask;
+            }
+        }
+
         public void setValue(int value) {
-            this.fieldValue = value & bit_mask;
+            store(value);
         }
 
         public void setValue(Field from) {
-            this.fieldValue = from.getValue() & bit_mask;
+            store(from.load());
+        }
+
+        public void setLong(long value) {
+            store(value);
         }
 
+        /**
+         * Plain read-modify-write of this package only, see {@link SequenceCounters} for sequences shared between
+         * threads.
+         */
         public int increment() {
-            setValue(fieldValue + 1);
-            return this.fieldValue;
+            store(load() + 1);
+            return (int) load();
         }
 
         public int decrement() {
-            setValue(fieldValue - 1);
-            return this.fieldValue;
+            store(load() - 1);
+            return (int) load();
         }
 
+        /**
+         * Mask of the lower 32 bits. Use {@link #getLongBitMask()} for fields wider than Integer.SIZE.
+         */
         public int getBitMask() {
+            return (int) bit_mask;
+        }
+
+        public long getLongBitMask() {
             return bit_mask;
         }
 
@@ -389,51 +855,31 @@ public class PackageKit {
             return getBitMask();
         }
 
-        public int getValue() {
-            return this.fieldValue;
-        }
-
-        public Field joinRight(Field otherField) {
-            return new Field(null, this.bitSize + otherField.bitSize, (this.fieldValue << otherField.bitSize) | otherField.fieldValue);
-        }
-
-        public Field joinLeft(Field f) {
-            return new Field(null, this.bitSize + f.bitSize, (f.fieldValue << this.bitSize) | this.fieldValue);
+        public long getMaxLongValue() {
+            return bit_mask;
         }
 
-        private Bytes compile(Bytes header, int usedBits, Field endField) {
-            Bytes padded = Bytes.from(fieldValue).resize(header.length());
-            Bytes shifted = padded.leftShift((header.length() * Byte.SIZE) - usedBits - this.bitSize);
-            Bytes combined = header.or(shifted);
-            if (this.nextField == null || endField == this) {
-                return combined;
-            }
-            return this.nextField.compile(combined, usedBits + this.bitSize, endField);
+        /**
+         * Lower 32 bits of the value. Use {@link #getLong()} for fields wider than Integer.SIZE.
+         */
+        public int getValue() {
+            return (int) load();
         }
 
-        private Bytes compile(Bytes header, Field endField) {
-            return compile(header, 0, endField);
+        public long getLong() {
+            return load();
         }
 
-        private void dismantle(Bytes header, int usedBits, Field endField) {
-            Bytes shift = header.rightShift((header.length() * Byte.SIZE) - usedBits - this.bitSize);
-            this.fieldValue = shift.resize(Integer.BYTES).toInt() & this.bit_mask;
-            if (this.nextField == null || endField == this) {
-                return;
-            }
-            this.nextField.dismantle(header, usedBits + this.bitSize, endField);
+        public int getBitSize() {
+            return bitSize;
         }
 
-        private void dismantle(Bytes header, Field endField) {
-            dismantle(header, 0, endField);
+        public Field joinRight(Field otherField) {
+            return new Field(null, this.bitSize + otherField.bitSize, (this.load() << otherField.bitSize) | otherField.load());
         }
 
-        private void clearAll() {
-            this.fieldValue = 0;
-            if (this.nextField == null) {
-                return;
-            }
-            nextField.clearAll();
+        public Field joinLeft(Field f) {
+            return new Field(null, this.bitSize + f.bitSize, (f.load() << this.bitSize) | this.load());
         }
 
         @Override
@@ -442,15 +888,7 @@ public class PackageKit {
         }
 
         private String toString(int padding) {
-            return String.format("%-" + padding + "s: bits: %2d, value: 0x%X", '\'' + name + '\'', bitSize, fieldValue);
-        }
-
-        private String toStringNested(int padding, Field tail) {
-
-            if (this == tail) {
-                return toString(padding);
-            }
-            return toString(padding) + '\n' + nextField.toStringNested(padding, tail);
+            return String.format("%-" + padding + "s: bits: %2d, value: 0x%X", '\'' + name + '\'', bitSize, load());
         }
 
     }
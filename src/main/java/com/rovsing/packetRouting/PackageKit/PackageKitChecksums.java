@@ -3,7 +3,14 @@ package com.rovsing.packetRouting.PackageKit;
 import at.favre.lib.bytes.Bytes;
 import at.favre.lib.bytes.BytesTransformer;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 public abstract class PackageKitChecksums implements BytesTransformer {
+    // Reads 8 bytes of any buffer big-endian, whatever byte order the buffer is set to
+    private static final VarHandle LONG_BE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
 
     /**
      * Return size in bytes of the checksum/CRC digest.
@@ -12,15 +19,133 @@ public abstract class PackageKitChecksums implements BytesTransformer {
      */
     public abstract int digestByteSize();
 
-    public abstract boolean check(Bytes bytes);
-
     public abstract String description();
 
+    /**
+     * Start value of the CRC register.
+     */
+    public abstract int init();
+
+    /**
+     * Feed {@code src[off, off + len)} into the CRC register {@code crc} and return the updated register.
+     */
+    public abstract int update(int crc, byte[] src, int off, int len);
+
+    protected abstract int update(int crc, byte b);
+
+    /**
+     * Feed the 8 bytes of {@code word}, most significant byte first. CRCs with slicing tables override this to
+     * consume the word at once.
+     */
+    protected int updateLong(int crc, long word) {
+        for (int shift = Long.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            crc = update(crc, (byte) (word >>> shift));
+        }
+        return crc;
+    }
+
+    /**
+     * Feed {@code len} bytes starting at absolute index {@code index} of {@code src} into the CRC register
+     * {@code crc}. The buffer position is not changed. Direct buffers are read 8 bytes at a time.
+     */
+    public int update(int crc, ByteBuffer src, int index, int len) {
+        if (src.hasArray()) {
+            return update(crc, src.array(), src.arrayOffset() + index, len);
+        }
+        int end = index + len;
+        while (end - index >= Long.BYTES) {
+            crc = updateLong(crc, (long) LONG_BE.get(src, index));
+            index += Long.BYTES;
+        }
+        while (index < end) {
+            crc = update(crc, src.get(index++));
+        }
+        return crc;
+    }
+
+    /**
+     * A range is OK when running the CRC over it, including its trailing digest, leaves a zero register.
+     */
+    public boolean check(byte[] src, int off, int len) {
+        return update(init(), src, off, len) == 0;
+    }
+
+    public boolean check(ByteBuffer src, int index, int len) {
+        return update(init(), src, index, len) == 0;
+    }
+
+    public boolean check(Bytes bytes) {
+        Bytes readable = bytes.isReadOnly() ? bytes.copy() : bytes;
+        return check(readable.array(), 0, readable.length());
+    }
+
+    /**
+     * Write the digest of the CRC register {@code crc} big-endian into {@code dst} at {@code off}.
+     */
+    public void putDigest(int crc, byte[] dst, int off) {
+        for (int i = digestByteSize() - 1; i >= 0; i--) {
+            dst[off + i] = (byte) crc;
+            crc >>>= Byte.SIZE;
+        }
+    }
+
+    public void putDigest(int crc, ByteBuffer dst, int index) {
+        for (int i = digestByteSize() - 1; i >= 0; i--) {
+            dst.put(index + i, (byte) crc);
+            crc >>>= Byte.SIZE;
+        }
+    }
+
+    @Override
+    public byte[] transform(byte[] currentArray, boolean inPlace) {
+        byte[] digest = new byte[digestByteSize()];
+        putDigest(update(init(), currentArray, 0, currentArray.length), digest, 0);
+        return digest;
+    }
+
     @Override
     public final boolean supportInPlaceTransformation() {
         return false;
     }
 
+    /**
+     * Stateful CRC for data arriving in pieces. Not thread-safe, use one engine per thread.
+     */
+    public Engine newEngine() {
+        return new Engine();
+    }
+
+    public final class Engine {
+        private int crc = init();
+
+        public Engine update(byte[] src, int off, int len) {
+            crc = PackageKitChecksums.this.update(crc, src, off, len);
+            return this;
+        }
+
+        /**
+         * Feed the remaining bytes of {@code src} and advance its position to the limit.
+         */
+        public Engine update(ByteBuffer src) {
+            crc = PackageKitChecksums.this.update(crc, src, src.position(), src.remaining());
+            src.position(src.limit());
+            return this;
+        }
+
+        public int value() {
+            return crc;
+        }
+
+        public boolean isOk() {
+            return crc == 0;
+        }
+
+        public Engine reset() {
+            crc = init();
+            return this;
+        }
+    }
+
     public static PackageKitChecksums crc16_std_PUS_ECSS_E_ST_70_41C_2016() {
         return new Crc16_std_PUS_ECSS_E_ST_70_41C_2016();
     }
@@ -37,6 +162,8 @@ public abstract class PackageKitChecksums implements BytesTransformer {
     private static final class Crc16_std_PUS_ECSS_E_ST_70_41C_2016 extends PackageKitChecksums {
 
         private final int[] lut;
+        // Slicing-by-8: slice[k] is the register contribution of a byte followed by k more bytes
+        private final int[][] slice;
         private static final int DEFAULT_CRC_SYNDROME = 0xFFFF;
 
         public Crc16_std_PUS_ECSS_E_ST_70_41C_2016() {
@@ -56,6 +183,15 @@ public abstract class PackageKitChecksums implements BytesTransformer {
                     lut[i] = tmp;
                 }
             }
+            slice = new int[8][];
+            slice[0] = lut;
+            for (int k = 1; k < slice.length; k++) {
+                slice[k] = new int[256];
+                for (int i = 0; i < 256; i++) {
+                    int prev = slice[k - 1][i];
+                    slice[k][i] = ((prev << 8) & 0xFF00) ^ lut[(prev >> 8) & 0xFF];
+                }
+            }
         }
 
         @Override
@@ -64,27 +200,45 @@ public abstract class PackageKitChecksums implements BytesTransformer {
         }
 
         @Override
-        public boolean check(Bytes bytes) {
-            int check = DEFAULT_CRC_SYNDROME;
-            for (byte b : bytes) {
-                check = crcCalc(b, check);
-            }
-
-            return check == 0;
+        public String description() {
+            return "PUS CRC16";
         }
 
         @Override
-        public String description() {
-            return "PUS CRC16";
+        public int init() {
+            return DEFAULT_CRC_SYNDROME;
         }
 
         @Override
-        public byte[] transform(byte[] currentArray, boolean inPlace) {
-            int syndrome = DEFAULT_CRC_SYNDROME;
-            for (byte b : currentArray) {
-                syndrome = crcCalc(b, syndrome);
+        public int update(int crc, byte[] src, int off, int len) {
+            int[] s0 = slice[0], s1 = slice[1], s2 = slice[2], s3 = slice[3];
+            int[] s4 = slice[4], s5 = slice[5], s6 = slice[6], s7 = slice[7];
+            int end = off + len;
+            while (end - off >= 8) {
+                crc = s7[((crc >> 8) ^ src[off]) & 0xFF] ^ s6[(crc ^ src[off + 1]) & 0xFF]
+                        ^ s5[src[off + 2] & 0xFF] ^ s4[src[off + 3] & 0xFF]
+                        ^ s3[src[off + 4] & 0xFF] ^ s2[src[off + 5] & 0xFF]
+                        ^ s1[src[off + 6] & 0xFF] ^ s0[src[off + 7] & 0xFF];
+                off += 8;
             }
-            return Bytes.from(syndrome).resize(2).array();
+            while (off < end) {
+                crc = crcCalc(src[off++], crc);
+            }
+            return crc;
+        }
+
+        @Override
+        protected int updateLong(int crc, long word) {
+            int[][] s = slice;
+            return s[7][((crc >> 8) ^ (int) (word >>> 56)) & 0xFF] ^ s[6][(crc ^ (int) (word >>> 48)) & 0xFF]
+                    ^ s[5][(int) (word >>> 40) & 0xFF] ^ s[4][(int) (word >>> 32) & 0xFF]
+                    ^ s[3][(int) (word >>> 24) & 0xFF] ^ s[2][(int) (word >>> 16) & 0xFF]
+                    ^ s[1][(int) (word >>> 8) & 0xFF] ^ s[0][(int) word & 0xFF];
+        }
+
+        @Override
+        protected int update(int crc, byte b) {
+            return crcCalc(b, crc);
         }
 
         private int crcCalc(byte byteToEncode, int syndrome) {
@@ -171,8 +325,20 @@ public abstract class PackageKitChecksums implements BytesTransformer {
                 0xb4, 0x25, 0x57, 0xc6, 0xb3, 0x22, 0x50, 0xc1,
                 0xba, 0x2b, 0x59, 0xc8, 0xbd, 0x2c, 0x5e, 0xcf
         };
+        // Slicing-by-8: SLICE[k] is the register contribution of a byte followed by k more bytes
+        private static final int[][] SLICE = new int[8][];
         private static final int DEFAULT_CRC_SYNDROME = 0;
 
+        static {
+            SLICE[0] = lut;
+            for (int k = 1; k < SLICE.length; k++) {
+                SLICE[k] = new int[256];
+                for (int i = 0; i < 256; i++) {
+                    SLICE[k][i] = lut[SLICE[k - 1][i]];
+                }
+            }
+        }
+
         public Crc8_RMAP_ECSS_E_ST_50_52C_2010() {
         }
 
@@ -182,28 +348,45 @@ public abstract class PackageKitChecksums implements BytesTransformer {
         }
 
         @Override
-        public boolean check(Bytes bytes) {
+        public String description() {
+            return "RMAP CRC8";
+        }
+
+        @Override
+        public int init() {
+            return DEFAULT_CRC_SYNDROME;
+        }
 
-            int check = DEFAULT_CRC_SYNDROME;
-            for (byte b : bytes) {
-                check = crcCalc(b, check);
+        @Override
+        public int update(int crc, byte[] src, int off, int len) {
+            int[] s0 = SLICE[0], s1 = SLICE[1], s2 = SLICE[2], s3 = SLICE[3];
+            int[] s4 = SLICE[4], s5 = SLICE[5], s6 = SLICE[6], s7 = SLICE[7];
+            int end = off + len;
+            while (end - off >= 8) {
+                crc = s7[(crc ^ src[off]) & 0xFF] ^ s6[src[off + 1] & 0xFF]
+                        ^ s5[src[off + 2] & 0xFF] ^ s4[src[off + 3] & 0xFF]
+                        ^ s3[src[off + 4] & 0xFF] ^ s2[src[off + 5] & 0xFF]
+                        ^ s1[src[off + 6] & 0xFF] ^ s0[src[off + 7] & 0xFF];
+                off += 8;
             }
-
-            return check == 0;
+            while (off < end) {
+                crc = crcCalc(src[off++], crc);
+            }
+            return crc;
         }
 
         @Override
-        public String description() {
-            return "RMAP CRC8";
+        protected int updateLong(int crc, long word) {
+            int[][] s = SLICE;
+            return s[7][(crc ^ (int) (word >>> 56)) & 0xFF] ^ s[6][(int) (word >>> 48) & 0xFF]
+                    ^ s[5][(int) (word >>> 40) & 0xFF] ^ s[4][(int) (word >>> 32) & 0xFF]
+                    ^ s[3][(int) (word >>> 24) & 0xFF] ^ s[2][(int) (word >>> 16) & 0xFF]
+                    ^ s[1][(int) (word >>> 8) & 0xFF] ^ s[0][(int) word & 0xFF];
         }
 
         @Override
-        public byte[] transform(byte[] currentArray, boolean inPlace) {
-            int syndrome = DEFAULT_CRC_SYNDROME;
-            for (byte b : currentArray) {
-                syndrome = crcCalc(b, syndrome);
-            }
-            return Bytes.from(syndrome).resize(digestByteSize()).array();
+        protected int update(int crc, byte b) {
+            return crcCalc(b, crc);
         }
 
         private int crcCalc(byte inByte, int inCrc) {
@@ -0,0 +1,236 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Optional runtime metrics of the packages of one schema, kept in striped {@link LongAdder}s and
+ * {@link LatencyHistogram}s and exposed over JMX as {@code com.rovsing.packetRouting:type=PackageKit,name=<schema>}.
+ * <p>
+ * Metrics are off unless enabled with {@link #enable()} or {@code -Dpackagekit.metrics=true}. While off,
+ * {@link PackageKit} only pays a read of the enabled flag per encode and decode. Inputs shorter than the header,
+ * which are padded while decoding, are only counted while metrics are on.
+ */
+public final class PackageMetrics implements PackageMetricsMXBean {
+    private static final String DOMAIN = "com.rovsing.packetRouting";
+    private static final ConcurrentMap<String, PackageMetrics> REGISTRY = new ConcurrentHashMap<>();
+    private static volatile boolean enabled = Boolean.getBoolean("packagekit.metrics");
+
+    private final String schemaName;
+    private final LongAdder encoded = new LongAdder();
+    private final LongAdder decoded = new LongAdder();
+    private final LongAdder bytesEncoded = new LongAdder();
+    private final LongAdder bytesDecoded = new LongAdder();
+    private final LongAdder shortInputs = new LongAdder();
+    private final LongAdder checksumFailures = new LongAdder();
+    private final LongAdder headerChecksumFailures = new LongAdder();
+    private final LongAdder payloadChecksumFailures = new LongAdder();
+    private final LatencyHistogram encodeLatency = new LatencyHistogram();
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+
+    private PackageMetrics(String schemaName) {
+        this.schemaName = schemaName;
+    }
+
+    /***************************
+     *        Registry
+     **************************/
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Metrics of the packages named {@code schemaName}, created and registered with the platform MBean server on
+     * first use.
+     */
+    public static PackageMetrics of(String schemaName) {
+        PackageMetrics metrics = REGISTRY.get(schemaName);
+        if (metrics == null) {
+            metrics = REGISTRY.computeIfAbsent(schemaName, PackageMetrics::register);
+        }
+        return metrics;
+    }
+
+    public static Collection<PackageMetrics> all() {
+        return Collections.unmodifiableCollection(REGISTRY.values());
+    }
+
+    private static PackageMetrics register(String schemaName) {
+        PackageMetrics metrics = new PackageMetrics(schemaName);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":type=PackageKit,name=" + ObjectName.quote(schemaName));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(metrics, name);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register metrics of '" + schemaName + "' over JMX", e);
+        }
+        return metrics;
+    }
+
+    /***************************
+     *        Recording
+     **************************/
+    void recordEncode(int bytes, long nanos) {
+        encoded.increment();
+        bytesEncoded.add(bytes);
+        encodeLatency.record(nanos);
+    }
+
+    void recordDecode(int bytes, long nanos) {
+        decoded.increment();
+        bytesDecoded.add(bytes);
+        decodeLatency.record(nanos);
+    }
+
+    void recordShortInput() {
+        shortInputs.increment();
+    }
+
+    void recordChecksums(boolean ok, boolean separate, boolean headerOk, boolean payloadOk) {
+        if (ok) {
+            return;
+        }
+        checksumFailures.increment();
+        if (separate) {
+            if (!headerOk) {
+                headerChecksumFailures.increment();
+            }
+            if (!payloadOk) {
+                payloadChecksumFailures.increment();
+            }
+        }
+    }
+
+    /***************************
+     *          Info
+     **************************/
+    @Override
+    public String getSchemaName() {
+        return schemaName;
+    }
+
+    @Override
+    public long getEncoded() {
+        return encoded.sum();
+    }
+
+    @Override
+    public long getDecoded() {
+        return decoded.sum();
+    }
+
+    @Override
+    public long getBytesEncoded() {
+        return bytesEncoded.sum();
+    }
+
+    @Override
+    public long getBytesDecoded() {
+        return bytesDecoded.sum();
+    }
+
+    @Override
+    public long getShortInputs() {
+        return shortInputs.sum();
+    }
+
+    /**
+     * Decoded packages failing verification, header and payload failures of separate checksums are also counted
+     * on their own.
+     */
+    @Override
+    public long getChecksumFailures() {
+        return checksumFailures.sum();
+    }
+
+    @Override
+    public long getHeaderChecksumFailures() {
+        return headerChecksumFailures.sum();
+    }
+
+    @Override
+    public long getPayloadChecksumFailures() {
+        return payloadChecksumFailures.sum();
+    }
+
+    @Override
+    public double getEncodeLatencyMeanNanos() {
+        return encodeLatency.meanNanos();
+    }
+
+    @Override
+    public long getEncodeLatencyP50Nanos() {
+        return encodeLatency.percentileNanos(50);
+    }
+
+    @Override
+    public long getEncodeLatencyP99Nanos() {
+        return encodeLatency.percentileNanos(99);
+    }
+
+    @Override
+    public double getDecodeLatencyMeanNanos() {
+        return decodeLatency.meanNanos();
+    }
+
+    @Override
+    public long getDecodeLatencyP50Nanos() {
+        return decodeLatency.percentileNanos(50);
+    }
+
+    @Override
+    public long getDecodeLatencyP99Nanos() {
+        return decodeLatency.percentileNanos(99);
+    }
+
+    @Override
+    public long[] getDecodeLatencyHistogram() {
+        return decodeLatency.snapshot();
+    }
+
+    public LatencyHistogram getEncodeLatency() {
+        return encodeLatency;
+    }
+
+    public LatencyHistogram getDecodeLatency() {
+        return decodeLatency;
+    }
+
+    @Override
+    public void reset() {
+        encoded.reset();
+        decoded.reset();
+        bytesEncoded.reset();
+        bytesDecoded.reset();
+        shortInputs.reset();
+        checksumFailures.reset();
+        headerChecksumFailures.reset();
+        payloadChecksumFailures.reset();
+        encodeLatency.reset();
+        decodeLatency.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "PackageMetrics '" + schemaName + "': encoded " + getEncoded() + " (" + getBytesEncoded() + " bytes), decoded "
+                + getDecoded() + " (" + getBytesDecoded() + " bytes), short inputs " + getShortInputs()
+                + ", checksum failures " + getChecksumFailures();
+    }
+}
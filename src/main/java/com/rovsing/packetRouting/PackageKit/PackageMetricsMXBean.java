@@ -0,0 +1,40 @@
+package com.rovsing.packetRouting.PackageKit;
+
+/**
+ * JMX view of the {@link PackageMetrics} of one schema.
+ */
+public interface PackageMetricsMXBean {
+    String getSchemaName();
+
+    long getEncoded();
+
+    long getDecoded();
+
+    long getBytesEncoded();
+
+    long getBytesDecoded();
+
+    long getShortInputs();
+
+    long getChecksumFailures();
+
+    long getHeaderChecksumFailures();
+
+    long getPayloadChecksumFailures();
+
+    double getEncodeLatencyMeanNanos();
+
+    long getEncodeLatencyP50Nanos();
+
+    long getEncodeLatencyP99Nanos();
+
+    double getDecodeLatencyMeanNanos();
+
+    long getDecodeLatencyP50Nanos();
+
+    long getDecodeLatencyP99Nanos();
+
+    long[] getDecodeLatencyHistogram();
+
+    void reset();
+}
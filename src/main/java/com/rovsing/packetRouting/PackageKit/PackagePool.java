@@ -0,0 +1,73 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free pool of {@link PackageKit} instances of one {@link PacketSchema}. Instances are reset to the schema
+ * defaults when released, so a receive path that acquires, decodes and releases a package creates no garbage once the
+ * pool is warm. The pool never blocks: {@link #acquire()} creates a new instance when it is empty and
+ * {@link #release(PackageKit)} drops the instance when it is full.
+ * <p>
+ * A released instance must not be released again or used any further, neither must its fields or sub-packages.
+ */
+public final class PackagePool {
+    private final PacketSchema schema;
+    private final AtomicReferenceArray<PackageKit> slots;
+
+    PackagePool(PacketSchema schema, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("PackagePool capacity must be at least 1 (was " + capacity + ")");
+        }
+        this.schema = schema;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Pooled instance holding the schema defaults, or a new instance if the pool is empty.
+     */
+    public PackageKit acquire() {
+        int start = startSlot();
+        for (int i = 0; i < slots.length(); i++) {
+            int slot = (start + i) % slots.length();
+            PackageKit kit = slots.get(slot);
+            if (kit != null && slots.compareAndSet(slot, kit, null)) {
+                return kit;
+            }
+        }
+        return schema.newInstance();
+    }
+
+    /**
+     * Reset an instance and return it to the pool, dropping its references to decoded source buffers. Instances of
+     * other schemas, sub-packages and instances extended with additional fields are rejected.
+     *
+     * @return false if the pool is full and the instance was dropped
+     */
+    public boolean release(PackageKit kit) {
+        if (!kit.hasSchema(schema)) {
+            throw new IllegalArgumentException("PackageKit '" + kit.getPkgName() + "' was not created from schema '" + schema.getName() + "'");
+        }
+        kit.reset();
+        int start = startSlot();
+        for (int i = 0; i < slots.length(); i++) {
+            int slot = (start + i) % slots.length();
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, kit)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public PacketSchema getSchema() {
+        return schema;
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+
+    // Threads start scanning at different slots to keep CAS contention low
+    private int startSlot() {
+        return (int) (Thread.currentThread().getId() % slots.length());
+    }
+}
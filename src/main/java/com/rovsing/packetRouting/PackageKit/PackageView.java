@@ -0,0 +1,143 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only flyweight over a raw package. Nothing is decoded up front, a field's bits are extracted from the
+ * underlying buffer when its value is requested. A view is re-pointed at the next package with
+ * {@link #wrap(byte[], int)} without allocating, so one instance can serve a whole receive loop.
+ * <p>
+ * A view is not thread-safe. The wrapped buffer must stay untouched while its fields are read.
+ */
+public final class PackageView {
+    private final String pkgName;
+    private final FieldLayout layout;
+    private final FieldView[] fieldViews;
+    private byte[] array;
+    private ByteBuffer buffer;
+    private int offset;
+
+    PackageView(PacketSchema schema) {
+        schema.assertHeaderSize(schema.getName());
+        this.pkgName = schema.getName();
+        this.layout = schema.getLayout();
+        this.fieldViews = new FieldView[layout.fieldCount()];
+        for (int i = 0; i < fieldViews.length; i++) {
+            fieldViews[i] = new FieldView(i);
+        }
+    }
+
+    /***************************
+     *         Access
+     **************************/
+    public PackageView wrap(byte[] buf, int off) {
+        checkBounds(off, buf.length);
+        this.array = buf;
+        this.buffer = null;
+        this.offset = off;
+        return this;
+    }
+
+    /**
+     * Point the view at the package starting at absolute index {@code off} of {@code buf}. Heap buffers are read
+     * through their backing array, direct buffers with absolute gets.
+     */
+    public PackageView wrap(ByteBuffer buf, int off) {
+        checkBounds(off, buf.limit());
+        if (buf.hasArray()) {
+            this.array = buf.array();
+            this.buffer = null;
+            this.offset = buf.arrayOffset() + off;
+        } else {
+            this.array = null;
+            this.buffer = buf;
+            this.offset = off;
+        }
+        return this;
+    }
+
+    public FieldView getField(String name) {
+        int index = layout.indexOf(name);
+        if (index < 0) {
+            throw new NoSuchElementException("Field: '" + name + "' not found in " + pkgName);
+        }
+        return fieldViews[index];
+    }
+
+    public FieldView getField(int handle) {
+        return fieldViews[handle];
+    }
+
+    /**
+     * Read a field by a handle from {@link PackageKit#handle(String)} of the package this view was made from.
+     */
+    public int getValue(int handle) {
+        return (int) read(handle);
+    }
+
+    public long getLong(int handle) {
+        return read(handle);
+    }
+
+    /***************************
+     *         Info
+     **************************/
+    public String getPkgName() {
+        return pkgName;
+    }
+
+    public FieldLayout getLayout() {
+        return layout;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /***************************
+     *        Internals
+     **************************/
+    private void checkBounds(int off, int limit) {
+        if (off < 0 || limit - off < layout.byteSize()) {
+            throw new IndexOutOfBoundsException(pkgName + ": view at offset " + off + " needs " + layout.byteSize() + " header bytes but buffer only has " + limit);
+        }
+    }
+
+    private long read(int index) {
+        return array != null ? layout.read(array, offset, index) : layout.read(buffer, offset, index);
+    }
+
+    public final class FieldView {
+        private final int index;
+
+        private FieldView(int index) {
+            this.index = index;
+        }
+
+        public int getValue() {
+            return (int) read(index);
+        }
+
+        public long getLong() {
+            return read(index);
+        }
+
+        public int getBitMask() {
+            return (int) layout.mask(index);
+        }
+
+        public int getMaxValue() {
+            return getBitMask();
+        }
+
+        public String getName() {
+            return layout.name(index);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("'%s': bits: %2d, value: 0x%X", getName(), layout.bitSize(index), read(index));
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Read-only, memory-mapped archive of packages of one {@link PacketSchema}, written by an {@link ArchiveWriter}.
+ * The archive is a directory of segments: {@code segment-000000.dat} holds the raw packages back to back and the
+ * sidecar {@code segment-000000.idx} the values of the index fields of each package, sorted by those fields, plus
+ * their minimum and maximum in the segment.
+ * <p>
+ * A {@link Query} skips every segment whose minimum and maximum exclude it and binary searches the sorted index of
+ * the others on the leading equality fields and the range of the field after them. Lookups thus cost a few index
+ * probes per segment instead of a decode of every package, and segments outside a sequence or time range are not
+ * touched at all. Matches are returned as views of the mapping, nothing is copied.
+ * <p>
+ * Queries can run concurrently, each {@link Query} instance is used by one thread. Views are valid until the
+ * archive is closed. Segments sealed after opening are added with {@link #refresh()}.
+ */
+public final class PacketArchive implements Closeable {
+    static final int INDEX_MAGIC = 0x504B4158;
+    static final int INDEX_VERSION = 1;
+    private static final Pattern SEGMENT = Pattern.compile("segment-(\\d{6})\\.dat");
+
+    private final Path dir;
+    private final PacketSchema schema;
+    private volatile String[] indexFields;
+    private volatile Segment[] segments = new Segment[0];
+
+    public PacketArchive(Path dir, PacketSchema schema) throws IOException {
+        this.dir = dir;
+        this.schema = schema;
+        refresh();
+    }
+
+    /**
+     * Open the segments sealed since the last refresh.
+     *
+     * @return number of segments added
+     */
+    public synchronized int refresh() throws IOException {
+        Segment[] current = segments;
+        int last = current.length == 0 ? -1 : current[current.length - 1].number;
+        List<Segment> added = new ArrayList<>();
+        for (int number : segmentNumbers(dir)) {
+            // Segments without an index are still being written
+            if (number > last && Files.exists(indexPath(dir, number))) {
+                added.add(open(number));
+            }
+        }
+        Segment[] next = Arrays.copyOf(current, current.length + added.size());
+        for (int i = 0; i < added.size(); i++) {
+            next[current.length + i] = added.get(i);
+        }
+        segments = next;
+        return added.size();
+    }
+
+    public Query query() {
+        if (indexFields == null) {
+            throw new IllegalStateException("PacketArchive " + dir + " has no sealed segments yet");
+        }
+        return new Query(segments);
+    }
+
+    public long packageCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.count;
+        }
+        return count;
+    }
+
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    public List<String> getIndexFields() {
+        return indexFields == null ? List.of() : List.of(indexFields);
+    }
+
+    public PacketSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Drop the mappings. Unmapping is left to the garbage collector, as for {@link CaptureFile}.
+     */
+    @Override
+    public synchronized void close() {
+        segments = new Segment[0];
+    }
+
+    /***************************
+     *          Query
+     **************************/
+
+    /**
+     * Conditions on the index fields, optionally refined by a {@link FieldPredicate} on the raw package. Conditions
+     * on one field are intersected. A query can be run repeatedly and is not thread-safe.
+     */
+    public final class Query {
+        private final Segment[] segments;
+        private final long[] min;
+        private final long[] max;
+        private FieldPredicate filter;
+        private final Match match = new Match();
+        // Packed offset << 32 | length of the matches of one segment
+        private long[] hits = new long[256];
+
+        private Query(Segment[] segments) {
+            this.segments = segments;
+            this.min = new long[indexFields.length];
+            this.max = new long[indexFields.length];
+            Arrays.fill(max, -1L);
+        }
+
+        public Query eq(String field, long value) {
+            return range(field, value, value);
+        }
+
+        /**
+         * Field value within {@code [min, max]}, both inclusive and unsigned.
+         */
+        public Query range(String field, long min, long max) {
+            int k = indexOf(field);
+            this.min[k] = Long.compareUnsigned(min, this.min[k]) > 0 ? min : this.min[k];
+            this.max[k] = Long.compareUnsigned(max, this.max[k]) < 0 ? max : this.max[k];
+            return this;
+        }
+
+        /**
+         * Test the matches of the index on their raw bytes as well, e.g. on fields that are not indexed.
+         */
+        public Query filter(FieldPredicate predicate) {
+            if (predicate.getSchema() != schema) {
+                throw new IllegalArgumentException("Predicate on '" + predicate.getSchema().getName() + "' can not filter the '" + schema.getName() + "' archive");
+            }
+            this.filter = predicate;
+            return this;
+        }
+
+        /**
+         * Call {@code action} for every matching package, in archive order. The {@link Match} is reused.
+         *
+         * @return number of matches
+         */
+        public long forEach(Consumer<Match> action) {
+            long total = 0;
+            for (Segment segment : segments) {
+                if (segment.excludes(min, max)) {
+                    continue;
+                }
+                int n = search(segment);
+                for (int i = 0; i < n; i++) {
+                    int off = (int) (hits[i] >>> 32);
+                    int length = (int) hits[i];
+                    if (filter == null || filter.test(segment.data, off, length)) {
+                        action.accept(match.wrap(segment, off, length));
+                        total++;
+                    }
+                }
+            }
+            return total;
+        }
+
+        public long count() {
+            return forEach(m -> {
+            });
+        }
+
+        private int indexOf(String field) {
+            for (int k = 0; k < indexFields.length; k++) {
+                if (indexFields[k].equals(field)) {
+                    return k;
+                }
+            }
+            schema.handle(field);
+            throw new IllegalArgumentException("Field '" + field + "' is not indexed in archive " + dir + " (index fields " + List.of(indexFields) + ")");
+        }
+
+        // Collect the entries of segment matching all index conditions into hits, sorted by offset
+        private int search(Segment segment) {
+            int keys = min.length;
+            // Leading fields with one value, then the range of the next field bound the sorted index
+            int prefix = 0;
+            while (prefix < keys && min[prefix] == max[prefix]) {
+                prefix++;
+            }
+            int bound = Integer.min(prefix + 1, keys);
+            int from = segment.lowerBound(min, bound, false);
+            int to = segment.lowerBound(max, bound, true);
+            int n = 0;
+            for (int i = from; i < to; i++) {
+                if (segment.matches(i, min, max, bound)) {
+                    if (n == hits.length) {
+                        hits = Arrays.copyOf(hits, n * 2);
+                    }
+                    hits[n++] = segment.location(i);
+                }
+            }
+            Arrays.sort(hits, 0, n);
+            return n;
+        }
+    }
+
+    /**
+     * One package of a query result, re-pointed at the next match.
+     */
+    public final class Match {
+        private final PackageView view = schema.newView();
+        private Segment segment;
+        private int offset;
+        private int length;
+
+        private Match wrap(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            view.wrap(segment.data, offset);
+            return this;
+        }
+
+        /**
+         * View of the package in the mapping, see {@link PackageView}.
+         */
+        public PackageView getView() {
+            return view;
+        }
+
+        /**
+         * Decode the package into {@code kit}. The payload is a view of the mapping.
+         */
+        public PackageKit decode(PackageKit kit) {
+            return kit.decodeFrom(segment.data, offset, length);
+        }
+
+        /**
+         * Read-only buffer of the whole segment, the package is at {@link #getOffset()}.
+         */
+        public ByteBuffer getSegmentBuffer() {
+            return segment.data.asReadOnlyBuffer();
+        }
+
+        public int getSegment() {
+            return segment.number;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /***************************
+     *         Segments
+     **************************/
+    private Segment open(int number) throws IOException {
+        MappedByteBuffer index = map(indexPath(dir, number));
+        Path dataPath = dataPath(dir, number);
+        if (index.remaining() < 4 * Integer.BYTES || index.getInt(0) != INDEX_MAGIC || index.getInt(4) != INDEX_VERSION) {
+            throw new StreamCorruptedException(indexPath(dir, number) + ": not a PacketArchive index");
+        }
+        int keys = index.getInt(8);
+        int count = index.getInt(12);
+        int pos = 16;
+        String[] names = new String[keys + 1];
+        for (int k = 0; k <= keys; k++) {
+            int length = index.getShort(pos);
+            byte[] name = new byte[length];
+            index.get(pos + Short.BYTES, name);
+            names[k] = new String(name, StandardCharsets.UTF_8);
+            pos += Short.BYTES + length;
+        }
+        if (!names[0].equals(schema.getName())) {
+            throw new IllegalArgumentException("Segment " + dataPath + " holds '" + names[0] + "' packages, not '" + schema.getName() + "'");
+        }
+        String[] fields = Arrays.copyOfRange(names, 1, names.length);
+        if (indexFields == null) {
+            for (String field : fields) {
+                schema.handle(field);
+            }
+            indexFields = fields;
+        } else if (!Arrays.equals(indexFields, fields)) {
+            throw new IllegalArgumentException("Segment " + dataPath + " is indexed on " + List.of(fields) + ", not " + List.of(indexFields));
+        }
+        long[] min = new long[keys];
+        long[] max = new long[keys];
+        for (int k = 0; k < keys; k++) {
+            min[k] = index.getLong(pos);
+            max[k] = index.getLong(pos + Long.BYTES);
+            pos += 2 * Long.BYTES;
+        }
+        if (index.limit() != pos + (long) count * (keys + 1) * Long.BYTES) {
+            throw new StreamCorruptedException(indexPath(dir, number) + ": index size does not match its " + count + " entries");
+        }
+        return new Segment(number, map(dataPath), index, pos, keys, count, min, max);
+    }
+
+    private static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static final class Segment {
+        private final int number;
+        private final MappedByteBuffer data;
+        private final MappedByteBuffer index;
+        private final int entries;
+        private final long stride;
+        private final int count;
+        private final long[] min;
+        private final long[] max;
+
+        private Segment(int number, MappedByteBuffer data, MappedByteBuffer index, int entries, int keys, int count, long[] min, long[] max) {
+            this.number = number;
+            this.data = data;
+            this.index = index;
+            this.entries = entries;
+            this.stride = (keys + 1) * Long.BYTES;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+        }
+
+        private long key(int entry, int k) {
+            // Within the limit of the mapped index
+            return index.getLong((int) (entries + entry * stride + k * Long.BYTES));
+        }
+
+        private long location(int entry) {
+            return key(entry, min.length);
+        }
+
+        private boolean excludes(long[] queryMin, long[] queryMax) {
+            if (count == 0) {
+                return true;
+            }
+            for (int k = 0; k < min.length; k++) {
+                if (Long.compareUnsigned(queryMax[k], min[k]) < 0 || Long.compareUnsigned(queryMin[k], max[k]) > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // First entry whose first keys are >= (or > if after is set) the first keys of bound
+        private int lowerBound(long[] bound, int keys, boolean after) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = 0;
+                for (int k = 0; k < keys && c == 0; k++) {
+                    c = Long.compareUnsigned(key(mid, k), bound[k]);
+                }
+                if (c < 0 || after && c == 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        // The first keys are within the bounds of the binary search already
+        private boolean matches(int entry, long[] queryMin, long[] queryMax, int from) {
+            for (int k = from; k < min.length; k++) {
+                long value = key(entry, k);
+                if (Long.compareUnsigned(value, queryMin[k]) < 0 || Long.compareUnsigned(value, queryMax[k]) > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /***************************
+     *          Files
+     **************************/
+    static Path dataPath(Path dir, int segment) {
+        return dir.resolve(String.format("segment-%06d.dat", segment));
+    }
+
+    static Path indexPath(Path dir, int segment) {
+        return dir.resolve(String.format("segment-%06d.idx", segment));
+    }
+
+    // Numbers of the segment data files in dir, ascending
+    static List<Integer> segmentNumbers(Path dir) throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return numbers;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(file -> {
+                Matcher matcher = SEGMENT.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    numbers.add(Integer.parseInt(matcher.group(1)));
+                }
+            });
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+}
@@ -0,0 +1,319 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Columnar decode of many packages of one {@link PacketSchema}: the selected fields of every package are written
+ * into one primitive column per field, fields up to 32 bits into an {@code int[]}, wider fields into a
+ * {@code long[]}. Checksum validity is kept in a bitset by row. No objects are created per package, all columns are
+ * allocated with the batch capacity up front and reused after {@link #clear()}.
+ */
+public final class PacketBatch {
+    // Rows decoded per worker before they are folded into its stats
+    private static final int WORKER_CAPACITY = 1024;
+    // Buffers handled by one fork/join leaf task
+    private static final int LEAF_BUFFERS = 16;
+
+    private final PacketSchema schema;
+    private final FieldLayout layout;
+    private final String[] fieldNames;
+    private final int[] handles;
+    private final int[][] intColumns;
+    private final long[][] longColumns;
+    private final BitSet checksumOk;
+    private final int capacity;
+    private int size;
+
+    public PacketBatch(PacketSchema schema, int capacity, String... fieldNames) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("PacketBatch capacity must be at least 1 (was " + capacity + ")");
+        }
+        this.schema = schema;
+        this.layout = schema.getLayout();
+        this.fieldNames = fieldNames.clone();
+        this.handles = new int[fieldNames.length];
+        this.intColumns = new int[fieldNames.length][];
+        this.longColumns = new long[fieldNames.length][];
+        for (int c = 0; c < fieldNames.length; c++) {
+            handles[c] = schema.handle(fieldNames[c]);
+            if (layout.bitSize(handles[c]) <= Integer.SIZE) {
+                intColumns[c] = new int[capacity];
+            } else {
+                longColumns[c] = new long[capacity];
+            }
+        }
+        this.checksumOk = new BitSet(capacity);
+        this.capacity = capacity;
+    }
+
+    /***************************
+     *         Decode
+     **************************/
+
+    /**
+     * Decode the packages between position and limit of {@code src}, found with the schema framing, until the
+     * batch is full. The position is advanced past the decoded packages, an incomplete package at the end is left
+     * in the buffer.
+     *
+     * @return number of packages added
+     */
+    public int decode(ByteBuffer src) {
+        int prefixSize = schema.framePrefixSize();
+        int pos = src.position();
+        int added = 0;
+        while (size < capacity && src.limit() - pos >= prefixSize) {
+            long frameSize = schema.frameSize(src, pos);
+            if (frameSize < schema.headerSize()) {
+                throw new IllegalArgumentException(schema.getName() + ": invalid frame size " + frameSize + " at position " + pos);
+            }
+            if (frameSize > src.limit() - pos) {
+                break;
+            }
+            addRow(src, pos, (int) frameSize);
+            pos += (int) frameSize;
+            added++;
+        }
+        src.position(pos);
+        return added;
+    }
+
+    /**
+     * Add the package held in {@code src[off, off + length)}, e.g. for schemas without framing.
+     */
+    public PacketBatch add(ByteBuffer src, int off, int length) {
+        Objects.checkFromIndexSize(off, length, src.limit());
+        if (length < schema.headerSize()) {
+            throw new IllegalArgumentException(schema.getName() + ": package of " + length + " bytes is smaller than the header (" + schema.headerSize() + ")");
+        }
+        if (size == capacity) {
+            throw new IllegalStateException("PacketBatch is full (" + capacity + " packages)");
+        }
+        addRow(src, off, length);
+        return this;
+    }
+
+    public PacketBatch add(byte[] src, int off, int length) {
+        return add(ByteBuffer.wrap(src), off, length);
+    }
+
+    public void clear() {
+        size = 0;
+        checksumOk.clear();
+    }
+
+    private void addRow(ByteBuffer src, int off, int length) {
+        int row = size++;
+        if (src.hasArray()) {
+            byte[] array = src.array();
+            int arrayOff = src.arrayOffset() + off;
+            for (int c = 0; c < handles.length; c++) {
+                long value = layout.read(array, arrayOff, handles[c]);
+                if (intColumns[c] != null) {
+                    intColumns[c][row] = (int) value;
+                } else {
+                    longColumns[c][row] = value;
+                }
+            }
+        } else {
+            for (int c = 0; c < handles.length; c++) {
+                long value = layout.read(src, off, handles[c]);
+                if (intColumns[c] != null) {
+                    intColumns[c][row] = (int) value;
+                } else {
+                    longColumns[c][row] = value;
+                }
+            }
+        }
+        checksumOk.set(row, schema.isChecksumOk(src, off, length));
+    }
+
+    /***************************
+     *         Bulk
+     **************************/
+
+    /**
+     * Decode and verify {@code buffers} in parallel on the common fork/join pool, see
+     * {@link #parallelDecode(ForkJoinPool, PacketSchema, List, String...)}.
+     */
+    public static BatchStats parallelDecode(PacketSchema schema, List<ByteBuffer> buffers, String... fieldNames) {
+        return parallelDecode(ForkJoinPool.commonPool(), schema, buffers, fieldNames);
+    }
+
+    /**
+     * Decode and verify {@code buffers} in parallel and aggregate package counts, checksum failures and the
+     * statistics of {@code fieldNames}. For a framed schema every buffer holds one or more concatenated packages
+     * between its position and limit, otherwise exactly one package. Buffers are split over the pool, each leaf
+     * task decodes into a batch of its own and its own stats, which are merged when the tasks join. Batches are
+     * shared between the leaf tasks of one call only, so at most one per concurrently running task is created.
+     * Buffer positions are not changed.
+     */
+    public static BatchStats parallelDecode(ForkJoinPool pool, PacketSchema schema, List<ByteBuffer> buffers, String... fieldNames) {
+        Batches batches = new Batches(schema, fieldNames);
+        return pool.invoke(new DecodeTask(batches, buffers, 0, buffers.size(), fieldNames));
+    }
+
+    // Idle batches of one parallelDecode call
+    private static final class Batches {
+        private final PacketSchema schema;
+        private final String[] fieldNames;
+        private final Queue<PacketBatch> idle = new ConcurrentLinkedQueue<>();
+
+        private Batches(PacketSchema schema, String[] fieldNames) {
+            this.schema = schema;
+            this.fieldNames = fieldNames;
+        }
+
+        private PacketBatch acquire() {
+            PacketBatch batch = idle.poll();
+            return batch != null ? batch : new PacketBatch(schema, WORKER_CAPACITY, fieldNames);
+        }
+
+        private void release(PacketBatch batch) {
+            idle.add(batch);
+        }
+    }
+
+    private static final class DecodeTask extends RecursiveTask<BatchStats> {
+        private static final long serialVersionUID = 1L;
+
+        // Tasks are never serialized
+        private final transient Batches batches;
+        private final transient List<ByteBuffer> buffers;
+        private final int from;
+        private final int to;
+        private final String[] fieldNames;
+
+        private DecodeTask(Batches batches, List<ByteBuffer> buffers, int from, int to, String[] fieldNames) {
+            this.batches = batches;
+            this.buffers = buffers;
+            this.from = from;
+            this.to = to;
+            this.fieldNames = fieldNames;
+        }
+
+        @Override
+        protected BatchStats compute() {
+            if (to - from > LEAF_BUFFERS) {
+                int mid = (from + to) >>> 1;
+                DecodeTask left = new DecodeTask(batches, buffers, from, mid, fieldNames);
+                left.fork();
+                BatchStats right = new DecodeTask(batches, buffers, mid, to, fieldNames).compute();
+                return right.merge(left.join());
+            }
+            PacketBatch batch = batches.acquire();
+            try {
+                BatchStats stats = new BatchStats(fieldNames);
+                for (int i = from; i < to; i++) {
+                    batch.decodeAll(buffers.get(i), stats);
+                }
+                return stats;
+            } finally {
+                batches.release(batch);
+            }
+        }
+    }
+
+    private void decodeAll(ByteBuffer buffer, BatchStats stats) {
+        try {
+            if (!schema.isFramed()) {
+                clear();
+                add(buffer, buffer.position(), buffer.remaining());
+                stats.add(this);
+                return;
+            }
+            ByteBuffer src = buffer.duplicate();
+            do {
+                clear();
+                decode(src);
+                stats.add(this);
+            } while (size == capacity);
+            stats.addTrailingBytes(src.remaining());
+        } catch (IllegalArgumentException e) {
+            stats.add(this);
+            stats.addMalformed();
+        }
+    }
+
+    /***************************
+     *         Columns
+     **************************/
+
+    /**
+     * Column of a field of up to 32 bits. Only the first {@link #size()} entries are valid.
+     */
+    public int[] intColumn(String fieldName) {
+        int c = column(fieldName);
+        if (intColumns[c] == null) {
+            throw new IllegalArgumentException("Field '" + fieldName + "' has " + layout.bitSize(handles[c]) + " bits, use longColumn");
+        }
+        return intColumns[c];
+    }
+
+    /**
+     * Column of a field wider than 32 bits. Only the first {@link #size()} entries are valid.
+     */
+    public long[] longColumn(String fieldName) {
+        int c = column(fieldName);
+        if (longColumns[c] == null) {
+            throw new IllegalArgumentException("Field '" + fieldName + "' has " + layout.bitSize(handles[c]) + " bits, use intColumn");
+        }
+        return longColumns[c];
+    }
+
+    /**
+     * Value of any column widened to long.
+     */
+    public long getLong(int row, int column) {
+        Objects.checkIndex(row, size);
+        return intColumns[column] != null ? intColumns[column][row] & 0xFFFFFFFFL : longColumns[column][row];
+    }
+
+    public boolean isChecksumOk(int row) {
+        Objects.checkIndex(row, size);
+        return checksumOk.get(row);
+    }
+
+    /**
+     * Rows whose checksums verified. Must not be modified.
+     */
+    public BitSet checksumOk() {
+        return checksumOk;
+    }
+
+    public int column(String fieldName) {
+        for (int c = 0; c < fieldNames.length; c++) {
+            if (fieldNames[c].equals(fieldName)) {
+                return c;
+            }
+        }
+        throw new NoSuchElementException("Field: '" + fieldName + "' is not a column of this batch");
+    }
+
+    public int columnCount() {
+        return fieldNames.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    public PacketSchema getSchema() {
+        return schema;
+    }
+}
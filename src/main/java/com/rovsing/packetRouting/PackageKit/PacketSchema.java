@@ -0,0 +1,427 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable, compiled package composition: the flat field layout, the default field values, the checksum setup and
+ * the field ranges of the sub-packages it was composed from. A schema can be shared freely between threads. Creating
+ * a {@link PackageKit} from it is a copy of the default value array, fields and sub-packages are materialised lazily.
+ * <p>
+ * Schemas are obtained from a template with {@link PackageKit#toSchema()}.
+ */
+public final class PacketSchema {
+    /**
+     * How the size of a package is found in a byte stream, see {@link #frameSize(byte[], int)}.
+     */
+    public enum FrameKind {
+        /** The package size is not known from its header (e.g. CPTP). */
+        NONE,
+        /** The package is a header without payload. */
+        HEADER_ONLY,
+        /** The length field holds the payload size. The payload checksum is added as the encoder does. */
+        PAYLOAD_LENGTH,
+        /** The length field plus a constant adjustment is the package size (e.g. PUS: length + 7). */
+        PACKET_LENGTH
+    }
+
+    /**
+     * Size a derived field is filled with when the package is encoded, see {@link #withDerived}.
+     */
+    public enum Derivation {
+        /** Payload size in bytes, without payload checksum. */
+        PAYLOAD_LENGTH,
+        /** Size of the encoded package in bytes, including all checksums. */
+        PACKET_LENGTH
+    }
+
+    private static final class DerivedField {
+        private final int index;
+        private final Derivation derivation;
+        private final long offset;
+
+        private DerivedField(int index, Derivation derivation, long offset) {
+            this.index = index;
+            this.derivation = derivation;
+            this.offset = offset;
+        }
+    }
+
+    private final String name;
+    private final FieldLayout layout;
+    private final long[] defaults;
+    private final PackageKitChecksums checksum;
+    private final boolean useSeparateChecksum;
+    private final int pecSizeHeader;
+    private final int pecSizePayload;
+    private final int headerBitSum;
+    private final int ppPad;
+    private final String[] subNames;
+    private final int[] subBase;
+    private final PacketSchema[] subSchemas;
+    private final FrameKind frameKind;
+    private final int lengthIndex;
+    private final int lengthAdjust;
+    private final DerivedField[] derived;
+    // Labels for PackageFormatter, created on first use
+    private PackageFormatter.Layout formatLayout;
+
+    private PacketSchema(String name, PackageKitChecksums checksum, boolean useSeparateChecksum, FieldLayout layout, long[] defaults,
+                         String[] subNames, int[] subBase, PacketSchema[] subSchemas, FrameKind frameKind, int lengthIndex, int lengthAdjust,
+                         DerivedField[] derived) {
+        this.name = name;
+        this.layout = layout;
+        this.defaults = defaults;
+        this.checksum = checksum;
+        this.useSeparateChecksum = useSeparateChecksum;
+        if (checksum == null) {
+            pecSizeHeader = 0;
+            pecSizePayload = 0;
+        } else {
+            pecSizePayload = checksum.digestByteSize();
+            pecSizeHeader = useSeparateChecksum ? pecSizePayload : 0;
+        }
+        int bits = 0;
+        int pad = 0;
+        for (int i = 0; i < layout.fieldCount(); i++) {
+            bits += layout.bitSize(i);
+            pad = Integer.max(layout.name(i).length(), pad);
+        }
+        this.headerBitSum = bits;
+        this.ppPad = pad;
+        this.subNames = subNames;
+        this.subBase = subBase;
+        this.subSchemas = subSchemas;
+        this.frameKind = frameKind;
+        this.lengthIndex = lengthIndex;
+        this.lengthAdjust = lengthAdjust;
+        this.derived = derived;
+    }
+
+    static PacketSchema empty(String name, PackageKitChecksums checksum, boolean useSeparateChecksum) {
+        return new PacketSchema(name, checksum, useSeparateChecksum, new FieldLayout(new String[0], new int[0]), new long[0],
+                new String[0], new int[0], new PacketSchema[0], FrameKind.NONE, -1, 0, new DerivedField[0]);
+    }
+
+    /***************************
+     *       Composition
+     **************************/
+    PacketSchema withField(String fieldName, int bitLength, long fieldValue) {
+        if (bitLength > Long.SIZE || bitLength < 1) {
+            throw new IllegalArgumentException("PackageKit invalid field bitLength in " + fieldName + ". Must be at least 1 an no more than Long.SIZE");
+        }
+        int count = layout.fieldCount();
+        String[] names = new String[count + 1];
+        int[] bitSizes = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            names[i] = layout.name(i);
+            bitSizes[i] = layout.bitSize(i);
+        }
+        names[count] = fieldName;
+        bitSizes[count] = bitLength;
+        long[] values = Arrays.copyOf(defaults, count + 1);
+        values[count] = fieldValue & (0xFFFFFFFFFFFFFFFFL >>> Long.SIZE - bitLength);
+        return new PacketSchema(name, checksum, useSeparateChecksum, new FieldLayout(names, bitSizes), values, subNames, subBase, subSchemas,
+                frameKind, lengthIndex, lengthAdjust, derived);
+    }
+
+    /**
+     * Register fields {@code [base, base + count)} as sub-package {@code subName}. A sub-package registered again
+     * under the same name keeps its position.
+     */
+    PacketSchema withSubPackage(String subName, int base, int count) {
+        String[] names = new String[count];
+        int[] bitSizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = layout.name(base + i);
+            bitSizes[i] = layout.bitSize(base + i);
+        }
+        PacketSchema sub = new PacketSchema(subName, null, false, new FieldLayout(names, bitSizes), Arrays.copyOfRange(defaults, base, base + count),
+                new String[0], new int[0], new PacketSchema[0], FrameKind.NONE, -1, 0, new DerivedField[0]);
+
+        int index = subPackageIndex(subName);
+        int subCount = subNames.length;
+        String[] newNames = index < 0 ? Arrays.copyOf(subNames, subCount + 1) : subNames.clone();
+        int[] newBase = index < 0 ? Arrays.copyOf(subBase, subCount + 1) : subBase.clone();
+        PacketSchema[] newSchemas = index < 0 ? Arrays.copyOf(subSchemas, subCount + 1) : subSchemas.clone();
+        int slot = index < 0 ? subCount : index;
+        newNames[slot] = subName;
+        newBase[slot] = base;
+        newSchemas[slot] = sub;
+        return new PacketSchema(name, checksum, useSeparateChecksum, layout, defaults, newNames, newBase, newSchemas,
+                frameKind, lengthIndex, lengthAdjust, derived);
+    }
+
+    PacketSchema withDefaults(String name, long[] defaults) {
+        return new PacketSchema(name, checksum, useSeparateChecksum, layout, defaults, subNames, subBase, subSchemas,
+                frameKind, lengthIndex, lengthAdjust, derived);
+    }
+
+    PacketSchema withFraming(FrameKind kind, int lengthIndex, int lengthAdjust) {
+        return new PacketSchema(name, checksum, useSeparateChecksum, layout, defaults, subNames, subBase, subSchemas,
+                kind, lengthIndex, lengthAdjust, derived);
+    }
+
+    /**
+     * Derive field {@code index} from the package size when encoding: its value becomes the size selected by
+     * {@code derivation} plus {@code offset}. A field derived again replaces its earlier derivation.
+     */
+    PacketSchema withDerived(int index, Derivation derivation, long offset) {
+        DerivedField[] fields = derived.clone();
+        int slot = fields.length;
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].index == index) {
+                slot = i;
+            }
+        }
+        if (slot == fields.length) {
+            fields = Arrays.copyOf(fields, slot + 1);
+        }
+        fields[slot] = new DerivedField(index, derivation, offset);
+        return new PacketSchema(name, checksum, useSeparateChecksum, layout, defaults, subNames, subBase, subSchemas,
+                frameKind, lengthIndex, lengthAdjust, fields);
+    }
+
+    /***************************
+     *        Instances
+     **************************/
+    public PackageKit newInstance() {
+        return new PackageKit(this);
+    }
+
+    /**
+     * Bounded pool of recyclable instances of this schema, see {@link PackagePool}.
+     */
+    public PackagePool newPool(int capacity) {
+        return new PackagePool(this, capacity);
+    }
+
+    /**
+     * Lazy read-only view bound to this schema, see {@link PackageView#wrap(byte[], int)}.
+     */
+    public PackageView newView() {
+        return new PackageView(this);
+    }
+
+    /***************************
+     *         Info
+     **************************/
+    public String getName() {
+        return name;
+    }
+
+    public FieldLayout getLayout() {
+        return layout;
+    }
+
+    public int fieldCount() {
+        return layout.fieldCount();
+    }
+
+    public int indexOf(String fieldName) {
+        return layout.indexOf(fieldName);
+    }
+
+    public int handle(String fieldName) {
+        int index = layout.indexOf(fieldName);
+        if (index < 0) {
+            throw new NoSuchElementException("Field: '" + fieldName + "' not found in " + name);
+        }
+        return index;
+    }
+
+    public long getDefault(int handle) {
+        return defaults[handle];
+    }
+
+    public PackageKitChecksums getChecksum() {
+        return checksum;
+    }
+
+    public boolean isSeparateChecksum() {
+        return useSeparateChecksum;
+    }
+
+    public int getPecSizeHeader() {
+        return pecSizeHeader;
+    }
+
+    public int getPecSizePayload() {
+        return pecSizePayload;
+    }
+
+    public int headerBitSum() {
+        return headerBitSum;
+    }
+
+    /**
+     * Header size in bytes including a separate header checksum.
+     */
+    public int headerSize() {
+        return (headerBitSum / Byte.SIZE) + pecSizeHeader;
+    }
+
+    public List<String> subPackageNames() {
+        return List.of(subNames);
+    }
+
+    /**
+     * Verify the checksums of the package in {@code buf[off, off + length)} the same way
+     * {@link PackageKit#isChecksumOk()} does after a decode.
+     */
+    public boolean isChecksumOk(ByteBuffer buf, int off, int length) {
+        if (checksum == null) {
+            return true;
+        }
+        if (useSeparateChecksum) {
+            int header = headerSize();
+            return checksum.check(buf, off, header) && checksum.check(buf, off + header, length - header);
+        }
+        return checksum.check(buf, off, length);
+    }
+
+    /**
+     * Write the derived fields of a package with the given sizes into {@code values[from...]}.
+     *
+     * @throws IllegalArgumentException if a derived value does not fit its field
+     */
+    void applyDerived(long[] values, int from, int payloadLength, int packetLength) {
+        for (DerivedField field : derived) {
+            long size = field.derivation == Derivation.PAYLOAD_LENGTH ? payloadLength : packetLength;
+            long value = size + field.offset;
+            if (value < 0 || Long.compareUnsigned(value, layout.mask(field.index)) > 0) {
+                throw new IllegalArgumentException("Field '" + layout.name(field.index) + "' of " + name + " can not hold " + field.derivation + " " + size + (field.offset == 0 ? "" : " + (" + field.offset + ")"));
+            }
+            values[from + field.index] = value;
+        }
+    }
+
+    int derivedCount() {
+        return derived.length;
+    }
+
+    int derivedIndex(int slot) {
+        return derived[slot].index;
+    }
+
+    Derivation derivation(int slot) {
+        return derived[slot].derivation;
+    }
+
+    long derivedOffset(int slot) {
+        return derived[slot].offset;
+    }
+
+    /***************************
+     *         Framing
+     **************************/
+    public FrameKind getFrameKind() {
+        return frameKind;
+    }
+
+    public boolean isFramed() {
+        return frameKind != FrameKind.NONE;
+    }
+
+    /**
+     * Number of leading bytes of a package needed by {@link #frameSize(byte[], int)}.
+     */
+    public int framePrefixSize() {
+        switch (frameKind) {
+            case HEADER_ONLY:
+                return headerSize();
+            case PAYLOAD_LENGTH:
+            case PACKET_LENGTH:
+                return (layout.bitOffset(lengthIndex) + layout.bitSize(lengthIndex) + Byte.SIZE - 1) / Byte.SIZE;
+            default:
+                throw new IllegalStateException("Package '" + name + "' has no length field, its size can not be found in a stream");
+        }
+    }
+
+    /**
+     * Total size in bytes of the package starting at {@code buf[off]}, including checksums. Only the first
+     * {@link #framePrefixSize()} bytes are read.
+     */
+    public long frameSize(byte[] buf, int off) {
+        return frameSize(frameKind == FrameKind.HEADER_ONLY ? 0 : layout.read(buf, off, lengthIndex));
+    }
+
+    public long frameSize(ByteBuffer buf, int off) {
+        return frameSize(frameKind == FrameKind.HEADER_ONLY ? 0 : layout.read(buf, off, lengthIndex));
+    }
+
+    private long frameSize(long length) {
+        switch (frameKind) {
+            case HEADER_ONLY:
+                return headerSize();
+            case PAYLOAD_LENGTH:
+                // Same as PackageKit.encodedSize(): an empty payload has no checksum of its own when it is separate
+                boolean pec = checksum != null && (!useSeparateChecksum || length != 0);
+                return headerSize() + length + (pec ? pecSizePayload : 0);
+            case PACKET_LENGTH:
+                return length + lengthAdjust;
+            default:
+                throw new IllegalStateException("Package '" + name + "' has no length field, its size can not be found in a stream");
+        }
+    }
+
+    void assertHeaderSize(String pkgName) {
+        if (headerBitSum % Byte.SIZE != 0) {
+            throw new IllegalArgumentException("PackageKit invalid number of bits in header of " + pkgName + " (has " + headerBitSum + " bits). Must be multiple of Byte.SIZE");
+        }
+    }
+
+    long[] copyDefaults() {
+        return defaults.clone();
+    }
+
+    void restoreDefaults(long[] values, int from) {
+        System.arraycopy(defaults, 0, values, from, defaults.length);
+    }
+
+    boolean hasDefaults(long[] values, int from) {
+        return Arrays.equals(defaults, 0, defaults.length, values, from, from + defaults.length);
+    }
+
+    int ppPad() {
+        return ppPad;
+    }
+
+    PackageFormatter.Layout formatLayout() {
+        PackageFormatter.Layout labels = formatLayout;
+        if (labels == null) {
+            // Immutable, a race only creates it twice
+            labels = new PackageFormatter.Layout(this);
+            formatLayout = labels;
+        }
+        return labels;
+    }
+
+    int subPackageIndex(String subName) {
+        for (int i = 0; i < subNames.length; i++) {
+            if (subNames[i].equals(subName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int subPackageCount() {
+        return subNames.length;
+    }
+
+    int subPackageBase(int index) {
+        return subBase[index];
+    }
+
+    PacketSchema subPackage(int index) {
+        return subSchemas[index];
+    }
+
+    @Override
+    public String toString() {
+        return "PacketSchema '" + name + "' (" + layout.fieldCount() + " fields, " + headerSize() + " header bytes)";
+    }
+}
@@ -0,0 +1,121 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * {@link FieldPredicate}s of one schema evaluated in a single pass, e.g. the filters of all subscribers of a router.
+ * Every header window and field referenced by any of the predicates is read once per package, after which the
+ * predicates are evaluated on the extracted values.
+ * <p>
+ * A group holds the scratch space of the pass and is not thread-safe. Use {@link #copy()} for each routing thread.
+ */
+public final class PredicateGroup {
+    private final FieldPredicate.Fields fields;
+    private final FieldPredicate.Node[] predicates;
+    private final int[] windowsUsed;
+    private final int[] fieldsUsed;
+    private final int headerBytes;
+    private final long[] windows;
+    private final long[] fieldValues;
+
+    public PredicateGroup(List<FieldPredicate> predicates) {
+        if (predicates.isEmpty()) {
+            throw new IllegalArgumentException("PredicateGroup needs at least one predicate");
+        }
+        this.fields = predicates.get(0).fields();
+        this.predicates = new FieldPredicate.Node[predicates.size()];
+        BitSet windowSet = new BitSet();
+        BitSet fieldSet = new BitSet();
+        for (int i = 0; i < this.predicates.length; i++) {
+            FieldPredicate predicate = predicates.get(i);
+            if (predicate.getSchema() != fields.getSchema()) {
+                throw new IllegalArgumentException("Predicate on '" + predicate.getSchema().getName() + "' can not be grouped with ones on '" + fields.getSchema().getName() + "'");
+            }
+            this.predicates[i] = predicate.compiled();
+            this.predicates[i].collect(windowSet, fieldSet);
+        }
+        this.windowsUsed = windowSet.stream().toArray();
+        this.fieldsUsed = fieldSet.stream().toArray();
+        this.headerBytes = fields.getSchema().getLayout().byteSize();
+        this.windows = new long[fields.windowCount()];
+        this.fieldValues = new long[fields.fieldCount()];
+    }
+
+    private PredicateGroup(PredicateGroup other) {
+        this.fields = other.fields;
+        this.predicates = other.predicates;
+        this.windowsUsed = other.windowsUsed;
+        this.fieldsUsed = other.fieldsUsed;
+        this.headerBytes = other.headerBytes;
+        this.windows = new long[other.windows.length];
+        this.fieldValues = new long[other.fieldValues.length];
+    }
+
+    /**
+     * Group with the same predicates and its own scratch space.
+     */
+    public PredicateGroup copy() {
+        return new PredicateGroup(this);
+    }
+
+    /***************************
+     *          Match
+     **************************/
+
+    /**
+     * Evaluate all predicates on the package in {@code buf[off, off + length)}.
+     *
+     * @param matches receives the indexes of the matching predicates in ascending order, at least {@link #size()} long
+     * @return the number of matching predicates
+     */
+    public int match(byte[] buf, int off, int length, int[] matches) {
+        if (length < headerBytes) {
+            return 0;
+        }
+        for (int w : windowsUsed) {
+            windows[w] = fields.window(buf, off, w);
+        }
+        FieldLayout layout = fields.getSchema().getLayout();
+        for (int index : fieldsUsed) {
+            fieldValues[index] = layout.read(buf, off, index);
+        }
+        return evaluate(matches);
+    }
+
+    public int match(ByteBuffer buf, int off, int length, int[] matches) {
+        if (length < headerBytes) {
+            return 0;
+        }
+        for (int w : windowsUsed) {
+            windows[w] = fields.window(buf, off, w);
+        }
+        FieldLayout layout = fields.getSchema().getLayout();
+        for (int index : fieldsUsed) {
+            fieldValues[index] = layout.read(buf, off, index);
+        }
+        return evaluate(matches);
+    }
+
+    private int evaluate(int[] matches) {
+        int count = 0;
+        for (int i = 0; i < predicates.length; i++) {
+            if (predicates[i].test(windows, fieldValues)) {
+                matches[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    /***************************
+     *          Info
+     **************************/
+    public int size() {
+        return predicates.length;
+    }
+
+    public PacketSchema getSchema() {
+        return fields.getSchema();
+    }
+}
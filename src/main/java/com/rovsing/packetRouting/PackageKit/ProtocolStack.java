@@ -0,0 +1,108 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.util.Arrays;
+
+/**
+ * Immutable declaration of encapsulated protocols: the payload of a package of this layer's schema carries a
+ * package of an inner stack, selected by the value of a field of this layer (e.g. CPTP carrying PUS_TC or PUS_TM
+ * depending on {@code userApplication}). Stacks are built bottom-up:
+ * <pre>
+ *     ProtocolStack.of(CPTP)
+ *             .carrying("userApplication", 1, ProtocolStack.of(PUS_TC))
+ *             .carrying("userApplication", 2, ProtocolStack.of(PUS_TM));
+ * </pre>
+ * All layers are decoded in one pass over the original buffer by a {@link LayeredPacket}.
+ */
+public final class ProtocolStack {
+    private final PacketSchema schema;
+    private final int selector;
+    private final long[] values;
+    private final ProtocolStack[] inner;
+    private final int depth;
+
+    private ProtocolStack(PacketSchema schema, int selector, long[] values, ProtocolStack[] inner) {
+        schema.assertHeaderSize(schema.getName());
+        this.schema = schema;
+        this.selector = selector;
+        this.values = values;
+        this.inner = inner;
+        int innerDepth = 0;
+        for (ProtocolStack stack : inner) {
+            innerDepth = Integer.max(stack.depth, innerDepth);
+        }
+        this.depth = innerDepth + 1;
+    }
+
+    public static ProtocolStack of(PacketSchema schema) {
+        return new ProtocolStack(schema, -1, new long[0], new ProtocolStack[0]);
+    }
+
+    /**
+     * Stack whose payload carries {@code stack} when {@code selectorField} holds {@code value}. All inner stacks of
+     * a layer are selected by the same field.
+     */
+    public ProtocolStack carrying(String selectorField, long value, ProtocolStack stack) {
+        int handle = schema.handle(selectorField);
+        if (selector >= 0 && selector != handle) {
+            throw new IllegalArgumentException("Layer '" + schema.getName() + "' is already selected by field '" + schema.getLayout().name(selector) + "'");
+        }
+        if (innerIndex(value) >= 0) {
+            throw new IllegalArgumentException("Layer '" + schema.getName() + "' already carries a package for " + selectorField + " = " + value);
+        }
+        long[] newValues = Arrays.copyOf(values, values.length + 1);
+        ProtocolStack[] newInner = Arrays.copyOf(inner, inner.length + 1);
+        newValues[values.length] = value;
+        newInner[inner.length] = stack;
+        return new ProtocolStack(schema, handle, newValues, newInner);
+    }
+
+    public ProtocolStack carrying(String selectorField, long value, PacketSchema schema) {
+        return carrying(selectorField, value, of(schema));
+    }
+
+    public LayeredPacket newPacket() {
+        return new LayeredPacket(this);
+    }
+
+    /***************************
+     *         Info
+     **************************/
+    public PacketSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Number of layers of the deepest encapsulation.
+     */
+    public int depth() {
+        return depth;
+    }
+
+    int selector() {
+        return selector;
+    }
+
+    /**
+     * Inner stack carried for selector value {@code value}, or null.
+     */
+    ProtocolStack inner(long value) {
+        int index = innerIndex(value);
+        return index < 0 ? null : inner[index];
+    }
+
+    /**
+     * Inner stack number {@code index}, or null past the last one.
+     */
+    ProtocolStack innerAt(int index) {
+        return index < inner.length ? inner[index] : null;
+    }
+
+    private int innerIndex(long value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,155 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Lock-free sequence counters, one per key, wrapping at the width of the counter field (e.g. the 14 bit PUS
+ * {@code seqCounter} per 11 bit {@code apid}, or the 16 bit RMAP {@code transId} per target {@code logicAddress}).
+ * Allocation is a single {@link AtomicIntegerArray#getAndIncrement(int)}, counters of small key spaces are spread
+ * over separate cache lines so threads sequencing different keys do not contend.
+ * <p>
+ * Packages are stamped while they are encoded through a {@link Stamp} bound to their schema, see
+ * {@link PackageKit#setSequence(Stamp)}. One set of counters can be shared by several schemas, e.g. RMAP write and
+ * read commands towards the same target.
+ */
+public final class SequenceCounters {
+    private static final int MAX_KEY_BITS = 16;
+    // Counters padded to one per 64 byte cache line up to this many keys
+    private static final int PADDED_KEYS = 4096;
+    private static final int PAD = 16;
+
+    private final int counterBits;
+    private final int keyBits;
+    private final int mask;
+    private final int stride;
+    private final AtomicIntegerArray counters;
+
+    /**
+     * Counters of {@code counterBits} (1..32) each for the keys {@code [0, 2^keyBits)}, {@code keyBits} 0..16.
+     */
+    public SequenceCounters(int counterBits, int keyBits) {
+        if (counterBits < 1 || counterBits > Integer.SIZE) {
+            throw new IllegalArgumentException("Sequence counters must be 1 to 32 bits wide (was " + counterBits + ")");
+        }
+        if (keyBits < 0 || keyBits > MAX_KEY_BITS) {
+            throw new IllegalArgumentException("Sequence keys must be 0 to " + MAX_KEY_BITS + " bits wide (was " + keyBits + ")");
+        }
+        this.counterBits = counterBits;
+        this.keyBits = keyBits;
+        this.mask = (int) (0xFFFFFFFFL >>> Integer.SIZE - counterBits);
+        int keys = 1 << keyBits;
+        this.stride = keys <= PADDED_KEYS ? PAD : 1;
+        this.counters = new AtomicIntegerArray(keys * stride);
+    }
+
+    /**
+     * Counters as wide as {@code counterField} of {@code schema}, keyed by the values of {@code keyField}.
+     */
+    public static SequenceCounters forFields(PacketSchema schema, String counterField, String keyField) {
+        FieldLayout layout = schema.getLayout();
+        return new SequenceCounters(layout.bitSize(schema.handle(counterField)), layout.bitSize(schema.handle(keyField)));
+    }
+
+    /***************************
+     *        Counting
+     **************************/
+    /**
+     * Allocate the next value of {@code key}, wrapping from the maximum value to 0.
+     */
+    public int next(int key) {
+        return counters.getAndIncrement(slot(key)) & mask;
+    }
+
+    /**
+     * Value the next {@link #next(int)} of {@code key} returns.
+     */
+    public int peek(int key) {
+        return counters.get(slot(key)) & mask;
+    }
+
+    /**
+     * Continue the sequence of {@code key} at {@code value}, e.g. after a restart.
+     */
+    public void set(int key, int value) {
+        counters.set(slot(key), value & mask);
+    }
+
+    public void reset() {
+        for (int i = 0; i < counters.length(); i += stride) {
+            counters.set(i, 0);
+        }
+    }
+
+    /***************************
+     *          Info
+     **************************/
+    public int getCounterBits() {
+        return counterBits;
+    }
+
+    public int getKeyBits() {
+        return keyBits;
+    }
+
+    public int getMaxValue() {
+        return mask;
+    }
+
+    private int slot(int key) {
+        return Objects.checkIndex(key, 1 << keyBits) * stride;
+    }
+
+    /***************************
+     *         Stamping
+     **************************/
+    /**
+     * Stamp of the next value of these counters into {@code counterField} of {@code schema} packages, keyed by their
+     * {@code keyField} value (null for a single sequence of all packages).
+     *
+     * @throws IllegalArgumentException if the fields are wider than the counters and keys
+     */
+    public Stamp stamp(PacketSchema schema, String counterField, String keyField) {
+        FieldLayout layout = schema.getLayout();
+        int counterIndex = schema.handle(counterField);
+        int keyIndex = keyField == null ? -1 : schema.handle(keyField);
+        if (layout.bitSize(counterIndex) < counterBits) {
+            throw new IllegalArgumentException("Field '" + counterField + "' of " + schema.getName() + " can not hold " + counterBits + " bit sequence counters");
+        }
+        if (keyIndex >= 0 && layout.bitSize(keyIndex) > keyBits) {
+            throw new IllegalArgumentException("Field '" + keyField + "' of " + schema.getName() + " is wider than the " + keyBits + " bit sequence keys");
+        }
+        return new Stamp(this, schema, counterIndex, keyIndex);
+    }
+
+    /**
+     * Immutable binding of {@link SequenceCounters} to the fields of one schema, shared by all its packages.
+     */
+    public static final class Stamp {
+        private final SequenceCounters counters;
+        private final PacketSchema schema;
+        private final int counterIndex;
+        private final int keyIndex;
+
+        private Stamp(SequenceCounters counters, PacketSchema schema, int counterIndex, int keyIndex) {
+            this.counters = counters;
+            this.schema = schema;
+            this.counterIndex = counterIndex;
+            this.keyIndex = keyIndex;
+        }
+
+        public SequenceCounters getCounters() {
+            return counters;
+        }
+
+        public PacketSchema getSchema() {
+            return schema;
+        }
+
+        // Allocate the next value for the package held in values[from...] and write it into its counter field
+        void apply(long[] values, int from) {
+            int key = keyIndex < 0 ? 0 : (int) values[from + keyIndex];
+            values[from + counterIndex] = Integer.toUnsignedLong(counters.next(key));
+        }
+    }
+}
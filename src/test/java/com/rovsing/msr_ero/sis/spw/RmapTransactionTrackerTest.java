@@ -0,0 +1,204 @@
+package com.rovsing.msr_ero.sis.spw;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RmapTransactionTrackerTest {
+    private final AtomicLong replies = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final RmapTransactionTracker.Listener listener = new RmapTransactionTracker.Listener() {
+        @Override
+        public void onReply(int target, int transId, long cookie) {
+            assertEquals(target << 16 | transId, cookie);
+            replies.incrementAndGet();
+        }
+
+        @Override
+        public void onTimeout(int target, int transId, long cookie) {
+            assertEquals(target << 16 | transId, cookie);
+            timeouts.incrementAndGet();
+        }
+    };
+
+    @Test
+    void completedSlotsAreReusedBeforeTheirDeadline() {
+        RmapTransactionTracker tracker = new RmapTransactionTracker(16, 10, TimeUnit.SECONDS, listener);
+        for (int i = 0; i < 10_000; i++) {
+            int transId = i & 0xFFFF;
+            tracker.register(1, transId, 1 << 16 | transId, TimeUnit.SECONDS.toNanos(10));
+            assertTrue(tracker.complete(1, transId));
+            tracker.expire();
+        }
+        assertEquals(10_000, replies.get());
+        assertEquals(0, tracker.inFlight());
+    }
+
+    @Test
+    void cancelledSlotsAreReusedBeforeTheirDeadline() {
+        RmapTransactionTracker tracker = new RmapTransactionTracker(16, 10, TimeUnit.SECONDS, listener);
+        for (int i = 0; i < 1_000; i++) {
+            for (int t = 0; t < 16; t++) {
+                tracker.register(t, i, t << 16 | i, TimeUnit.SECONDS.toNanos(10));
+            }
+            for (int t = 0; t < 16; t++) {
+                assertTrue(tracker.cancel(t, i));
+            }
+        }
+        assertEquals(0, tracker.inFlight());
+    }
+
+    @Test
+    void reusedSlotStillTimesOut() throws InterruptedException {
+        RmapTransactionTracker tracker = new RmapTransactionTracker(1, 20, TimeUnit.MILLISECONDS, listener);
+        tracker.register(1, 1, 1 << 16 | 1, TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(tracker.complete(1, 1));
+        tracker.register(1, 2, 1 << 16 | 2, TimeUnit.MILLISECONDS.toNanos(20));
+        long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (timeouts.get() == 0 && System.nanoTime() < until) {
+            tracker.expire();
+            Thread.sleep(5);
+        }
+        assertEquals(1, timeouts.get());
+        assertEquals(0, tracker.inFlight());
+        assertFalse(tracker.complete(1, 2));
+    }
+
+    @Test
+    void duplicateAfterAFreeSlotIsRejected() {
+        // Two slots: every other id shares the home slot of (1, 0) and is placed behind it
+        RmapTransactionTracker tracker = new RmapTransactionTracker(1, 10, TimeUnit.SECONDS, listener);
+        long timeout = TimeUnit.SECONDS.toNanos(10);
+        for (int transId = 1; transId < 64; transId++) {
+            tracker.register(1, 0, 1 << 16, timeout);
+            tracker.register(1, transId, 1 << 16 | transId, timeout);
+            assertTrue(tracker.cancel(1, 0));
+            int id = transId;
+            assertThrows(IllegalArgumentException.class, () -> tracker.register(1, id, 1 << 16 | id, timeout));
+            assertTrue(tracker.cancel(1, transId));
+        }
+        assertEquals(0, tracker.inFlight());
+    }
+
+    @Test
+    void probeChainsStayShortOnAWarmTable() {
+        // 128 slots at a quarter load, without reclaiming the tombstones every lookup runs the full 64 probes
+        RmapTransactionTracker tracker = new RmapTransactionTracker(64, 10, TimeUnit.SECONDS, listener);
+        long timeout = TimeUnit.SECONDS.toNanos(10);
+        Random random = new Random(3);
+        int[] window = new int[32];
+        for (int i = 0; i < window.length; i++) {
+            window[i] = i;
+            tracker.register(1, i, 1 << 16 | i, timeout);
+        }
+        int longest = 0;
+        long total = 0;
+        for (int cycle = window.length; cycle < 100_000; cycle++) {
+            int i = random.nextInt(window.length);
+            assertTrue(tracker.complete(1, window[i]));
+            window[i] = cycle & 0xFFFF;
+            tracker.register(1, window[i], 1 << 16 | window[i], timeout);
+            int probe = tracker.probeLength(1, random.nextInt(1 << 16));
+            longest = Integer.max(longest, probe);
+            total += probe;
+        }
+        assertTrue(total < 4 * 100_000, "mean probe " + total / 100_000.0);
+        assertTrue(longest < 64, "longest probe " + longest);
+        for (int transId : window) {
+            assertTrue(tracker.cancel(1, transId));
+        }
+        assertEquals(0, tracker.inFlight());
+        assertEquals(1, tracker.probeLength(1, 12345));
+    }
+
+    @Test
+    void fullTrackerIsReported() {
+        RmapTransactionTracker tracker = new RmapTransactionTracker(4, 10, TimeUnit.SECONDS, listener);
+        assertThrows(IllegalStateException.class, () -> {
+            for (int i = 0; i < 1 << 16; i++) {
+                tracker.register(1, i, 1 << 16 | i, TimeUnit.SECONDS.toNanos(10));
+            }
+        });
+    }
+
+    @Test
+    void concurrentRegisterCompleteAndExpire() throws Exception {
+        int threads = 4;
+        int window = 256;
+        int rounds = 200;
+        RmapTransactionTracker tracker = new RmapTransactionTracker(threads * window, 50, TimeUnit.MILLISECONDS, listener);
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        AtomicBoolean stop = new AtomicBoolean();
+        try {
+            Future<?> wheel = executor.submit(() -> {
+                while (!stop.get()) {
+                    tracker.expire();
+                    LockSupport.parkNanos(100_000);
+                }
+            });
+            List<Future<Long>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int target = t;
+                // Every round leaves one transaction to time out, the rest are completed in random order
+                workers.add(executor.submit(() -> {
+                    long abandoned = 0;
+                    int[] ids = new int[window];
+                    for (int round = 0; round < rounds; round++) {
+                        for (int i = 0; i < window - 1; i++) {
+                            int transId = (round * window + i) & 0xFFFF;
+                            ids[i] = transId;
+                            tracker.register(target, transId, target << 16 | transId, TimeUnit.SECONDS.toNanos(10));
+                        }
+                        for (int i = window - 2; i > 0; i--) {
+                            int j = ThreadLocalRandom.current().nextInt(i + 1);
+                            int id = ids[i];
+                            ids[i] = ids[j];
+                            ids[j] = id;
+                        }
+                        for (int i = 0; i < window - 1; i++) {
+                            assertTrue(tracker.complete(target, ids[i]));
+                            assertFalse(tracker.complete(target, ids[i]));
+                        }
+                        if (round % 20 == 0) {
+                            int transId = (round * window + window - 1) & 0xFFFF;
+                            tracker.register(target, transId, target << 16 | transId, TimeUnit.MILLISECONDS.toNanos(50));
+                            abandoned++;
+                        }
+                    }
+                    return abandoned;
+                }));
+            }
+            long abandoned = 0;
+            for (Future<Long> worker : workers) {
+                abandoned += worker.get(60, TimeUnit.SECONDS);
+            }
+            long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (timeouts.get() < abandoned && System.nanoTime() < until) {
+                Thread.sleep(10);
+            }
+            stop.set(true);
+            wheel.get(10, TimeUnit.SECONDS);
+            assertEquals((long) threads * rounds * (window - 1), replies.get());
+            assertEquals(abandoned, timeouts.get());
+            assertEquals(0, tracker.inFlight());
+        } finally {
+            stop.set(true);
+            executor.shutdownNow();
+        }
+    }
+}
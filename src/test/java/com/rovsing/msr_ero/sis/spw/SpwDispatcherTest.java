@@ -0,0 +1,64 @@
+package com.rovsing.msr_ero.sis.spw;
+
+import com.rovsing.packetRouting.PackageKit.PackageKit;
+import com.rovsing.packetRouting.PackageKit.PackagePool;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SpwDispatcherTest {
+
+    @Test
+    void packagesAreDecodedWithTheirSchema() {
+        SpwDispatcher dispatcher = new SpwDispatcher(4);
+        PackageKit write = SpwPkgFactory.RMAP_WRITE.newInstance();
+        write.getField("isCommand").setValue(1);
+        write.getField("isWrite").setValue(1);
+        write.getField("transId").setValue(9);
+        byte[] bytes = write.toBytes().array();
+
+        PackageKit decoded = dispatcher.dispatch(bytes, 0, bytes.length);
+        assertSame(SpwPkgFactory.RMAP_WRITE, decoded.getSchema());
+        assertEquals(9, decoded.getField("transId").getValue());
+        dispatcher.release(decoded);
+    }
+
+    @Test
+    void truncatedPackagesAreUnknown() {
+        SpwDispatcher dispatcher = new SpwDispatcher(4);
+        PackageKit write = SpwPkgFactory.RMAP_WRITE.newInstance();
+        write.getField("isCommand").setValue(1);
+        write.getField("isWrite").setValue(1);
+        byte[] bytes = write.toBytes().array();
+        int header = SpwPkgFactory.RMAP_WRITE.headerSize();
+
+        for (int length = 0; length < header; length++) {
+            assertNull(dispatcher.schemaOf(bytes, 0, length));
+            assertNull(dispatcher.dispatch(bytes, 0, length));
+            assertNull(dispatcher.dispatch(ByteBuffer.wrap(bytes), 0, length));
+        }
+        assertSame(SpwPkgFactory.RMAP_WRITE, dispatcher.schemaOf(bytes, 0, header));
+    }
+
+    @Test
+    void failedDecodeReturnsTheInstanceToItsPool() {
+        SpwDispatcher dispatcher = new SpwDispatcher(1);
+        PackagePool pool = dispatcher.pool(SpwPkgFactory.RMAP_WRITE);
+        PackageKit write = SpwPkgFactory.RMAP_WRITE.newInstance();
+        write.getField("isCommand").setValue(1);
+        write.getField("isWrite").setValue(1);
+        byte[] bytes = write.toBytes().array();
+
+        // The frame claims more bytes than the buffer holds
+        assertThrows(IndexOutOfBoundsException.class, () -> dispatcher.dispatch(bytes, 0, bytes.length + 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> dispatcher.dispatch(ByteBuffer.wrap(bytes), 0, bytes.length + 1));
+        // The pool of capacity 1 holds the instance taken by the failed dispatch
+        assertFalse(pool.release(SpwPkgFactory.RMAP_WRITE.newInstance()));
+    }
+}
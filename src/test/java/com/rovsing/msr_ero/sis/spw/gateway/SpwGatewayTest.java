@@ -0,0 +1,102 @@
+package com.rovsing.msr_ero.sis.spw.gateway;
+
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import com.rovsing.packetRouting.PackageKit.PackageKit;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpwGatewayTest {
+    private static final int TIMEOUT_SECONDS = 10;
+
+    @ParameterizedTest
+    @EnumSource(SpwGateway.Mode.class)
+    void handlerExceptionsCloseOnlyTheirLink(SpwGateway.Mode mode) throws Exception {
+        AtomicInteger opened = new AtomicInteger();
+        BlockingQueue<Throwable> serverClosed = new LinkedBlockingQueue<>();
+        RuntimeException openFailure = new IllegalStateException("onOpen");
+        RuntimeException packetFailure = new IllegalStateException("onPacket");
+        PacketHandler serverHandler = new PacketHandler() {
+            @Override
+            public void onPacket(SpwLink link, PackageKit pkg) {
+                if (pkg.getField("transId").getValue() == 0) {
+                    throw packetFailure;
+                }
+                try {
+                    link.send(pkg);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public void onOpen(SpwLink link) {
+                if (opened.getAndIncrement() == 0) {
+                    throw openFailure;
+                }
+            }
+
+            @Override
+            public void onClose(SpwLink link, Throwable cause) {
+                serverClosed.add(cause);
+                throw new IllegalStateException("onClose");
+            }
+        };
+        BlockingQueue<Integer> echoed = new LinkedBlockingQueue<>();
+        CountDownLatch clientClosed = new CountDownLatch(2);
+        PacketHandler clientHandler = new PacketHandler() {
+            @Override
+            public void onPacket(SpwLink link, PackageKit pkg) {
+                echoed.add(pkg.getField("transId").getValue());
+            }
+
+            @Override
+            public void onClose(SpwLink link, Throwable cause) {
+                clientClosed.countDown();
+            }
+        };
+
+        try (SpwGateway server = new SpwGateway(mode, 4096, 1, serverHandler);
+             SpwGateway client = new SpwGateway(mode, 4096, 1, clientHandler)) {
+            InetSocketAddress address = server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            // onOpen of the first link throws: that link is closed and reported with the exception
+            client.connect(address);
+            assertSame(openFailure, serverClosed.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+            // onPacket throws for transaction 0: only that link is closed
+            SpwLink failing = client.connect(address);
+            SpwLink working = client.connect(address);
+            failing.send(packet(0));
+            assertSame(packetFailure, serverClosed.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertTrue(clientClosed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+            // The throwing onClose calls did not stop the thread serving the remaining link
+            working.send(packet(7));
+            assertEquals(7, echoed.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertTrue(working.isOpen());
+            assertEquals(1, server.links().size());
+        }
+    }
+
+    private static PackageKit packet(int transId) {
+        PackageKit pkg = SpwPkgFactory.RMAP_WRITE.newInstance();
+        pkg.getField("isCommand").setValue(1);
+        pkg.getField("isWrite").setValue(1);
+        pkg.getField("transId").setValue(transId);
+        return pkg;
+    }
+}
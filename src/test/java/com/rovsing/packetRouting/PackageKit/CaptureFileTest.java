@@ -0,0 +1,88 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import at.favre.lib.bytes.Bytes;
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CaptureFileTest {
+    private static final PacketSchema SCHEMA = SpwPkgFactory.PUS_TM;
+    private static final int PACKAGES = 10_000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void forEachParallelReturnsInstancesToThePool() throws Exception {
+        try (CaptureFile capture = new CaptureFile(record(), SCHEMA)) {
+            assertEquals(PACKAGES, capture.packageCount());
+            assertEquals(3, capture.trailingBytes());
+            PackagePool pool = SCHEMA.newPool(1);
+            AtomicLong ok = new AtomicLong();
+            Set<PackageKit> used = ConcurrentHashMap.newKeySet();
+            capture.forEachParallel(pool, (kit, i) -> {
+                used.add(kit);
+                if (kit.isChecksumOk() && kit.getField("seqCounter").getValue() == (i & 0x3FFF)) {
+                    ok.incrementAndGet();
+                }
+            });
+            assertEquals(PACKAGES, ok.get());
+            // The chunks handed their instances back, reset and detached from the mapping
+            PackageKit kit = pool.acquire();
+            assertTrue(used.contains(kit));
+            assertFalse(kit.isDismantled());
+        }
+    }
+
+    @Test
+    void forEachParallelRejectsAPoolOfAnotherSchema() throws Exception {
+        try (CaptureFile capture = new CaptureFile(record(), SCHEMA)) {
+            assertThrows(IllegalArgumentException.class, () -> capture.forEachParallel(SpwPkgFactory.PUS_TC.newPool(1), (kit, i) -> {
+            }));
+        }
+    }
+
+    @Test
+    void forEachParallelWithAllocatingSupplier() throws Exception {
+        try (CaptureFile capture = new CaptureFile(record(), SCHEMA)) {
+            AtomicLong sum = new AtomicLong();
+            capture.forEachParallel(SCHEMA::newInstance, (kit, i) -> sum.addAndGet(kit.getField("seqCounter").getValue()));
+            long expected = 0;
+            for (int i = 0; i < PACKAGES; i++) {
+                expected += i & 0x3FFF;
+            }
+            assertEquals(expected, sum.get());
+        }
+    }
+
+    private Path record() throws Exception {
+        Random random = new Random(11);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < PACKAGES; i++) {
+            byte[] payload = new byte[1 + random.nextInt(60)];
+            random.nextBytes(payload);
+            PackageKit kit = SCHEMA.newInstance().setPayload(Bytes.wrap(payload));
+            kit.getField("seqCounter").setValue(i);
+            kit.getField("length").setValue(kit.encodedSize() - 7);
+            out.write(kit.toBytes().array());
+        }
+        // Truncated package at the end
+        out.write(new byte[]{1, 2, 3});
+        Path file = dir.resolve("capture.bin");
+        Files.write(file, out.toByteArray());
+        return file;
+    }
+}
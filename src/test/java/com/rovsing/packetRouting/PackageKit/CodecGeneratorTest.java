@@ -0,0 +1,98 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import at.favre.lib.bytes.Bytes;
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Generated codecs against {@link PackageKit} on random packages. The codecs are generated from
+ * {@link SpwPkgFactory} into the codecs source set by the build.
+ */
+class CodecGeneratorTest {
+    private static final String CODEC_PACKAGE = "com.rovsing.msr_ero.sis.spw.codec.";
+
+    @ParameterizedTest
+    @ValueSource(strings = {"PUS_TC", "PUS_TM", "CPTP", "NATIVE", "RMAP_WRITE", "RMAP_WRITE_REPLY", "RMAP_READ", "RMAP_READ_REPLY"})
+    void codecMatchesPackageKit(String schemaName) throws Exception {
+        PacketSchema schema = SpwPkgFactory.getSchema(schemaName);
+        Codec codec = new Codec(Class.forName(CODEC_PACKAGE + CodecGenerator.className(schemaName)));
+        FieldLayout layout = schema.getLayout();
+        Random random = new Random(schemaName.hashCode());
+        for (int iteration = 0; iteration < 2000; iteration++) {
+            PackageKit kit = schema.newInstance();
+            if (iteration > 0) {
+                for (int i = 0; i < layout.fieldCount(); i++) {
+                    kit.setLong(i, random.nextLong() & layout.mask(i));
+                }
+            }
+            byte[] payload = new byte[iteration % 3 == 0 ? 0 : random.nextInt(100)];
+            random.nextBytes(payload);
+            kit.setPayload(Bytes.wrap(payload));
+
+            // Encode
+            Object encoder = codec.newInstance();
+            codec.from.invoke(encoder, kit);
+            byte[] encoded = kit.toBytes().array();
+            assertArrayEquals(encoded, ((Bytes) codec.toBytes.invoke(encoder)).array());
+
+            // Decode, with a flipped bit in every fifth package
+            if (iteration % 5 == 1) {
+                encoded[random.nextInt(encoded.length)] ^= 1 << random.nextInt(Byte.SIZE);
+            }
+            kit.fromBytes(encoded);
+            Object decoder = codec.newInstance();
+            codec.fromBytes.invoke(decoder, (Object) encoded);
+            assertEquals(kit.isChecksumOk(), codec.isChecksumOk.invoke(decoder));
+            PackageKit decoded = (PackageKit) codec.toPackageKit.invoke(decoder);
+            for (int i = 0; i < layout.fieldCount(); i++) {
+                assertEquals(kit.getLong(i), decoded.getLong(i), layout.name(i));
+            }
+            assertEquals(kit.getPayload(), decoded.getPayload());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"PUS_TC", "RMAP_WRITE"})
+    void codecRejectsInputShorterThanTheHeader(String schemaName) throws Exception {
+        PacketSchema schema = SpwPkgFactory.getSchema(schemaName);
+        Codec codec = new Codec(Class.forName(CODEC_PACKAGE + CodecGenerator.className(schemaName)));
+        byte[] encoded = schema.newInstance().toBytes().array();
+        byte[] truncated = new byte[schema.headerSize() - 1];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+
+        InvocationTargetException e = assertThrows(InvocationTargetException.class, () -> codec.fromBytes.invoke(codec.newInstance(), (Object) truncated));
+        assertTrue(e.getCause() instanceof IllegalArgumentException, e.getCause().toString());
+    }
+
+    private static final class Codec {
+        private final Class<?> type;
+        private final Method from;
+        private final Method toBytes;
+        private final Method fromBytes;
+        private final Method isChecksumOk;
+        private final Method toPackageKit;
+
+        private Codec(Class<?> type) throws NoSuchMethodException {
+            this.type = type;
+            this.from = type.getMethod("from", PackageKit.class);
+            this.toBytes = type.getMethod("toBytes");
+            this.fromBytes = type.getMethod("fromBytes", byte[].class);
+            this.isChecksumOk = type.getMethod("isChecksumOk");
+            this.toPackageKit = type.getMethod("toPackageKit");
+        }
+
+        private Object newInstance() throws ReflectiveOperationException {
+            return type.getConstructor().newInstance();
+        }
+    }
+}
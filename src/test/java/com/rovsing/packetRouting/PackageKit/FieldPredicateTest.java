@@ -0,0 +1,146 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FieldPredicateTest {
+
+    /**
+     * Random predicate trees, compiled and grouped, against the same conditions evaluated on decoded field values.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"PUS_TC", "PUS_TM", "RMAP_WRITE"})
+    void compiledPredicatesMatchDecodedValues(String schemaName) {
+        PacketSchema schema = SpwPkgFactory.getSchema(schemaName);
+        FieldLayout layout = schema.getLayout();
+        int headerBytes = layout.byteSize();
+        Random random = new Random(schemaName.hashCode());
+        FieldPredicate.Fields fields = FieldPredicate.on(schema);
+        List<FieldPredicate> predicates = new ArrayList<>();
+        List<Predicate<long[]>> references = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            Generated generated = generate(random, layout, fields, 3);
+            predicates.add(generated.predicate);
+            references.add(generated.reference);
+        }
+        PredicateGroup group = new PredicateGroup(predicates);
+        PredicateGroup copy = group.copy();
+        int[] matches = new int[group.size()];
+        int[] bufferMatches = new int[group.size()];
+        PackageKit kit = schema.newInstance();
+        long hits = 0;
+
+        for (int t = 0; t < 2000; t++) {
+            int off = random.nextInt(4);
+            byte[] buf = new byte[off + schema.headerSize() + 4];
+            // Mostly small values, so equalities and sets match now and then
+            for (int i = 0; i < layout.fieldCount(); i++) {
+                layout.write(buf, off, i, random.nextInt(4) == 0 ? random.nextLong() : random.nextInt(3));
+            }
+            kit.decodeFrom(buf, off, schema.headerSize());
+            long[] values = new long[layout.fieldCount()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = kit.getLong(i);
+            }
+            ByteBuffer buffer = t % 2 == 0 ? ByteBuffer.allocateDirect(buf.length) : ByteBuffer.allocate(buf.length);
+            buffer.order(t % 3 == 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).put(buf).clear();
+
+            int count = group.match(buf, off, headerBytes, matches);
+            assertEquals(count, copy.match(buffer, off, headerBytes, bufferMatches));
+            int match = 0;
+            for (int i = 0; i < predicates.size(); i++) {
+                boolean expected = references.get(i).test(values);
+                String message = predicates.get(i) + " on " + Arrays.toString(values);
+                assertEquals(expected, predicates.get(i).test(buf, off, headerBytes), message);
+                assertEquals(expected, predicates.get(i).test(buffer, off, headerBytes), message);
+                if (expected) {
+                    assertEquals(i, matches[match], message);
+                    assertEquals(i, bufferMatches[match], message);
+                    match++;
+                    hits++;
+                }
+            }
+            assertEquals(match, count);
+        }
+        assertTrue(hits > 0);
+    }
+
+    @Test
+    void invalidPredicatesAreRejected() {
+        FieldPredicate.Fields fields = FieldPredicate.on(SpwPkgFactory.PUS_TC);
+        assertThrows(IllegalArgumentException.class, () -> fields.eq("apid", 0x800));
+        assertThrows(NoSuchElementException.class, () -> fields.eq("nope", 1));
+        assertThrows(IllegalArgumentException.class, () -> fields.all().and(FieldPredicate.on(SpwPkgFactory.PUS_TM).all()));
+    }
+
+    @Test
+    void shortInputAndContradictionsNeverMatch() {
+        FieldPredicate.Fields fields = FieldPredicate.on(SpwPkgFactory.PUS_TC);
+        assertFalse(fields.eq("apid", 1).and(fields.eq("apid", 2)).test(new byte[20], 0, 20));
+        assertFalse(fields.all().test(new byte[4], 0, 4));
+    }
+
+    private static final class Generated {
+        private final FieldPredicate predicate;
+        private final Predicate<long[]> reference;
+
+        private Generated(FieldPredicate predicate, Predicate<long[]> reference) {
+            this.predicate = predicate;
+            this.reference = reference;
+        }
+    }
+
+    private static Generated generate(Random random, FieldLayout layout, FieldPredicate.Fields fields, int depth) {
+        int kind = depth == 0 ? random.nextInt(4) : random.nextInt(7);
+        int field = random.nextInt(layout.fieldCount());
+        String name = layout.name(field);
+        long mask = layout.mask(field);
+        long a = random.nextInt(3) & mask;
+        long b = random.nextInt(4) & mask;
+        switch (kind) {
+            case 0:
+                return new Generated(fields.eq(name, a), v -> v[field] == a);
+            case 1: {
+                long lo = Long.min(a, b);
+                long hi = Long.max(a, b);
+                return new Generated(fields.range(name, lo, hi), v -> v[field] >= lo && v[field] <= hi);
+            }
+            case 2: {
+                long[] set = random.ints(random.nextInt(4), 0, 70).mapToLong(x -> x & mask).toArray();
+                return new Generated(fields.in(name, set), v -> Arrays.stream(set).anyMatch(x -> x == v[field]));
+            }
+            case 3: {
+                long bits = random.nextLong() & mask & 7;
+                long expected = a & bits;
+                return new Generated(fields.mask(name, bits, expected), v -> (v[field] & bits) == expected);
+            }
+            default: {
+                Generated left = generate(random, layout, fields, depth - 1);
+                Generated right = generate(random, layout, fields, depth - 1);
+                if (kind == 4) {
+                    return new Generated(left.predicate.and(right.predicate), left.reference.and(right.reference));
+                }
+                if (kind == 5) {
+                    return new Generated(left.predicate.or(right.predicate), left.reference.or(right.reference));
+                }
+                return new Generated(left.predicate.negate(), left.reference.negate());
+            }
+        }
+    }
+}
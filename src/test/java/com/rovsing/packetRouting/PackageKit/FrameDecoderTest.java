@@ -0,0 +1,179 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import at.favre.lib.bytes.Bytes;
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameDecoderTest {
+    private static final int[] ONE_BYTE = {1};
+    private static final int[] ODD_SIZES = {3, 1, 7, 13, 5, 31, 1, 97};
+
+    @ParameterizedTest
+    @ValueSource(strings = {"PUS_TC", "PUS_TM", "RMAP_WRITE", "RMAP_WRITE_REPLY", "RMAP_READ_REPLY"})
+    void framesSplitAcrossReadsAreReassembled(String schemaName) throws Exception {
+        PacketSchema schema = SpwPkgFactory.getSchema(schemaName);
+        List<PackageKit> packages = packages(schema, 200, new Random(schemaName.hashCode()));
+        for (int[] chunks : List.of(ONE_BYTE, ODD_SIZES)) {
+            ChunkedChannel channel = new ChunkedChannel(concat(packages), chunks);
+            channel.release(Integer.MAX_VALUE);
+            channel.end();
+            FrameDecoder decoder = new FrameDecoder(schema, channel, 300);
+            PackageKit decoded = schema.newInstance();
+            for (PackageKit expected : packages) {
+                assertTrue(decoder.next());
+                assertFrame(expected, decoder, decoded);
+            }
+            assertFalse(decoder.next());
+            assertTrue(decoder.isEndOfStream());
+        }
+    }
+
+    @Test
+    void incompleteTrailingFrameIsKept() throws Exception {
+        PacketSchema schema = SpwPkgFactory.PUS_TC;
+        List<PackageKit> packages = packages(schema, 20, new Random(4));
+        byte[] stream = concat(packages);
+        ChunkedChannel channel = new ChunkedChannel(stream, ODD_SIZES);
+        FrameDecoder decoder = new FrameDecoder(schema, channel, 64);
+        PackageKit decoded = schema.newInstance();
+
+        // A non-blocking channel that has nothing more for now, five bytes short of the last frame
+        channel.release(stream.length - 5);
+        for (int i = 0; i < packages.size() - 1; i++) {
+            assertTrue(decoder.next());
+            assertFrame(packages.get(i), decoder, decoded);
+        }
+        assertFalse(decoder.next());
+        assertFalse(decoder.next());
+        assertFalse(decoder.isEndOfStream());
+
+        channel.release(stream.length);
+        assertTrue(decoder.next());
+        assertFrame(packages.get(packages.size() - 1), decoder, decoded);
+        channel.end();
+        assertFalse(decoder.next());
+        assertTrue(decoder.isEndOfStream());
+    }
+
+    @Test
+    void streamEndingInsideAFrameIsReported() throws Exception {
+        PacketSchema schema = SpwPkgFactory.RMAP_WRITE;
+        List<PackageKit> packages = packages(schema, 3, new Random(5));
+        byte[] stream = concat(packages);
+        ChunkedChannel channel = new ChunkedChannel(stream, ONE_BYTE);
+        channel.release(stream.length - 1);
+        channel.end();
+        FrameDecoder decoder = new FrameDecoder(schema, channel, 300);
+        assertTrue(decoder.next());
+        assertTrue(decoder.next());
+        assertThrows(EOFException.class, decoder::next);
+    }
+
+    private static void assertFrame(PackageKit expected, FrameDecoder decoder, PackageKit decoded) {
+        byte[] encoded = expected.toBytes().array();
+        assertEquals(encoded.length, decoder.frameLength());
+        ByteBuffer frame = decoder.frame();
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        assertArrayEquals(encoded, bytes);
+
+        decoder.decodeInto(decoded);
+        assertTrue(decoded.isChecksumOk());
+        PackageView view = decoder.view();
+        for (int i = 0; i < expected.getSchema().fieldCount(); i++) {
+            assertEquals(expected.getLong(i), decoded.getLong(i));
+            assertEquals(expected.getLong(i), view.getLong(i));
+        }
+        assertEquals(expected.getPayload(), decoded.getPayload());
+    }
+
+    // Random field values, the encode fills in the length fields
+    private static List<PackageKit> packages(PacketSchema schema, int count, Random random) {
+        FieldLayout layout = schema.getLayout();
+        List<PackageKit> packages = new ArrayList<>();
+        for (int p = 0; p < count; p++) {
+            PackageKit kit = schema.newInstance();
+            for (int i = 0; i < layout.fieldCount(); i++) {
+                kit.setLong(i, random.nextLong() & layout.mask(i));
+            }
+            // Header-only frames have no room for a payload
+            if (schema != SpwPkgFactory.RMAP_WRITE_REPLY && schema != SpwPkgFactory.RMAP_READ) {
+                byte[] payload = new byte[random.nextInt(40)];
+                random.nextBytes(payload);
+                kit.setPayload(Bytes.wrap(payload));
+            }
+            kit.toBytes();
+            packages.add(kit);
+        }
+        return packages;
+    }
+
+    private static byte[] concat(List<PackageKit> packages) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (PackageKit kit : packages) {
+            out.writeBytes(kit.toBytes().array());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Non-blocking channel over {@code data}, handing out the released bytes in reads of the given sizes.
+     */
+    private static final class ChunkedChannel implements ReadableByteChannel {
+        private final byte[] data;
+        private final int[] chunks;
+        private int position;
+        private int released;
+        private int reads;
+        private boolean ended;
+
+        private ChunkedChannel(byte[] data, int[] chunks) {
+            this.data = data;
+            this.chunks = chunks;
+        }
+
+        private void release(int upTo) {
+            released = Integer.min(upTo, data.length);
+        }
+
+        private void end() {
+            ended = true;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (position == released) {
+                return ended ? -1 : 0;
+            }
+            int length = Integer.min(Integer.min(chunks[reads++ % chunks.length], dst.remaining()), released - position);
+            dst.put(data, position, length);
+            position += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import at.favre.lib.bytes.Bytes;
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LayeredPacketTest {
+    private static final PacketSchema CPTP = SpwPkgFactory.CPTP;
+    private static final ProtocolStack STACK = ProtocolStack.of(CPTP)
+            .carrying("userApplication", 1, SpwPkgFactory.PUS_TC)
+            .carrying("userApplication", 2, SpwPkgFactory.PUS_TM);
+    private static final int OFF = 5;
+
+    @Test
+    void innerPackageIsSelectedByUserApplication() {
+        LayeredPacket packet = STACK.newPacket();
+        assertEquals(2, STACK.depth());
+        for (int userApplication : new int[]{1, 2}) {
+            PacketSchema innerSchema = userApplication == 1 ? SpwPkgFactory.PUS_TC : SpwPkgFactory.PUS_TM;
+            PackageKit inner = innerSchema.newInstance().setPayload(Bytes.from(new byte[]{9, 8, 7, 6, 5}));
+            inner.getField("apid").setValue(0x123);
+            byte[] innerBytes = inner.toBytes().array();
+            byte[] outer = cptp(userApplication, innerBytes);
+
+            for (ByteBuffer buffer : buffers(outer)) {
+                packet.decode(buffer, OFF, outer.length);
+                assertEquals(2, packet.depth());
+                assertSame(CPTP, packet.schema(0));
+                assertSame(innerSchema, packet.schema(1));
+                assertEquals(OFF, packet.offset(0));
+                assertEquals(outer.length, packet.length(0));
+                assertEquals(OFF + CPTP.headerSize(), packet.payloadOffset(0));
+                assertEquals(innerBytes.length, packet.payloadLength(0));
+                assertEquals(OFF + CPTP.headerSize(), packet.offset(1));
+                assertEquals(innerBytes.length, packet.length(1));
+                assertEquals(OFF + CPTP.headerSize() + innerSchema.headerSize(), packet.payloadOffset(1));
+                assertEquals(5, packet.payloadLength(1));
+
+                assertEquals(userApplication, packet.layer(0).getLong(CPTP.handle("userApplication")));
+                assertEquals(0x123, packet.innermost().getLong(innerSchema.handle("apid")));
+                assertTrue(packet.isChecksumOk(0));
+                assertTrue(packet.isChecksumOk(1));
+                assertTrue(packet.isChecksumOk());
+
+                PackageKit decoded = packet.decodeLayer(1, innerSchema.newInstance());
+                assertEquals(inner.getPayload(), decoded.getPayload());
+                assertEquals(inner.getField("length").getValue(), decoded.getField("length").getValue());
+            }
+        }
+    }
+
+    @Test
+    void corruptedInnerChecksumFailsOnlyItsLayer() {
+        byte[] innerBytes = SpwPkgFactory.PUS_TM.newInstance().setPayload(Bytes.from(new byte[]{1, 2, 3})).toBytes().array();
+        byte[] outer = cptp(2, innerBytes);
+        outer[outer.length - 1] ^= 0x10;
+        LayeredPacket packet = STACK.newPacket();
+        for (ByteBuffer buffer : buffers(outer)) {
+            packet.decode(buffer, OFF, outer.length);
+            assertEquals(2, packet.depth());
+            assertEquals(CPTP.newInstance().fromBytes(outer).isChecksumOk(), packet.isChecksumOk(0));
+            assertFalse(packet.isChecksumOk(1));
+            assertFalse(packet.isChecksumOk());
+        }
+    }
+
+    @Test
+    void unknownSelectorValueStopsAtTheOuterLayer() {
+        byte[] innerBytes = SpwPkgFactory.PUS_TC.newInstance().toBytes().array();
+        byte[] outer = cptp(7, innerBytes);
+        LayeredPacket packet = STACK.newPacket().decode(outer, 0, outer.length);
+        assertEquals(1, packet.depth());
+        assertSame(packet.layer(0), packet.innermost());
+        assertEquals(innerBytes.length, packet.payloadLength(0));
+        assertThrows(IndexOutOfBoundsException.class, () -> packet.layer(1));
+
+        // A payload shorter than the inner header is not decoded either
+        byte[] truncated = cptp(1, new byte[SpwPkgFactory.PUS_TC.headerSize() - 1]);
+        assertEquals(1, packet.decode(truncated, 0, truncated.length).depth());
+    }
+
+    @Test
+    void selectorsAreDeclaredOnce() {
+        ProtocolStack cptp = ProtocolStack.of(CPTP).carrying("userApplication", 1, SpwPkgFactory.PUS_TC);
+        assertThrows(IllegalArgumentException.class, () -> cptp.carrying("userApplication", 1, SpwPkgFactory.PUS_TM));
+        assertThrows(IllegalArgumentException.class, () -> cptp.carrying("reserved", 2, SpwPkgFactory.PUS_TM));
+    }
+
+    private static byte[] cptp(int userApplication, byte[] payload) {
+        PackageKit outer = CPTP.newInstance().setPayload(Bytes.wrap(payload));
+        outer.getField("userApplication").setValue(userApplication);
+        return outer.toBytes().array();
+    }
+
+    // Heap and direct buffers holding the package at OFF
+    private static ByteBuffer[] buffers(byte[] pkg) {
+        ByteBuffer heap = ByteBuffer.allocate(OFF + pkg.length + 3);
+        ByteBuffer direct = ByteBuffer.allocateDirect(OFF + pkg.length + 3);
+        heap.put(OFF, pkg);
+        direct.put(OFF, pkg);
+        return new ByteBuffer[]{heap, direct};
+    }
+}
@@ -0,0 +1,58 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import at.favre.lib.bytes.Bytes;
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import org.junit.jupiter.api.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackageFormatterTest {
+
+    @Test
+    void fieldTableShowsDerivedValues() {
+        PackageKit kit = SpwPkgFactory.RMAP_WRITE.newInstance().setPayload(Bytes.from(new byte[]{1, 2, 3, (byte) 0xAB}));
+        String description = kit.toString();
+
+        assertTrue(description.contains("'dataLength'"));
+        assertTrue(description.lines().anyMatch(line -> line.startsWith("'dataLength'") && line.endsWith("value: 0x4")), description);
+        // The stored value is untouched, derivation only happens in the formatter's scratch space
+        assertEquals(0, kit.getField("dataLength").getValue());
+        String compiled = Bytes.wrap(kit.toBytes().array()).encodeHex().toUpperCase();
+        assertTrue(description.contains("Compiled Package : " + compiled), description);
+    }
+
+    @Test
+    void formattingHasNoSideEffects() {
+        PackageKit kit = SpwPkgFactory.PUS_TC.newInstance().setPayload(Bytes.from(new byte[]{1, 2, 3}));
+        kit.setSequence(SpwPkgFactory.PUS_TC_SEQUENCE);
+        int sequence = SpwPkgFactory.PUS_TC_SEQUENCE_COUNTS.peek(0);
+
+        String first = kit.toString();
+        assertEquals(first, kit.toString());
+        assertEquals(sequence, SpwPkgFactory.PUS_TC_SEQUENCE_COUNTS.peek(0));
+        assertEquals(0, kit.getField("length").getValue());
+    }
+
+    @Test
+    void byteBufferReceivesTheSameText() {
+        PackageKit kit = SpwPkgFactory.RMAP_WRITE_REPLY.newInstance();
+        ByteBuffer out = ByteBuffer.allocateDirect(4096);
+        new PackageFormatter().formatTo(kit, out).flip();
+        assertEquals(kit.toString(), StandardCharsets.US_ASCII.decode(out).toString());
+        assertThrows(BufferOverflowException.class, () -> new PackageFormatter().formatTo(kit, ByteBuffer.allocate(16)));
+    }
+
+    @Test
+    void decodedPackageShowsItsBytes() {
+        PackageKit kit = SpwPkgFactory.RMAP_WRITE.newInstance().setPayload(Bytes.from(new byte[]{9, 8, 7}));
+        byte[] encoded = kit.toBytes().array();
+        String description = SpwPkgFactory.RMAP_WRITE.newInstance().fromBytes(encoded).toString();
+        assertTrue(description.contains("Dismantled Package : " + Bytes.wrap(encoded).encodeHex().toUpperCase()), description);
+    }
+}
@@ -0,0 +1,62 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackageKitChecksumsTest {
+    private static final List<PackageKitChecksums> CHECKSUMS = List.of(
+            PackageKitChecksums.crc16_std_PUS_ECSS_E_ST_70_41C_2016(),
+            PackageKitChecksums.crc8_RMAP_ECSS_E_ST_50_52C_2010());
+
+    @Test
+    void slicedUpdatesMatchTheBytewiseCrc() {
+        Random random = new Random(6);
+        byte[] data = new byte[512];
+        random.nextBytes(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length).put(data);
+        // The byte order of the buffer must not matter
+        ByteBuffer littleEndian = ByteBuffer.allocateDirect(data.length).order(ByteOrder.LITTLE_ENDIAN).put(data);
+        ByteBuffer readOnly = direct.asReadOnlyBuffer();
+        for (PackageKitChecksums checksum : CHECKSUMS) {
+            for (int i = 0; i < 1000; i++) {
+                int off = random.nextInt(data.length);
+                int len = random.nextInt(data.length - off + 1);
+                int crc = random.nextInt(1 << (checksum.digestByteSize() * Byte.SIZE));
+                int expected = bytewise(checksum, crc, data, off, len);
+                assertEquals(expected, checksum.update(crc, data, off, len));
+                assertEquals(expected, checksum.update(crc, direct, off, len));
+                assertEquals(expected, checksum.update(crc, littleEndian, off, len));
+                assertEquals(expected, checksum.update(crc, readOnly, off, len));
+                assertEquals(expected, checksum.update(crc, ByteBuffer.wrap(data), off, len));
+            }
+        }
+    }
+
+    @Test
+    void digestChecksOnDirectBuffers() {
+        byte[] data = new byte[100];
+        new Random(7).nextBytes(data);
+        for (PackageKitChecksums checksum : CHECKSUMS) {
+            int size = checksum.digestByteSize();
+            ByteBuffer direct = ByteBuffer.allocateDirect(1 + data.length + size);
+            direct.put(1, data, 0, data.length);
+            checksum.putDigest(checksum.update(checksum.init(), direct, 1, data.length), direct, 1 + data.length);
+            assertTrue(checksum.check(direct, 1, data.length + size));
+            assertEquals(checksum.update(checksum.init(), data, 0, data.length), checksum.newEngine().update(direct.slice(1, data.length)).value());
+        }
+    }
+
+    private static int bytewise(PackageKitChecksums checksum, int crc, byte[] src, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            crc = checksum.update(crc, src[i]);
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,77 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import com.rovsing.msr_ero.sis.spw.RmapTransactionTracker;
+import com.rovsing.msr_ero.sis.spw.SpwDispatcher;
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackageKitCloneTest {
+
+    @Test
+    void cloneSharesTheSchemaAndCopiesTheValues() {
+        PackageKit from = SpwPkgFactory.PUS_TC.newInstance();
+        from.getField("apid").setValue(42);
+        PackageKit clone = new PackageKit(from, "copy");
+
+        assertSame(from.getSchema(), clone.getSchema());
+        assertTrue(clone.hasSchema(SpwPkgFactory.PUS_TC));
+        assertEquals("copy", clone.getPkgName());
+        assertEquals(42, clone.getField("apid").getValue());
+        assertArrayEquals(from.toBytes().array(), clone.toBytes().array());
+
+        clone.getField("apid").setValue(7);
+        assertEquals(42, from.getField("apid").getValue());
+
+        // reset() goes back to the schema defaults
+        clone.reset();
+        assertEquals(SpwPkgFactory.PUS_TC.newInstance().getField("apid").getValue(), clone.getField("apid").getValue());
+        assertEquals(SpwPkgFactory.PUS_TC.getName(), clone.getPkgName());
+    }
+
+    @Test
+    void cloneIsAcceptedByPools() {
+        SpwDispatcher dispatcher = new SpwDispatcher(4);
+        PackagePool pool = dispatcher.pool(SpwPkgFactory.RMAP_WRITE);
+        PackageKit clone = new PackageKit(SpwPkgFactory.RMAP_WRITE.newInstance());
+
+        assertTrue(pool.release(clone));
+        assertSame(clone, pool.acquire());
+        dispatcher.release(new PackageKit(clone, "other name"));
+    }
+
+    @Test
+    void cloneAcceptsTheSequenceOfItsSchema() {
+        PackageKit from = SpwPkgFactory.PUS_TC.newInstance();
+        from.getField("apid").setValue(5);
+        PackageKit clone = new PackageKit(from).setSequence(SpwPkgFactory.PUS_TC_SEQUENCE);
+
+        int next = SpwPkgFactory.PUS_TC_SEQUENCE_COUNTS.peek(5);
+        byte[] encoded = clone.toBytes().array();
+        PackageKit decoded = SpwPkgFactory.PUS_TC.newInstance().fromBytes(encoded);
+        assertEquals(next, decoded.getField("seqCounter").getValue());
+    }
+
+    @Test
+    void cloneCanBeTracked() {
+        RmapTransactionTracker tracker = new RmapTransactionTracker(4, 10, TimeUnit.SECONDS, new RmapTransactionTracker.Listener() {
+            @Override
+            public void onReply(int target, int transId, long cookie) {
+            }
+
+            @Override
+            public void onTimeout(int target, int transId, long cookie) {
+            }
+        });
+        PackageKit command = new PackageKit(SpwPkgFactory.RMAP_READ.newInstance(), "read");
+        command.getField("logicAddress").setValue(0x42);
+        tracker.register(command, 1);
+        assertEquals(1, tracker.inFlight());
+    }
+}
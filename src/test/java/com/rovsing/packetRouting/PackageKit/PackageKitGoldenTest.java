@@ -0,0 +1,92 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import at.favre.lib.bytes.Bytes;
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackageKitGoldenTest {
+    private static final int OFF = 7;
+
+    @ParameterizedTest(name = "{0} #{index}")
+    @MethodSource("goldenPackages")
+    void encodeMatchesGoldenBytes(String schemaName, long[] values, byte[] payload, byte[] golden) {
+        PackageKit kit = SpwPkgFactory.getSchema(schemaName).newInstance();
+        for (int i = 0; i < values.length; i++) {
+            kit.setLong(i, values[i]);
+        }
+        kit.setPayload(Bytes.wrap(payload));
+        assertEquals(golden.length, kit.encodedSize());
+        assertArrayEquals(golden, kit.toBytes().array());
+
+        byte[] array = new byte[OFF + golden.length + 3];
+        assertEquals(golden.length, kit.encodeInto(array, OFF));
+        assertArrayEquals(golden, Arrays.copyOfRange(array, OFF, OFF + golden.length));
+
+        for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocate(array.length), ByteBuffer.allocateDirect(array.length)}) {
+            buffer.position(OFF);
+            assertEquals(golden.length, kit.encodeInto(buffer));
+            assertEquals(OFF + golden.length, buffer.position());
+            byte[] written = new byte[golden.length];
+            buffer.get(OFF, written);
+            assertArrayEquals(golden, written);
+        }
+    }
+
+    @ParameterizedTest(name = "{0} #{index}")
+    @MethodSource("goldenPackages")
+    void decodeOfGoldenBytesRoundTrips(String schemaName, long[] values, byte[] payload, byte[] golden) {
+        PacketSchema schema = SpwPkgFactory.getSchema(schemaName);
+        byte[] array = new byte[OFF + golden.length + 3];
+        System.arraycopy(golden, 0, array, OFF, golden.length);
+        ByteBuffer heap = ByteBuffer.wrap(array.clone());
+        ByteBuffer direct = ByteBuffer.allocateDirect(array.length).put(array);
+
+        List<PackageKit> decoded = List.of(
+                schema.newInstance().fromBytes(golden),
+                schema.newInstance().fromBytes(Bytes.wrap(golden)),
+                schema.newInstance().decodeFrom(array, OFF, golden.length),
+                schema.newInstance().decodeFrom(heap, OFF, golden.length),
+                schema.newInstance().decodeFrom(direct, OFF, golden.length));
+        for (PackageKit kit : decoded) {
+            assertTrue(kit.isChecksumOk());
+            for (int i = 0; i < values.length; i++) {
+                assertEquals(values[i], kit.getLong(i), schema.getLayout().name(i));
+            }
+            assertArrayEquals(payload, kit.getPayload().array());
+            assertArrayEquals(golden, kit.toBytes().array());
+        }
+    }
+
+    // Written by the PackageKit before the encode/decode rewrite, see the resource for the format
+    static List<Object[]> goldenPackages() throws IOException {
+        List<Object[]> packages = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                PackageKitGoldenTest.class.getResourceAsStream("golden-packages.txt"), StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] columns = line.split(" ");
+                long[] values = Arrays.stream(columns[1].split(",")).mapToLong(v -> Long.parseLong(v, 16)).toArray();
+                byte[] payload = columns[2].equals("-") ? new byte[0] : Bytes.parseHex(columns[2]).array();
+                packages.add(new Object[]{columns[0], values, payload, Bytes.parseHex(columns[3]).array()});
+            }
+        }
+        return packages;
+    }
+}
@@ -0,0 +1,123 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import at.favre.lib.bytes.Bytes;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackageMetricsTest {
+    // Own schema names, so packages decoded by other tests are not counted
+    private static final PacketSchema SEPARATE = new PackageKit("PackageMetricsTest.separate", PackageKitChecksums.crc8_RMAP_ECSS_E_ST_50_52C_2010(), true)
+            .addField("a", 8)
+            .addField("b", 16)
+            .toSchema();
+    private static final PacketSchema UNCHECKED = new PackageKit("PackageMetricsTest.unchecked")
+            .addField("a", 8)
+            .toSchema();
+
+    @AfterEach
+    void disable() {
+        PackageMetrics.disable();
+    }
+
+    @Test
+    void enabledMetricsCountEncodesDecodesAndFailures() throws Exception {
+        PackageMetrics.enable();
+        PackageMetrics metrics = PackageMetrics.of(SEPARATE.getName());
+        metrics.reset();
+        PackageKit kit = SEPARATE.newInstance().setPayload(Bytes.from(new byte[]{1, 2, 3, 4}));
+        byte[] encoded = null;
+        for (int i = 0; i < 10; i++) {
+            encoded = kit.toBytes().array();
+        }
+        assertEquals(10, metrics.getEncoded());
+        assertEquals(10L * encoded.length, metrics.getBytesEncoded());
+        assertEquals(10, metrics.getEncodeLatency().count());
+
+        PackageKit decoded = SEPARATE.newInstance();
+        for (int i = 0; i < 6; i++) {
+            decoded.fromBytes(encoded);
+        }
+        byte[] badHeader = encoded.clone();
+        badHeader[1] ^= 1;
+        byte[] badPayload = encoded.clone();
+        badPayload[encoded.length - 2] ^= 1;
+        for (int i = 0; i < 3; i++) {
+            decoded.fromBytes(badHeader);
+        }
+        for (int i = 0; i < 2; i++) {
+            decoded.fromBytes(badPayload);
+        }
+        assertEquals(11, metrics.getDecoded());
+        assertEquals(11L * encoded.length, metrics.getBytesDecoded());
+        assertEquals(0, metrics.getShortInputs());
+        assertEquals(5, metrics.getChecksumFailures());
+        assertEquals(3, metrics.getHeaderChecksumFailures());
+        assertEquals(2, metrics.getPayloadChecksumFailures());
+
+        decoded.fromBytes(new byte[]{1, 2});
+        assertEquals(12, metrics.getDecoded());
+        assertEquals(11L * encoded.length + 2, metrics.getBytesDecoded());
+        assertEquals(1, metrics.getShortInputs());
+        assertEquals(5 + (decoded.isChecksumOk() ? 0 : 1), metrics.getChecksumFailures());
+        assertEquals(12, metrics.getDecodeLatency().count());
+        assertTrue(metrics.getDecodeLatencyP99Nanos() >= metrics.getDecodeLatencyP50Nanos());
+
+        ObjectName name = new ObjectName("com.rovsing.packetRouting:type=PackageKit,name=" + ObjectName.quote(SEPARATE.getName()));
+        assertEquals(12L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Decoded"));
+        metrics.reset();
+        assertEquals(0, metrics.getDecoded());
+        assertEquals(0, metrics.getDecodeLatency().count());
+    }
+
+    @Test
+    void disabledMetricsRecordNothing() {
+        PackageMetrics metrics = PackageMetrics.of(UNCHECKED.getName());
+        metrics.reset();
+        PackageKit kit = UNCHECKED.newInstance().setPayload(Bytes.from(new byte[]{5}));
+        for (int i = 0; i < 10; i++) {
+            UNCHECKED.newInstance().fromBytes(kit.toBytes());
+            UNCHECKED.newInstance().fromBytes(new byte[0]);
+        }
+        assertEquals(0, metrics.getEncoded());
+        assertEquals(0, metrics.getDecoded());
+        assertEquals(0, metrics.getShortInputs());
+        assertEquals(0, metrics.getEncodeLatency().count());
+        assertEquals(0, metrics.getDecodeLatency().count());
+    }
+
+    @Test
+    void histogramPercentilesAreBucketUpperBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentileNanos(50));
+        assertEquals(0, histogram.meanNanos());
+        // 90 in [64, 128), 10 in [4096, 8192)
+        for (int i = 0; i < 90; i++) {
+            histogram.record(100);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(5000);
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(590.0, histogram.meanNanos());
+        assertEquals(128, histogram.percentileNanos(0));
+        assertEquals(128, histogram.percentileNanos(50));
+        assertEquals(128, histogram.percentileNanos(90));
+        assertEquals(8192, histogram.percentileNanos(90.5));
+        assertEquals(8192, histogram.percentileNanos(100));
+        assertEquals(90, histogram.snapshot()[7]);
+        assertEquals(10, histogram.snapshot()[13]);
+
+        histogram.reset();
+        histogram.record(-5);
+        histogram.record(0);
+        assertEquals(1, histogram.percentileNanos(100));
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.percentileNanos(100));
+    }
+}
@@ -0,0 +1,65 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import at.favre.lib.bytes.Bytes;
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PackageViewTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"PUS_TC", "PUS_TM", "CPTP", "NATIVE", "RMAP_WRITE", "RMAP_WRITE_REPLY", "RMAP_READ", "RMAP_READ_REPLY"})
+    void viewMatchesDecodedFields(String schemaName) {
+        PacketSchema schema = SpwPkgFactory.getSchema(schemaName);
+        FieldLayout layout = schema.getLayout();
+        Random random = new Random(schemaName.hashCode());
+        PackageView arrayView = schema.newView();
+        PackageView bufferView = schema.newView();
+        for (int iteration = 0; iteration < 500; iteration++) {
+            PackageKit kit = schema.newInstance();
+            for (int i = 0; i < layout.fieldCount(); i++) {
+                kit.setLong(i, random.nextLong() & layout.mask(i));
+            }
+            byte[] encoded = kit.setPayload(Bytes.random(random.nextInt(20), random)).toBytes().array();
+            PackageKit decoded = schema.newInstance().fromBytes(encoded);
+
+            int off = 1 + random.nextInt(16);
+            byte[] array = new byte[off + encoded.length];
+            System.arraycopy(encoded, 0, array, off, encoded.length);
+            // The byte order of the buffer does not matter, fields are always big-endian bit strings
+            ByteBuffer direct = ByteBuffer.allocateDirect(array.length).order(iteration % 2 == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            direct.put(array).clear();
+
+            arrayView.wrap(array, off);
+            bufferView.wrap(direct, off);
+            assertEquals(off, arrayView.getOffset());
+            for (int i = 0; i < layout.fieldCount(); i++) {
+                long expected = decoded.getLong(i);
+                String name = layout.name(i);
+                assertEquals(expected, arrayView.getLong(i), name);
+                assertEquals(expected, bufferView.getLong(i), name);
+                assertEquals(expected, bufferView.getField(name).getLong(), name);
+                assertEquals(decoded.getField(name).getValue(), arrayView.getField(name).getValue(), name);
+                assertEquals(decoded.getField(name).getValue(), bufferView.getValue(i), name);
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"PUS_TC", "RMAP_WRITE"})
+    void viewNeedsTheWholeHeader(String schemaName) {
+        PacketSchema schema = SpwPkgFactory.getSchema(schemaName);
+        PackageView view = schema.newView();
+        int header = schema.getLayout().byteSize();
+        assertThrows(IndexOutOfBoundsException.class, () -> view.wrap(new byte[header + 2], 3));
+        assertThrows(IndexOutOfBoundsException.class, () -> view.wrap(ByteBuffer.allocateDirect(header), -1));
+        assertEquals(2, view.wrap(ByteBuffer.allocateDirect(header + 2), 2).getOffset());
+    }
+}
@@ -0,0 +1,175 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import at.favre.lib.bytes.Bytes;
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PacketArchiveTest {
+    private static final PacketSchema SCHEMA = SpwPkgFactory.PUS_TM;
+    private static final String[] INDEX = {"apid", "service", "seqCounter", "time"};
+    private static final int PACKAGES = 50_000;
+
+    @TempDir
+    Path dir;
+
+    private final int[] apid = new int[PACKAGES];
+    private final int[] service = new int[PACKAGES];
+    private final int[] seqCounter = new int[PACKAGES];
+    private final long[] time = new long[PACKAGES];
+    private final Random random = new Random(7);
+
+    /**
+     * Packages carry their index in the first two payload bytes. Even packages are appended as kits, odd ones as
+     * raw bytes, over several segments with one sealed early.
+     */
+    @BeforeEach
+    void record() throws IOException {
+        int[] counters = new int[32];
+        PackageKit kit = SCHEMA.newInstance();
+        try (ArchiveWriter writer = new ArchiveWriter(dir, SCHEMA, 256 << 10, INDEX)) {
+            for (int i = 0; i < PACKAGES; i++) {
+                apid[i] = random.nextInt(20);
+                service[i] = 1 + random.nextInt(20);
+                seqCounter[i] = counters[apid[i]]++ & 0x3FFF;
+                time[i] = 1000L * i;
+                kit.getField("apid").setValue(apid[i]);
+                kit.getField("service").setValue(service[i]);
+                kit.getField("seqCounter").setValue(seqCounter[i]);
+                kit.getField("time").setLong(time[i]);
+                kit.setPayload(Bytes.from(new byte[]{(byte) i, (byte) (i >> 8), 3}));
+                if (i % 2 == 0) {
+                    writer.append(kit);
+                } else {
+                    byte[] encoded = kit.toBytes().array();
+                    writer.append(ByteBuffer.wrap(encoded), 0, encoded.length);
+                }
+                if (i == PACKAGES / 3) {
+                    writer.seal();
+                }
+            }
+        }
+    }
+
+    @Test
+    void queriesMatchBruteForce() throws IOException {
+        try (PacketArchive archive = new PacketArchive(dir, SCHEMA)) {
+            assertEquals(PACKAGES, archive.packageCount());
+            assertTrue(archive.segmentCount() > 2, "segments " + archive.segmentCount());
+            assertEquals(List.of(INDEX), archive.getIndexFields());
+            int apidHandle = SCHEMA.handle("apid");
+            PackageKit decoded = SCHEMA.newInstance();
+
+            for (int q = 0; q < 100; q++) {
+                int kind = q % 4;
+                int a = random.nextInt(21);
+                int s = 1 + random.nextInt(20);
+                int lo = random.nextInt(0x3FFF);
+                int hi = lo + random.nextInt(1000);
+                long t0 = 1000L * random.nextInt(PACKAGES);
+                long t1 = t0 + 1000L * random.nextInt(PACKAGES / 3);
+
+                PacketArchive.Query query = archive.query();
+                if (kind != 3) {
+                    query.eq("apid", a);
+                }
+                if (kind <= 1) {
+                    query.eq("service", s);
+                }
+                if (kind == 0) {
+                    query.range("seqCounter", lo, hi);
+                }
+                if (kind >= 1) {
+                    query.range("time", t0, t1);
+                }
+
+                List<Integer> expected = new ArrayList<>();
+                for (int i = 0; i < PACKAGES; i++) {
+                    if ((kind == 3 || apid[i] == a)
+                            && (kind > 1 || service[i] == s)
+                            && (kind != 0 || seqCounter[i] >= lo && seqCounter[i] <= hi)
+                            && (kind < 1 || time[i] >= t0 && time[i] <= t1)) {
+                        expected.add(i & 0xFFFF);
+                    }
+                }
+                List<Integer> found = new ArrayList<>();
+                long count = query.forEach(match -> {
+                    ByteBuffer segment = match.getSegmentBuffer();
+                    int off = match.getOffset() + SCHEMA.headerSize();
+                    int i = (segment.get(off) & 0xFF) | (segment.get(off + 1) & 0xFF) << 8;
+                    found.add(i);
+                    assertTrue(match.decode(decoded).isChecksumOk());
+                    assertEquals(decoded.getField("apid").getValue(), match.getView().getLong(apidHandle));
+                    if (kind != 3) {
+                        assertEquals(a, decoded.getField("apid").getValue());
+                    }
+                });
+                assertEquals(expected, found, "query kind " + kind);
+                assertEquals(expected.size(), count);
+                assertEquals(count, query.count());
+            }
+        }
+    }
+
+    @Test
+    void residualFilterAppliesToIndexedMatches() throws IOException {
+        try (PacketArchive archive = new PacketArchive(dir, SCHEMA)) {
+            FieldPredicate.Fields fields = FieldPredicate.on(SCHEMA);
+            long indexed = archive.query().eq("apid", 3).count();
+            assertTrue(indexed > 0);
+            assertEquals(indexed, archive.query().eq("apid", 3).filter(fields.in("subService", 0)).count());
+            assertEquals(0, archive.query().eq("apid", 3).filter(fields.eq("subService", 1)).count());
+            assertThrows(IllegalArgumentException.class, () -> archive.query().eq("pusVersion", 1));
+        }
+    }
+
+    @Test
+    void refreshPicksUpSealedSegmentsOnly() throws IOException {
+        try (PacketArchive archive = new PacketArchive(dir, SCHEMA)) {
+            int before = archive.segmentCount();
+            try (ArchiveWriter writer = new ArchiveWriter(dir, SCHEMA, INDEX)) {
+                writer.append(SCHEMA.newInstance());
+                writer.flush();
+                assertEquals(0, archive.refresh());
+            }
+            assertEquals(1, archive.refresh());
+            assertEquals(before + 1, archive.segmentCount());
+            assertEquals(PACKAGES + 1, archive.packageCount());
+        }
+        assertThrows(NoSuchElementException.class, () -> new ArchiveWriter(dir, SCHEMA, "nope"));
+    }
+
+    @Test
+    void segmentSizeIsLimitedByTheIndex() throws IOException {
+        // 256 MiB of 4 byte CPTP packages would need a 2 GiB index of 32 byte entries
+        PacketSchema cptp = SpwPkgFactory.CPTP;
+        String[] fields = {"logicAddress", "protocolId", "userApplication"};
+        long max = ArchiveWriter.maxSegmentSize(cptp, fields);
+        assertTrue(max < 256L << 20, "max " + max);
+        assertTrue(max / cptp.headerSize() * 4 * Long.BYTES < Integer.MAX_VALUE);
+        Path cptpDir = dir.resolve("cptp");
+        assertThrows(IllegalArgumentException.class, () -> new ArchiveWriter(cptpDir, cptp, 256L << 20, fields));
+        assertThrows(IllegalArgumentException.class, () -> new ArchiveWriter(cptpDir, cptp, max + 1, fields));
+        new ArchiveWriter(cptpDir, cptp, max, fields).close();
+        try (ArchiveWriter writer = new ArchiveWriter(cptpDir, cptp, fields)) {
+            writer.append(cptp.newInstance());
+        }
+        try (PacketArchive archive = new PacketArchive(cptpDir, cptp)) {
+            assertEquals(1, archive.query().eq("protocolId", 2).count());
+        }
+        assertTrue(ArchiveWriter.maxSegmentSize(SCHEMA, INDEX) > 256L << 20);
+    }
+}
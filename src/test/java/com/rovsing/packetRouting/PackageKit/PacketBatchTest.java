@@ -0,0 +1,64 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import at.favre.lib.bytes.Bytes;
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PacketBatchTest {
+    private static final PacketSchema SCHEMA = SpwPkgFactory.RMAP_WRITE;
+
+    @Test
+    void parallelDecodeAggregatesAllBuffers() {
+        Random random = new Random(5);
+        List<ByteBuffer> buffers = new ArrayList<>();
+        long packages = 0;
+        long corrupted = 0;
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        long sum = 0;
+        for (int b = 0; b < 100; b++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int count = random.nextInt(3000);
+            for (int i = 0; i < count; i++) {
+                byte[] payload = new byte[random.nextInt(20)];
+                random.nextBytes(payload);
+                PackageKit kit = SCHEMA.newInstance().setPayload(Bytes.wrap(payload));
+                kit.getField("dataLength").setValue(payload.length);
+                int transId = random.nextInt(1 << 16);
+                kit.getField("transId").setValue(transId);
+                byte[] encoded = kit.toBytes().array();
+                if (random.nextInt(50) == 0) {
+                    encoded[2] ^= 4;
+                    corrupted++;
+                }
+                out.writeBytes(encoded);
+                packages++;
+                min = Long.min(min, transId);
+                max = Long.max(max, transId);
+                sum += transId;
+            }
+            out.write(1);
+            buffers.add(ByteBuffer.wrap(out.toByteArray()));
+        }
+
+        for (ForkJoinPool pool : List.of(ForkJoinPool.commonPool(), new ForkJoinPool(1), new ForkJoinPool(4))) {
+            BatchStats stats = PacketBatch.parallelDecode(pool, SCHEMA, buffers, "transId", "dataLength");
+            assertEquals(packages, stats.packages());
+            assertEquals(corrupted, stats.checksumFailures());
+            assertEquals(min, stats.min("transId"));
+            assertEquals(max, stats.max("transId"));
+            assertEquals(sum, stats.sum("transId"));
+            assertEquals(buffers.size(), stats.trailingBytes());
+            assertEquals(0, buffers.get(0).position());
+        }
+    }
+}
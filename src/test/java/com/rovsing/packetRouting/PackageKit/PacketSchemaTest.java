@@ -0,0 +1,81 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import at.favre.lib.bytes.Bytes;
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PacketSchemaTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"PUS_TC", "PUS_TM"})
+    void pusLengthIsThePacketSizeMinusSeven(String schemaName) {
+        PacketSchema schema = SpwPkgFactory.getSchema(schemaName);
+        Random random = new Random(1);
+        for (int size = 0; size < 300; size += 1 + random.nextInt(7)) {
+            byte[] payload = new byte[size];
+            random.nextBytes(payload);
+            PackageKit kit = schema.newInstance().setPayload(Bytes.wrap(payload));
+            byte[] encoded = kit.toBytes().array();
+            PackageKit decoded = schema.newInstance().fromBytes(encoded);
+            assertEquals(encoded.length - 7, decoded.getField("length").getValue());
+            assertEquals(encoded.length - 7, kit.getField("length").getValue());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"RMAP_WRITE", "RMAP_READ_REPLY"})
+    void rmapDataLengthIsThePayloadSize(String schemaName) {
+        PacketSchema schema = SpwPkgFactory.getSchema(schemaName);
+        Random random = new Random(2);
+        for (int size = 0; size < 300; size += 1 + random.nextInt(7)) {
+            byte[] payload = new byte[size];
+            random.nextBytes(payload);
+            PackageKit decoded = schema.newInstance().fromBytes(schema.newInstance().setPayload(Bytes.wrap(payload)).toBytes());
+            assertEquals(size, decoded.getField("dataLength").getValue());
+            assertArrayEquals(payload, decoded.getPayload().array());
+            assertTrue(decoded.isChecksumOk());
+        }
+    }
+
+    @Test
+    void derivedValuesOutOfRangeAreRejected() {
+        PacketSchema schema = new PackageKit("Derived")
+                .addField("size", 8)
+                .addField("total", 8)
+                .derivePayloadLength("size", 1)
+                .derivePacketLength("total", -3)
+                .toSchema();
+        long[] values = new long[schema.fieldCount() + 1];
+        schema.applyDerived(values, 1, 254, 5);
+        assertArrayEquals(new long[]{0, 255, 2}, values);
+
+        assertThrows(IllegalArgumentException.class, () -> schema.applyDerived(new long[2], 0, 255, 5));
+        assertThrows(IllegalArgumentException.class, () -> schema.applyDerived(new long[2], 0, 0, 2));
+        assertThrows(IllegalArgumentException.class, () -> schema.newInstance().setPayload(Bytes.allocate(300)).toBytes());
+        assertArrayEquals(new byte[]{3, 1, 0, 0}, schema.newInstance().setPayload(Bytes.allocate(2)).toBytes().array());
+    }
+
+    @Test
+    void readingTheHeaderKeepsTheFieldValues() {
+        PackageKit kit = SpwPkgFactory.PUS_TC.newInstance().setPayload(Bytes.from(new byte[]{1, 2, 3}));
+        PackageKit encoded = SpwPkgFactory.PUS_TC.newInstance().fromBytes(kit.toBytes());
+        kit.getField("length").setValue(42);
+
+        assertEquals(encoded.getHeader(), kit.getHeader());
+        assertEquals(encoded.getChecksum(), kit.getChecksum());
+        assertEquals(encoded.getHeaderChecksum(), kit.getHeaderChecksum());
+        assertEquals(42, kit.getField("length").getValue());
+        // Only an encode writes the derived value back
+        kit.toBytes();
+        assertEquals(kit.encodedSize() - 7, kit.getField("length").getValue());
+    }
+}
@@ -0,0 +1,138 @@
+package com.rovsing.packetRouting.PackageKit;
+
+import com.rovsing.msr_ero.sis.spw.SpwPkgFactory;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SequenceCountersTest {
+
+    @Test
+    void pusSequenceCounterWrapsAtFourteenBits() {
+        SequenceCounters counters = SequenceCounters.forFields(SpwPkgFactory.PUS_TC, "seqCounter", "apid");
+        assertEquals(0x3FFF, counters.getMaxValue());
+        PackageKit kit = SpwPkgFactory.PUS_TC.newInstance().setSequence(counters.stamp(SpwPkgFactory.PUS_TC, "seqCounter", "apid"));
+        kit.getField("apid").setValue(0x7FF);
+        counters.set(0x7FF, 0x3FFE);
+        for (int expected : new int[]{0x3FFE, 0x3FFF, 0, 1}) {
+            assertEquals(expected, decoded(SpwPkgFactory.PUS_TC, kit).getField("seqCounter").getValue());
+        }
+        assertEquals(2, counters.peek(0x7FF));
+    }
+
+    @Test
+    void rmapTransactionIdWrapsAtSixteenBits() {
+        SequenceCounters counters = SequenceCounters.forFields(SpwPkgFactory.RMAP_WRITE, "transId", "logicAddress");
+        assertEquals(0xFFFF, counters.getMaxValue());
+        PackageKit write = SpwPkgFactory.RMAP_WRITE.newInstance().setSequence(counters.stamp(SpwPkgFactory.RMAP_WRITE, "transId", "logicAddress"));
+        PackageKit read = SpwPkgFactory.RMAP_READ.newInstance().setSequence(counters.stamp(SpwPkgFactory.RMAP_READ, "transId", "logicAddress"));
+        write.getField("logicAddress").setValue(0xFE);
+        read.getField("logicAddress").setValue(0xFE);
+        counters.set(0xFE, 0xFFFF);
+        // Writes and reads towards the same target share the sequence
+        assertEquals(0xFFFF, decoded(SpwPkgFactory.RMAP_WRITE, write).getField("transId").getValue());
+        assertEquals(0, decoded(SpwPkgFactory.RMAP_READ, read).getField("transId").getValue());
+        assertEquals(1, decoded(SpwPkgFactory.RMAP_WRITE, write).getField("transId").getValue());
+    }
+
+    @Test
+    void everyKeyCountsOnItsOwn() {
+        SequenceCounters counters = SequenceCounters.forFields(SpwPkgFactory.PUS_TC, "seqCounter", "apid");
+        SequenceCounters.Stamp stamp = counters.stamp(SpwPkgFactory.PUS_TC, "seqCounter", "apid");
+        PackageKit kit = SpwPkgFactory.PUS_TC.newInstance().setSequence(stamp);
+        int[] apids = {0, 1, 0x400, 0x7FF};
+        for (int i = 0; i < 100; i++) {
+            for (int a = 0; a <= i % apids.length; a++) {
+                kit.getField("apid").setValue(apids[a]);
+                kit.toBytes();
+            }
+        }
+        assertEquals(100, counters.peek(0));
+        assertEquals(75, counters.peek(1));
+        assertEquals(50, counters.peek(0x400));
+        assertEquals(25, counters.peek(0x7FF));
+        assertEquals(0, counters.peek(2));
+        counters.reset();
+        assertEquals(0, counters.peek(0));
+        assertEquals(0, counters.peek(0x7FF));
+    }
+
+    @Test
+    void concurrentEncodesAllocateEveryValueOnce() throws Exception {
+        int threads = 8;
+        int perThread = 8000;
+        int[] targets = {3, 4};
+        SequenceCounters counters = SequenceCounters.forFields(SpwPkgFactory.RMAP_WRITE, "transId", "logicAddress");
+        SequenceCounters.Stamp stamp = counters.stamp(SpwPkgFactory.RMAP_WRITE, "transId", "logicAddress");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<int[]>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int target = targets[t % targets.length];
+                results.add(executor.submit(() -> {
+                    PackageKit kit = SpwPkgFactory.RMAP_WRITE.newInstance().setSequence(stamp);
+                    kit.getField("logicAddress").setValue(target);
+                    int[] ids = new int[perThread];
+                    for (int i = 0; i < perThread; i++) {
+                        ids[i] = decoded(SpwPkgFactory.RMAP_WRITE, kit).getField("transId").getValue();
+                    }
+                    return ids;
+                }));
+            }
+            BitSet[] seen = {new BitSet(), new BitSet()};
+            for (int t = 0; t < threads; t++) {
+                BitSet ids = seen[t % targets.length];
+                for (int id : results.get(t).get(60, TimeUnit.SECONDS)) {
+                    assertFalse(ids.get(id), "transId " + id + " allocated twice");
+                    ids.set(id);
+                }
+            }
+            // 32000 of 65536 values per target, none lost
+            for (int k = 0; k < targets.length; k++) {
+                assertEquals(threads / targets.length * perThread, seen[k].cardinality());
+                assertEquals(seen[k].cardinality(), seen[k].nextClearBit(0));
+                assertEquals(seen[k].cardinality(), counters.peek(targets[k]));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void resetDropsTheStamp() {
+        SequenceCounters counters = SequenceCounters.forFields(SpwPkgFactory.PUS_TC, "seqCounter", "apid");
+        PackageKit kit = SpwPkgFactory.PUS_TC.newInstance().setSequence(counters.stamp(SpwPkgFactory.PUS_TC, "seqCounter", "apid"));
+        kit.toBytes();
+        assertEquals(1, counters.peek(0));
+        kit.reset();
+        assertEquals(0, decoded(SpwPkgFactory.PUS_TC, kit).getField("seqCounter").getValue());
+        kit.toBytes();
+        assertEquals(1, counters.peek(0));
+    }
+
+    @Test
+    void stampsMustFitTheirFields() {
+        SequenceCounters wide = new SequenceCounters(16, 11);
+        assertThrows(IllegalArgumentException.class, () -> wide.stamp(SpwPkgFactory.PUS_TC, "seqCounter", "apid"));
+        SequenceCounters narrowKeys = new SequenceCounters(14, 8);
+        assertThrows(IllegalArgumentException.class, () -> narrowKeys.stamp(SpwPkgFactory.PUS_TC, "seqCounter", "apid"));
+        SequenceCounters.Stamp stamp = SequenceCounters.forFields(SpwPkgFactory.PUS_TC, "seqCounter", "apid").stamp(SpwPkgFactory.PUS_TC, "seqCounter", "apid");
+        assertThrows(IllegalArgumentException.class, () -> SpwPkgFactory.PUS_TM.newInstance().setSequence(stamp));
+        assertThrows(IllegalArgumentException.class, () -> new SequenceCounters(33, 0));
+        assertThrows(IndexOutOfBoundsException.class, () -> narrowKeys.next(256));
+    }
+
+    private static PackageKit decoded(PacketSchema schema, PackageKit kit) {
+        return schema.newInstance().fromBytes(kit.toBytes());
+    }
+}